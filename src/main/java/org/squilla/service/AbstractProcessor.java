@@ -15,79 +15,277 @@
  */
 package org.squilla.service;
 
-import java.util.ArrayList;
-import java.util.List;
-import org.squilla.util.ArrayFifoQueue;
 import org.squilla.util.BlockingFifoQueue;
+import org.squilla.util.Coalescer;
+import org.squilla.util.CoalescingQueue;
+import org.squilla.util.DeadlineQueue;
+import org.squilla.util.QueueFactory;
 
 /**
+ * Processor that runs processNext() on a single thread over a bounded queue.
+ * <p>
+ * shutdownGracefully() stops accepting items, processes what is queued
+ * within a deadline and returns the items that were left.
+ * <p>
+ * With nonBlockingFire set, listeners are notified through a
+ * ListenerDispatcher, one of its own unless one is shared through
+ * setListenerDispatcher(). Otherwise they run on the process thread.
+ * <p>
+ * Items given a deadline are shed, not processed, once it has passed:
+ * listeners get failed() with a DeadlineExpiredException. An item that
+ * expires while queued is failed on the process thread, like any other.
+ * One that is stale on arrival, or finds no queue space before its
+ * deadline, never reaches the queue and is failed on the thread calling
+ * process(). The queue can also be ordered earliest-deadline-first, items
+ * without a deadline last.
+ * <p>
+ * Given a Coalescer, the queue merges an item into a pending one with the
+ * same key, so only the latest state of a key waits to be processed.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
 public abstract class AbstractProcessor implements Processor {
 
+    /** Queued by shutdownGracefully() behind the remaining items. */
+    private static final Object STOP = new Object();
+
     private BlockingFifoQueue queue;
     private ServiceTask processTask = null;
-    private List listenerList;
-    private boolean nonBlockingFire;
+    private final ListenerSupport listeners = new ListenerSupport();
+    private volatile boolean draining = false;
+    private final boolean earliestDeadlineFirst;
+    private long expiredCount = 0;
 
     public AbstractProcessor(int queueSize) {
-        queue = new ArrayFifoQueue(queueSize);
-        listenerList = new ArrayList();
+        this(queueSize, false);
+    }
+
+    /**
+     * @param earliestDeadlineFirst true to process items in deadline order
+     * rather than FIFO
+     */
+    public AbstractProcessor(int queueSize, boolean earliestDeadlineFirst) {
+        if (earliestDeadlineFirst) {
+            queue = new DeadlineQueue(queueSize);
+        } else {
+            queue = QueueFactory.getDefault().newQueue(queueSize);
+        }
+        this.earliestDeadlineFirst = earliestDeadlineFirst;
+        processTask = new ProcessTask();
+    }
+
+    /**
+     * @param factory creates the item queue
+     */
+    public AbstractProcessor(int queueSize, QueueFactory factory) {
+        queue = factory.newQueue(queueSize);
+        earliestDeadlineFirst = false;
+        processTask = new ProcessTask();
+    }
+
+    /**
+     * @param coalescer merges items with equal keys while they are queued
+     */
+    public AbstractProcessor(int queueSize, final Coalescer coalescer) {
+        if (coalescer == null) {
+            throw new NullPointerException();
+        }
+        queue = new CoalescingQueue(queueSize, new Coalescer() {
+
+            public Object keyOf(Object e) {
+                if (e == STOP) {
+                    return null;
+                }
+                if (e instanceof DeadlineItem) {
+                    e = ((DeadlineItem) e).item;
+                }
+                return coalescer.keyOf(e);
+            }
+
+            public Object merge(Object pending, Object incoming) {
+                if (!(pending instanceof DeadlineItem) && !(incoming instanceof DeadlineItem)) {
+                    return coalescer.merge(pending, incoming);
+                }
+                Object p = pending;
+                if (p instanceof DeadlineItem) {
+                    p = ((DeadlineItem) p).item;
+                }
+                if (!(incoming instanceof DeadlineItem)) {
+                    // An item without a deadline keeps the pending one's.
+                    DeadlineItem d = (DeadlineItem) pending;
+                    return new DeadlineItem(coalescer.merge(p, incoming), d.deadline);
+                }
+                // The merged item lives until the incoming deadline.
+                DeadlineItem d = (DeadlineItem) incoming;
+                return new DeadlineItem(coalescer.merge(p, d.item), d.deadline);
+            }
+        });
+        earliestDeadlineFirst = false;
         processTask = new ProcessTask();
     }
 
+    /**
+     * @throws RejectedTaskException if shutting down
+     */
     public void process(Object o) {
+        if (draining) {
+            throw new RejectedTaskException("Processor is shutting down.");
+        }
         queue.blockingEnqueue(o);
     }
 
+    /**
+     * Process o unless deadline passes first. Waits for queue space at
+     * most until the deadline; if o cannot be queued by then, listeners
+     * are notified of its expiry before this returns.
+     * @param deadline System.currentTimeMillis() after which o is stale
+     * @throws RejectedTaskException if shutting down
+     */
+    public void process(Object o, long deadline) {
+        if (draining) {
+            throw new RejectedTaskException("Processor is shutting down.");
+        }
+        if (o == null) {
+            throw new NullPointerException();
+        }
+        long millis = deadline - System.currentTimeMillis();
+        if (millis > 0) {
+            Object item = new DeadlineItem(o, deadline);
+            boolean queued;
+            if (earliestDeadlineFirst) {
+                queued = ((DeadlineQueue) queue).blockingEnqueue(item, deadline, (int) Math.min(millis, Integer.MAX_VALUE));
+            } else {
+                queued = queue.blockingEnqueue(item, (int) Math.min(millis, Integer.MAX_VALUE));
+            }
+            if (queued) {
+                return;
+            }
+        }
+        expired(o, deadline);
+    }
+
+    /**
+     * @return items merged into pending ones, 0 unless coalescing
+     */
+    public long getCoalescedCount() {
+        if (queue instanceof CoalescingQueue) {
+            return ((CoalescingQueue) queue).getCoalescedCount();
+        }
+        return 0;
+    }
+
+    public boolean isEarliestDeadlineFirst() {
+        return earliestDeadlineFirst;
+    }
+
+    /**
+     * @return items shed because their deadline passed
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
     public void addListener(ProcessListener listener) {
-        listenerList.add(listener);
+        listeners.add(listener);
+    }
+
+    public ListenerDispatcher getListenerDispatcher() {
+        return listeners.getDispatcher();
+    }
+
+    /**
+     * Share a dispatcher with other processors. Its lifecycle is left to
+     * the caller.
+     * @param dispatcher dispatcher for nonBlockingFire, null for one of
+     * this processor's own
+     */
+    public void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        listeners.setDispatcher(dispatcher);
+    }
+
+    public ExecutionBackend getBackend() {
+        return processTask.getBackend();
+    }
+
+    /**
+     * @param backend backend for the process task, null for the default
+     */
+    public void setBackend(ExecutionBackend backend) {
+        processTask.setBackend(backend);
+        listeners.setBackend(backend);
     }
 
     public synchronized boolean activate() {
-        return processTask.activate();
+        if (!processTask.activate()) {
+            return false;
+        }
+        listeners.open();
+        return true;
     }
     
     public synchronized boolean shutdown() {
+        listeners.release();
         return processTask.shutdown();
     }
 
+    /**
+     * Stop accepting items, process the queued ones for up to timeout
+     * milliseconds, then shut down.
+     * @param timeout milliseconds, 0 to wait until the queue is empty
+     * @return items that were still queued at the deadline
+     */
+    public Object[] shutdownGracefully(int timeout) {
+        synchronized (this) {
+            if (draining) {
+                return new Object[0];
+            }
+            draining = true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        if (queue.blockingEnqueue(STOP, timeout)) {
+            long millis = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (millis >= 0) {
+                processTask.awaitTermination((int) millis);
+            }
+        }
+        Object[] objs = queue.drainAll();
+        int n = 0;
+        for (int i = 0; i < objs.length; i++) {
+            if (objs[i] instanceof DeadlineItem) {
+                objs[n++] = ((DeadlineItem) objs[i]).item;
+            } else if (objs[i] != STOP) {
+                objs[n++] = objs[i];
+            }
+        }
+        Object[] left = new Object[n];
+        System.arraycopy(objs, 0, left, 0, n);
+        shutdown();
+        return left;
+    }
+
+    /**
+     * Wait for the process task to end after shutdown.
+     * @param timeout milliseconds, 0 to wait forever
+     */
+    public boolean awaitTermination(int timeout) {
+        return processTask.awaitTermination(timeout);
+    }
+
     protected abstract Object processNext(Object o) throws Exception;
     
     protected BlockingFifoQueue getRawQueue() {
         return queue;
     }
 
-    private void fireDone(final Object o, final Object result, boolean block) {
-        for (int i = 0; i < listenerList.size(); i++) {
-            final ProcessListener listener = (ProcessListener) listenerList.get(i);
-            Runnable r = new Runnable() {
-                public void run() {
-                    listener.done(o, result);
-                }
-            };
-            if (!block) {
-                new Thread(r).start();
-            } else {
-                r.run();
-            }
+    private void expired(Object o, long deadline) {
+        synchronized (this) {
+            expiredCount++;
         }
-    }
-
-    private void fireFailed(final Object o, final Object reason, boolean nonBlock) {
-        for (int i = 0; i < listenerList.size(); i++) {
-            final ProcessListener listener = (ProcessListener) listenerList.get(i);
-            Runnable r = new Runnable() {
-                public void run() {
-                    listener.failed(o, reason);
-                }
-            };
-            if (nonBlock) {
-                new Thread(r).start();
-            } else {
-                r.run();
-            }
+        try {
+            listeners.fire(o, new DeadlineExpiredException(deadline, System.currentTimeMillis()), true);
+        } catch (Exception ex) {
+            System.err.println("[AbstractProcessor] Uncaught exception: " + ex);
+            ex.printStackTrace();
         }
     }
 
@@ -95,14 +293,14 @@ public abstract class AbstractProcessor implements Processor {
      * @return the nonBlockingFire
      */
     public boolean isNonBlockingFire() {
-        return nonBlockingFire;
+        return listeners.isNonBlocking();
     }
 
     /**
      * @param nonBlockingFire the nonBlockingFire to set
      */
     public void setNonBlockingFire(boolean nonBlockingFire) {
-        this.nonBlockingFire = nonBlockingFire;
+        listeners.setNonBlocking(nonBlockingFire);
     }
 
     private class ProcessTask extends ServiceTask {
@@ -112,12 +310,35 @@ public abstract class AbstractProcessor implements Processor {
             if (o == null) {
                 return;
             }
+            if (o == STOP) {
+                shutdown(false);
+                return;
+            }
+            if (o instanceof DeadlineItem) {
+                DeadlineItem d = (DeadlineItem) o;
+                if (d.deadline < System.currentTimeMillis()) {
+                    expired(d.item, d.deadline);
+                    return;
+                }
+                o = d.item;
+            }
             try {
                 Object result = processNext(o);
-                fireDone(o, result, isNonBlockingFire());
+                listeners.fire(o, result, false);
             } catch (Exception ex) {
-                fireFailed(o, ex, isNonBlockingFire());
+                listeners.fire(o, ex, true);
             }
         }
     }
+
+    private static class DeadlineItem {
+
+        final Object item;
+        final long deadline;
+
+        DeadlineItem(Object item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import org.squilla.util.ArrayFifoQueue;
+import org.squilla.util.BlockingFifoQueue;
+
+/**
+ * Processor that hands queued items to processBatch() in groups, for
+ * targets where one call per item costs far more than one per batch.
+ * <p>
+ * A batch is closed when it holds maxBatchSize items or when lingerTime
+ * milliseconds have passed since its first item arrived, whichever comes
+ * first. The batch array and the result slots are reused, so steady-state
+ * processing allocates nothing.
+ * <p>
+ * Listeners are notified per item, in queue order. processBatch() reports
+ * per-item outcomes with setResult() and setFailed(); an item with neither
+ * is reported done with a null result, and an exception thrown by
+ * processBatch() fails every item of the batch.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class BatchingProcessor implements Processor {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int DEFAULT_LINGER_TIME = 5;
+    /** Queued by shutdownGracefully() behind the remaining items. */
+    private static final Object STOP = new Object();
+    private final BlockingFifoQueue queue;
+    private final int maxBatchSize;
+    private final int lingerTime;
+    private final Object[] batch;
+    private final Object[] results;
+    private final boolean[] failed;
+    private final ListenerSupport listeners = new ListenerSupport();
+    private ServiceTask processTask;
+    private volatile boolean draining = false;
+
+    public BatchingProcessor(int queueSize) {
+        this(queueSize, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_TIME);
+    }
+
+    /**
+     * @param queueSize capacity of the input queue
+     * @param maxBatchSize most items passed to one processBatch() call
+     * @param lingerTime milliseconds to wait for a batch to fill, 0 to take
+     * only what is already queued
+     */
+    public BatchingProcessor(int queueSize, int maxBatchSize, int lingerTime) {
+        if (maxBatchSize < 1 || lingerTime < 0) {
+            throw new IllegalArgumentException();
+        }
+        queue = new ArrayFifoQueue(queueSize);
+        this.maxBatchSize = maxBatchSize;
+        this.lingerTime = lingerTime;
+        batch = new Object[maxBatchSize];
+        results = new Object[maxBatchSize];
+        failed = new boolean[maxBatchSize];
+        processTask = new ProcessTask();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public int getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * @throws RejectedTaskException if shutting down
+     */
+    public void process(Object o) {
+        if (draining) {
+            throw new RejectedTaskException("Processor is shutting down.");
+        }
+        queue.blockingEnqueue(o);
+    }
+
+    public void addListener(ProcessListener listener) {
+        listeners.add(listener);
+    }
+
+    public ListenerDispatcher getListenerDispatcher() {
+        return listeners.getDispatcher();
+    }
+
+    /**
+     * @see AbstractProcessor#setListenerDispatcher(ListenerDispatcher)
+     */
+    public void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        listeners.setDispatcher(dispatcher);
+    }
+
+    public boolean isNonBlockingFire() {
+        return listeners.isNonBlocking();
+    }
+
+    public void setNonBlockingFire(boolean nonBlockingFire) {
+        listeners.setNonBlocking(nonBlockingFire);
+    }
+
+    public ExecutionBackend getBackend() {
+        return processTask.getBackend();
+    }
+
+    /**
+     * @param backend backend for the process task, null for the default
+     */
+    public void setBackend(ExecutionBackend backend) {
+        processTask.setBackend(backend);
+        listeners.setBackend(backend);
+    }
+
+    public synchronized boolean activate() {
+        if (!processTask.activate()) {
+            return false;
+        }
+        listeners.open();
+        return true;
+    }
+
+    public synchronized boolean shutdown() {
+        listeners.release();
+        return processTask.shutdown();
+    }
+
+    /**
+     * Stop accepting items, process the queued ones for up to timeout
+     * milliseconds, then shut down.
+     * @param timeout milliseconds, 0 to wait until the queue is empty
+     * @return items that were still queued at the deadline
+     */
+    public Object[] shutdownGracefully(int timeout) {
+        synchronized (this) {
+            if (draining) {
+                return new Object[0];
+            }
+            draining = true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        if (queue.blockingEnqueue(STOP, timeout)) {
+            long millis = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (millis >= 0) {
+                processTask.awaitTermination((int) millis);
+            }
+        }
+        Object[] objs = queue.drainAll();
+        int n = 0;
+        for (int i = 0; i < objs.length; i++) {
+            if (objs[i] != STOP) {
+                objs[n++] = objs[i];
+            }
+        }
+        Object[] left = new Object[n];
+        System.arraycopy(objs, 0, left, 0, n);
+        shutdown();
+        return left;
+    }
+
+    /**
+     * Wait for the process task to end after shutdown.
+     * @param timeout milliseconds, 0 to wait forever
+     */
+    public boolean awaitTermination(int timeout) {
+        return processTask.awaitTermination(timeout);
+    }
+
+    /**
+     * Process items[0] to items[count - 1]. The array is reused for the
+     * next batch and must not be kept.
+     */
+    protected abstract void processBatch(Object[] items, int count) throws Exception;
+
+    /**
+     * Set the result reported for items[index] of the current batch.
+     */
+    protected void setResult(int index, Object result) {
+        results[index] = result;
+        failed[index] = false;
+    }
+
+    /**
+     * Report items[index] of the current batch as failed.
+     */
+    protected void setFailed(int index, Object reason) {
+        results[index] = reason;
+        failed[index] = true;
+    }
+
+    protected BlockingFifoQueue getRawQueue() {
+        return queue;
+    }
+
+    /**
+     * Fill the batch after its first item.
+     * @return number of items in the batch
+     */
+    private int fill(int n) {
+        n += queue.drainTo(batch, n, maxBatchSize - n);
+        if (lingerTime == 0) {
+            return n;
+        }
+        long deadline = System.currentTimeMillis() + lingerTime;
+        while (n < maxBatchSize) {
+            long millis = deadline - System.currentTimeMillis();
+            if (millis <= 0) {
+                break;
+            }
+            Object o = queue.blockingDequeue((int) millis);
+            if (o == null) {
+                break;
+            }
+            batch[n++] = o;
+            if (o == STOP) {
+                break;
+            }
+            n += queue.drainTo(batch, n, maxBatchSize - n);
+        }
+        return n;
+    }
+
+    private void runBatch(int count) {
+        try {
+            processBatch(batch, count);
+        } catch (Exception ex) {
+            for (int i = 0; i < count; i++) {
+                results[i] = ex;
+                failed[i] = true;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Object o = batch[i];
+            Object result = results[i];
+            boolean f = failed[i];
+            batch[i] = null;
+            results[i] = null;
+            failed[i] = false;
+            try {
+                listeners.fire(o, result, f);
+            } catch (Exception ex) {
+                System.err.println("[BatchingProcessor] Uncaught exception: " + ex);
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class ProcessTask extends ServiceTask {
+
+        public void taskLoop() {
+            Object o = queue.blockingDequeue();
+            if (o == null) {
+                return;
+            }
+            batch[0] = o;
+            int n = o == STOP ? 1 : fill(1);
+            // Items after STOP were queued before draining was seen, so
+            // they are processed with the rest.
+            int count = 0;
+            boolean stop = false;
+            for (int i = 0; i < n; i++) {
+                if (batch[i] == STOP) {
+                    stop = true;
+                } else {
+                    batch[count++] = batch[i];
+                }
+            }
+            for (int i = count; i < n; i++) {
+                batch[i] = null;
+            }
+            if (count != 0) {
+                runBatch(count);
+            }
+            if (stop) {
+                shutdown(false);
+            }
+        }
+    }
+}
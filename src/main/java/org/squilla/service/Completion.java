@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result handle of a task submitted to a WorkQueue.
+ * <p>
+ * Listeners are told of the outcome on the thread that completes the task,
+ * normally the worker that ran it: ProcessListener.done(completion, result)
+ * on success, failed(completion, cause) on failure, and
+ * failed(completion, CANCELLED) on cancellation. A listener added after
+ * completion is called at once on the adding thread.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class Completion implements Discardable {
+
+    /** Reason passed to ProcessListener.failed() on cancellation. */
+    public static final Object CANCELLED = new Object() {
+
+        public String toString() {
+            return "CANCELLED";
+        }
+    };
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_CANCELLED = 4;
+    private final Callable callable;
+    private final Runnable runnable;
+    private int state = STATE_PENDING;
+    private Object result;
+    private Throwable cause;
+    private ProcessListener listener;
+    private List moreListeners;
+
+    public Completion(Callable callable) {
+        if (callable == null) {
+            throw new NullPointerException();
+        }
+        this.callable = callable;
+        this.runnable = null;
+    }
+
+    /**
+     * @param runnable task whose result will be null
+     */
+    public Completion(Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        this.callable = null;
+        this.runnable = runnable;
+    }
+
+    public void run() {
+        synchronized (this) {
+            if (state != STATE_PENDING) {
+                return;
+            }
+            state = STATE_RUNNING;
+        }
+        Object r;
+        try {
+            if (callable != null) {
+                r = callable.call();
+            } else {
+                runnable.run();
+                r = null;
+            }
+        } catch (Exception ex) {
+            complete(STATE_FAILED, null, ex);
+            return;
+        } catch (Error err) {
+            complete(STATE_FAILED, null, err);
+            throw err;
+        }
+        complete(STATE_DONE, r, null);
+    }
+
+    /**
+     * Cancels the task; the WorkQueue dropped it.
+     */
+    public void discarded() {
+        cancel();
+    }
+
+    /**
+     * Cancel the task if it has not started yet.
+     * @return true if cancelled
+     */
+    public boolean cancel() {
+        return complete(STATE_CANCELLED, null, null);
+    }
+
+    public synchronized boolean isDone() {
+        return state >= STATE_DONE;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    /**
+     * Wait for the task and return its result.
+     * @throws ExecutionException if the task failed or was cancelled, or
+     * the wait was interrupted, leaving the interrupt status set
+     */
+    public Object get() throws ExecutionException {
+        return get(0);
+    }
+
+    /**
+     * Wait up to timeout milliseconds for the task and return its result.
+     * @param timeout milliseconds, 0 to wait forever
+     * @return result, or null if timed out; use isDone() to tell apart
+     * @throws ExecutionException if the task failed or was cancelled, or
+     * the wait was interrupted, leaving the interrupt status set
+     */
+    public synchronized Object get(int timeout) throws ExecutionException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (state < STATE_DONE) {
+            long millis = 0;
+            if (timeout != 0) {
+                millis = deadline - System.currentTimeMillis();
+                if (millis <= 0) {
+                    return null;
+                }
+            }
+            try {
+                wait(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException("Interrupted while waiting.", ex);
+            }
+        }
+        switch (state) {
+            case STATE_FAILED:
+                throw new ExecutionException("Task failed: " + cause, cause);
+            case STATE_CANCELLED:
+                throw new ExecutionException("Task cancelled.");
+            default:
+                return result;
+        }
+    }
+
+    /**
+     * Add a listener for the outcome of the task.
+     */
+    public void addListener(ProcessListener l) {
+        if (l == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (state < STATE_DONE) {
+                if (listener == null) {
+                    listener = l;
+                } else {
+                    if (moreListeners == null) {
+                        moreListeners = new ArrayList();
+                    }
+                    moreListeners.add(l);
+                }
+                return;
+            }
+        }
+        fire(l);
+    }
+
+    private boolean complete(int newState, Object r, Throwable t) {
+        ProcessListener first;
+        List more;
+        synchronized (this) {
+            if (newState == STATE_CANCELLED ? state != STATE_PENDING : state != STATE_RUNNING) {
+                return false;
+            }
+            state = newState;
+            result = r;
+            cause = t;
+            first = listener;
+            more = moreListeners;
+            listener = null;
+            moreListeners = null;
+            notifyAll();
+        }
+        if (first != null) {
+            fire(first);
+        }
+        if (more != null) {
+            for (int i = 0; i < more.size(); i++) {
+                fire((ProcessListener) more.get(i));
+            }
+        }
+        return true;
+    }
+
+    private void fire(ProcessListener l) {
+        int s;
+        synchronized (this) {
+            s = state;
+        }
+        try {
+            switch (s) {
+                case STATE_DONE:
+                    l.done(this, result);
+                    break;
+                case STATE_FAILED:
+                    l.failed(this, cause);
+                    break;
+                default:
+                    l.failed(this, CANCELLED);
+                    break;
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("[Completion] Uncaught exception in listener: " + ex);
+            ex.printStackTrace();
+        }
+    }
+}
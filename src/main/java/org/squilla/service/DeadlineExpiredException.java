@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Reason passed to ProcessListener.failed() for an item whose deadline
+ * passed before it could be processed. It carries no stack trace, so
+ * shedding a backlog stays cheap.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DeadlineExpiredException extends Exception {
+
+    private final long deadline;
+    private final long detected;
+
+    public DeadlineExpiredException(long deadline, long detected) {
+        super("Deadline expired " + (detected - deadline) + "ms ago");
+        this.deadline = deadline;
+        this.detected = detected;
+    }
+
+    /**
+     * @return the deadline, as System.currentTimeMillis()
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return milliseconds past the deadline when the item was shed
+     */
+    public long getLateness() {
+        return detected - deadline;
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import org.squilla.util.VirtualThreads;
+
+/**
+ * Creates the threads that run service loops.
+ * <p>
+ * The default backend is the platform one, unless the system property
+ * <code>org.squilla.service.backend</code> is set to <code>virtual</code>
+ * and the JVM supports virtual threads.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class ExecutionBackend {
+
+    public static final String BACKEND_PROPERTY = "org.squilla.service.backend";
+
+    private static final ExecutionBackend PLATFORM = new ExecutionBackend() {
+
+        public Thread newThread(Runnable r, String name, int priority) {
+            Thread t;
+            if (name != null) {
+                t = new Thread(r, name);
+            } else {
+                t = new Thread(r);
+            }
+            if (priority != -1) {
+                t.setPriority(priority);
+            }
+            return t;
+        }
+
+        public boolean isVirtual() {
+            return false;
+        }
+    };
+
+    private static final ExecutionBackend VIRTUAL = new ExecutionBackend() {
+
+        public Thread newThread(Runnable r, String name, int priority) {
+            // Virtual threads always run at NORM_PRIORITY.
+            return VirtualThreads.newThread(r, name);
+        }
+
+        public boolean isVirtual() {
+            return true;
+        }
+    };
+
+    private static ExecutionBackend defaultBackend;
+
+    static {
+        String s = null;
+        try {
+            s = System.getProperty(BACKEND_PROPERTY);
+        } catch (SecurityException ex) {
+        }
+        if ("virtual".equalsIgnoreCase(s) && VirtualThreads.isSupported()) {
+            defaultBackend = VIRTUAL;
+        } else {
+            defaultBackend = PLATFORM;
+        }
+    }
+
+    /**
+     * Create an unstarted thread.
+     * @param name thread name, or null
+     * @param priority thread priority, or -1 to leave it unchanged
+     */
+    public abstract Thread newThread(Runnable r, String name, int priority);
+
+    public abstract boolean isVirtual();
+
+    public static ExecutionBackend getPlatform() {
+        return PLATFORM;
+    }
+
+    /**
+     * @return the virtual thread backend, or null if not supported
+     */
+    public static ExecutionBackend getVirtual() {
+        if (!VirtualThreads.isSupported()) {
+            return null;
+        }
+        return VIRTUAL;
+    }
+
+    public static synchronized ExecutionBackend getDefault() {
+        return defaultBackend;
+    }
+
+    public static synchronized void setDefault(ExecutionBackend backend) {
+        if (backend == null) {
+            throw new NullPointerException();
+        }
+        defaultBackend = backend;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Hashed timing wheel. One thread advances the wheel every tick and hands
+ * expired tasks to a WorkQueue, so any number of pending timeouts costs a
+ * single thread. Scheduling and cancelling are O(1); expiry is accurate to
+ * one tick.
+ * <p>
+ * Without a WorkQueue, expired tasks run on the timer thread itself, which
+ * suits tasks that only flip a flag or signal a latch.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HashedWheelTimer implements Service {
+
+    public static final int DEFAULT_TICK_DURATION = 10;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private final WorkQueue executor;
+    private final long tickDuration;
+    private final ScheduledTask[] wheel;
+    private final int mask;
+    private long startTime;
+    private long tick;
+    private int pending;
+    private TickTask tickTask = null;
+
+    public HashedWheelTimer(WorkQueue executor) {
+        this(executor, DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param executor WorkQueue to run expired tasks on, or null to run them
+     * on the timer thread
+     * @param tickDuration milliseconds per tick
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(WorkQueue executor, int tickDuration, int ticksPerWheel) {
+        if (tickDuration < 1 || ticksPerWheel < 1) {
+            throw new IllegalArgumentException();
+        }
+        int n = 1;
+        while (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        this.executor = executor;
+        this.tickDuration = tickDuration;
+        wheel = new ScheduledTask[n];
+        mask = n - 1;
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Run task once after delay milliseconds.
+     */
+    public ScheduledTask schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /**
+     * Run task after initialDelay, then every period milliseconds measured
+     * from the previous scheduled time. Runs never overlap; a late run is
+     * followed by the next one as soon as it is due.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return schedule(task, initialDelay, period);
+    }
+
+    /**
+     * Run task after initialDelay, then delay milliseconds after each run
+     * completes.
+     */
+    public ScheduledTask scheduleWithFixedDelay(Runnable task, long initialDelay, long delay) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return schedule(task, initialDelay, -delay);
+    }
+
+    private ScheduledTask schedule(Runnable task, long delay, long period) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (delay < 0) {
+            delay = 0;
+        }
+        ScheduledTask st = new ScheduledTask(this, task, System.currentTimeMillis() + delay, period);
+        synchronized (this) {
+            add(st);
+        }
+        return st;
+    }
+
+    /**
+     * @return number of tasks waiting to expire
+     */
+    public synchronized int pendingTasks() {
+        return pending;
+    }
+
+    public synchronized boolean activate() {
+        if (tickTask != null) {
+            return false;
+        }
+        tickTask = new TickTask();
+        tickTask.activate();
+        return true;
+    }
+
+    /**
+     * Stop the timer thread. Pending tasks stay scheduled and expire, late,
+     * once the timer is activated again.
+     */
+    public synchronized boolean shutdown() {
+        if (tickTask == null) {
+            return false;
+        }
+        tickTask.shutdown();
+        tickTask = null;
+        return true;
+    }
+
+    synchronized boolean cancel(ScheduledTask st) {
+        switch (st.state) {
+            case ScheduledTask.STATE_WAITING:
+                remove(st);
+                st.state = ScheduledTask.STATE_CANCELLED;
+                return true;
+            case ScheduledTask.STATE_DISPATCHED:
+                st.state = ScheduledTask.STATE_CANCELLED;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called after a dispatched task ran; reschedules periodic tasks.
+     */
+    synchronized void completed(ScheduledTask st) {
+        if (st.state != ScheduledTask.STATE_DISPATCHED) {
+            return;
+        }
+        long period = st.getPeriod();
+        if (period == 0) {
+            st.state = ScheduledTask.STATE_DONE;
+            return;
+        }
+        if (period > 0) {
+            st.deadline += period;
+        } else {
+            st.deadline = System.currentTimeMillis() - period;
+        }
+        st.state = ScheduledTask.STATE_WAITING;
+        add(st);
+    }
+
+    /**
+     * Called when the executor rejected or dropped a dispatched task. A
+     * periodic task tries again next period.
+     */
+    synchronized void rejected(ScheduledTask st) {
+        if (st.getPeriod() != 0) {
+            completed(st);
+        } else if (st.state == ScheduledTask.STATE_DISPATCHED) {
+            st.state = ScheduledTask.STATE_REJECTED;
+        }
+    }
+
+    private void add(ScheduledTask st) {
+        long expireTick = (st.deadline - startTime) / tickDuration;
+        if (expireTick < tick) {
+            // Already due, expire on the next tick.
+            expireTick = tick;
+        }
+        st.rounds = (expireTick - tick) / wheel.length;
+        st.bucket = (int) (expireTick & mask);
+        st.prev = null;
+        st.next = wheel[st.bucket];
+        if (st.next != null) {
+            st.next.prev = st;
+        }
+        wheel[st.bucket] = st;
+        pending++;
+    }
+
+    private void remove(ScheduledTask st) {
+        if (st.prev != null) {
+            st.prev.next = st.next;
+        } else {
+            wheel[st.bucket] = st.next;
+        }
+        if (st.next != null) {
+            st.next.prev = st.prev;
+        }
+        st.prev = null;
+        st.next = null;
+        pending--;
+    }
+
+    /**
+     * Unlink the tasks of the current bucket that expire on this tick.
+     * @return expired tasks, chained through next
+     */
+    private synchronized ScheduledTask expireBucket() {
+        ScheduledTask expired = null;
+        ScheduledTask st = wheel[(int) (tick & mask)];
+        while (st != null) {
+            ScheduledTask next = st.next;
+            if (st.rounds <= 0) {
+                remove(st);
+                st.state = ScheduledTask.STATE_DISPATCHED;
+                st.next = expired;
+                expired = st;
+            } else {
+                st.rounds--;
+            }
+            st = next;
+        }
+        tick++;
+        return expired;
+    }
+
+    private synchronized long nextTickTime() {
+        return startTime + (tick + 1) * tickDuration;
+    }
+
+    private void dispatch(ScheduledTask expired) {
+        while (expired != null) {
+            ScheduledTask st = expired;
+            expired = st.next;
+            st.next = null;
+            if (executor == null) {
+                runOnTimer(st);
+                continue;
+            }
+            try {
+                executor.execute(st);
+            } catch (RejectedTaskException ex) {
+                rejected(st);
+            }
+        }
+    }
+
+    private void runOnTimer(ScheduledTask st) {
+        try {
+            st.run();
+        } catch (Throwable t) {
+            System.err.println("[HashedWheelTimer] Uncaught exception: " + t);
+            t.printStackTrace();
+        }
+    }
+
+    private class TickTask extends ServiceTask {
+
+        TickTask() {
+            super("HashedWheelTimer", Thread.NORM_PRIORITY);
+        }
+
+        protected void taskLoop() {
+            long sleep = nextTickTime() - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            dispatch(expireBucket());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * A key that takes a large share of a PartitionedProcessor's traffic.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HotKey {
+
+    private final Object key;
+    private final int lane;
+    private final long count;
+    private final double share;
+    private final int suggestedLane;
+
+    HotKey(Object key, int lane, long count, double share, int suggestedLane) {
+        this.key = key;
+        this.lane = lane;
+        this.count = count;
+        this.share = share;
+        this.suggestedLane = suggestedLane;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public int getLane() {
+        return lane;
+    }
+
+    /**
+     * @return estimated number of items, an upper bound
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return estimated fraction of all items submitted
+     */
+    public double getShare() {
+        return share;
+    }
+
+    /**
+     * @return least loaded lane to move the key to, or -1 if moving it would
+     * not relieve its lane, which is the case when the key alone loads the
+     * lane and has to be split instead
+     */
+    public int getSuggestedLane() {
+        return suggestedLane;
+    }
+
+    public String toString() {
+        return "HotKey[" + key + ", lane=" + lane + ", share=" + share
+                + ", suggested=" + suggestedLane + "]";
+    }
+}
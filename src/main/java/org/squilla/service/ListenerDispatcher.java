@@ -0,0 +1,334 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Delivers ProcessListener events on a small pool of threads.
+ * <p>
+ * Each listener is bound to one dispatch thread, so a listener sees its
+ * events in the order they were fired. Every thread owns a bounded ring of
+ * events; a full ring blocks the firing thread until the listener catches
+ * up. Dispatch threads take queued events in batches, and queuing an event
+ * allocates nothing.
+ * <p>
+ * Events fired while the dispatcher is not active are delivered on the
+ * calling thread. After shutdown() a dispatch thread keeps queuing events
+ * until it has delivered them all, so a listener sees no event on the
+ * calling thread ahead of an earlier queued one.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ListenerDispatcher implements Service {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    private final Lane[] lanes;
+    private final int capacity;
+    private final int batchSize;
+    private boolean active = false;
+    private ExecutionBackend backend = null;
+
+    public ListenerDispatcher(int threads) {
+        this(threads, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param threads number of dispatch threads
+     * @param capacity events each thread can hold
+     * @param batchSize events a thread takes per lock
+     */
+    public ListenerDispatcher(int threads, int capacity, int batchSize) {
+        if (threads < 1 || capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, capacity);
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    public int getThreadCount() {
+        return lanes.length;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the dispatch threads, null for the default
+     */
+    public synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+    }
+
+    public void fireDone(ProcessListener listener, Object o, Object result) {
+        laneOf(listener).put(listener, o, result, false);
+    }
+
+    public void fireFailed(ProcessListener listener, Object o, Object reason) {
+        laneOf(listener).put(listener, o, reason, true);
+    }
+
+    /**
+     * Fire one event to several listeners. With a single dispatch thread
+     * the events are queued under one lock.
+     */
+    public void fire(ProcessListener[] listeners, Object o, Object value, boolean failed) {
+        if (lanes.length == 1) {
+            lanes[0].putAll(listeners, o, value, failed);
+            return;
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            laneOf(listeners[i]).put(listeners[i], o, value, failed);
+        }
+    }
+
+    /**
+     * @return number of events waiting for delivery
+     */
+    public int pendingEvents() {
+        int n = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            synchronized (lanes[i]) {
+                n += lanes[i].count;
+            }
+        }
+        return n;
+    }
+
+    public synchronized boolean activate() {
+        if (active) {
+            return false;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].start(backend);
+        }
+        active = true;
+        return true;
+    }
+
+    /**
+     * Stop the dispatch threads once they have delivered the queued events.
+     */
+    public synchronized boolean shutdown() {
+        if (!active) {
+            return false;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].stop();
+        }
+        active = false;
+        return true;
+    }
+
+    private Lane laneOf(ProcessListener listener) {
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        int h = System.identityHashCode(listener) & 0x7fffffff;
+        return lanes[h % lanes.length];
+    }
+
+    private static void deliver(ProcessListener listener, Object o, Object value, boolean failed) {
+        try {
+            if (failed) {
+                listener.failed(o, value);
+            } else {
+                listener.done(o, value);
+            }
+        } catch (Throwable t) {
+            System.err.println("[ListenerDispatcher] Uncaught exception: " + t);
+            t.printStackTrace();
+        }
+    }
+
+    private class Lane {
+
+        private final int index;
+        private final ProcessListener[] listeners;
+        private final Object[] items;
+        private final Object[] values;
+        private final boolean[] failed;
+        private int head = 0;
+        private int count = 0;
+        private int waitingProducers = 0;
+        private boolean consumerWaiting = false;
+        private boolean stopping = false;
+        private Worker worker = null;
+
+        Lane(int index) {
+            this.index = index;
+            listeners = new ProcessListener[capacity];
+            items = new Object[capacity];
+            values = new Object[capacity];
+            failed = new boolean[capacity];
+        }
+
+        void put(ProcessListener l, Object o, Object value, boolean f) {
+            synchronized (this) {
+                if (store(l, o, value, f)) {
+                    return;
+                }
+            }
+            deliver(l, o, value, f);
+        }
+
+        void putAll(ProcessListener[] ls, Object o, Object value, boolean f) {
+            int i = 0;
+            synchronized (this) {
+                while (i < ls.length && store(ls[i], o, value, f)) {
+                    i++;
+                }
+            }
+            for (; i < ls.length; i++) {
+                deliver(ls[i], o, value, f);
+            }
+        }
+
+        /**
+         * Queue an event, waiting for space.
+         * @return false if the event has to be delivered by the caller
+         */
+        private boolean store(ProcessListener l, Object o, Object value, boolean f) {
+            while (count == capacity && worker != null) {
+                waitingProducers++;
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            if (worker == null) {
+                return false;
+            }
+            int t = (head + count) % capacity;
+            listeners[t] = l;
+            items[t] = o;
+            values[t] = value;
+            failed[t] = f;
+            count++;
+            if (consumerWaiting) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         * Start a worker, or keep the one still draining since stop().
+         */
+        synchronized void start(ExecutionBackend backend) {
+            stopping = false;
+            if (worker != null) {
+                return;
+            }
+            worker = new Worker(this);
+            worker.setBackend(backend);
+            worker.activate();
+        }
+
+        /**
+         * Let the worker exit once the lane is empty. Events are queued
+         * until then.
+         */
+        synchronized void stop() {
+            stopping = true;
+            notifyAll();
+        }
+
+        /**
+         * Called by the worker holding the lock. From now on events are
+         * delivered by the caller.
+         */
+        void exited() {
+            worker = null;
+            notifyAll();
+        }
+    }
+
+    private class Worker extends ServiceTask {
+
+        private final Lane lane;
+        private final ProcessListener[] listeners;
+        private final Object[] items;
+        private final Object[] values;
+        private final boolean[] failed;
+
+        Worker(Lane lane) {
+            super("ListenerDispatcher-" + lane.index, Thread.NORM_PRIORITY);
+            this.lane = lane;
+            listeners = new ProcessListener[batchSize];
+            items = new Object[batchSize];
+            values = new Object[batchSize];
+            failed = new boolean[batchSize];
+        }
+
+        protected void taskLoop() {
+            int n;
+            synchronized (lane) {
+                while (lane.count == 0) {
+                    if (lane.stopping) {
+                        // Drained after stop().
+                        lane.exited();
+                        shutdown(false);
+                        return;
+                    }
+                    lane.consumerWaiting = true;
+                    try {
+                        lane.wait();
+                    } catch (InterruptedException ex) {
+                        lane.exited();
+                        shutdown(false);
+                        return;
+                    } finally {
+                        lane.consumerWaiting = false;
+                    }
+                }
+                n = Math.min(lane.count, batchSize);
+                for (int i = 0; i < n; i++) {
+                    int h = lane.head;
+                    listeners[i] = lane.listeners[h];
+                    items[i] = lane.items[h];
+                    values[i] = lane.values[h];
+                    failed[i] = lane.failed[h];
+                    lane.listeners[h] = null;
+                    lane.items[h] = null;
+                    lane.values[h] = null;
+                    lane.head = (h + 1) % capacity;
+                }
+                lane.count -= n;
+                if (lane.waitingProducers != 0) {
+                    lane.notifyAll();
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                deliver(listeners[i], items[i], values[i], failed[i]);
+                listeners[i] = null;
+                items[i] = null;
+                values[i] = null;
+            }
+        }
+    }
+}
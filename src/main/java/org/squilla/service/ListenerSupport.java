@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Listener list of a processor, fired either on the calling thread or
+ * through a ListenerDispatcher.
+ * <p>
+ * Once released, non-blocking events are delivered on the calling thread
+ * rather than through a new dispatcher, until the list is opened again.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+class ListenerSupport {
+
+    private volatile ProcessListener[] listeners = new ProcessListener[0];
+    private volatile boolean nonBlocking = false;
+    private volatile ListenerDispatcher dispatcher = null;
+    private boolean ownDispatcher = false;
+    private boolean closed = false;
+    private ExecutionBackend backend = null;
+
+    synchronized void add(ProcessListener listener) {
+        ProcessListener[] ls = new ProcessListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, ls, 0, listeners.length);
+        ls[listeners.length] = listener;
+        listeners = ls;
+    }
+
+    boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    ListenerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    synchronized void setDispatcher(ListenerDispatcher dispatcher) {
+        boolean c = closed;
+        release();
+        closed = c;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param backend backend for a dispatcher created by this list
+     */
+    synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Notify the listeners. On the calling thread, an exception thrown by a
+     * listener propagates to the caller.
+     */
+    void fire(Object o, Object value, boolean failed) {
+        ProcessListener[] ls = listeners;
+        if (ls.length == 0) {
+            return;
+        }
+        if (nonBlocking) {
+            ListenerDispatcher d = dispatcher;
+            if (d == null) {
+                d = createDispatcher();
+            }
+            if (d != null) {
+                d.fire(ls, o, value, failed);
+                return;
+            }
+            // Released; isolate the caller as the dispatcher would.
+            for (int i = 0; i < ls.length; i++) {
+                try {
+                    if (failed) {
+                        ls[i].failed(o, value);
+                    } else {
+                        ls[i].done(o, value);
+                    }
+                } catch (Throwable t) {
+                    System.err.println("[ListenerSupport] Uncaught exception: " + t);
+                    t.printStackTrace();
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < ls.length; i++) {
+            if (failed) {
+                ls[i].failed(o, value);
+            } else {
+                ls[i].done(o, value);
+            }
+        }
+    }
+
+    /**
+     * @return the dispatcher, or null if released
+     */
+    private synchronized ListenerDispatcher createDispatcher() {
+        if (dispatcher == null && !closed) {
+            dispatcher = new ListenerDispatcher(1);
+            dispatcher.setBackend(backend);
+            dispatcher.activate();
+            ownDispatcher = true;
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Allow a dispatcher to be created again after release().
+     */
+    synchronized void open() {
+        closed = false;
+    }
+
+    /**
+     * Shut down the dispatcher if it was created by this list, and create
+     * no other until opened again.
+     */
+    synchronized void release() {
+        closed = true;
+        if (ownDispatcher) {
+            dispatcher.shutdown();
+            dispatcher = null;
+            ownDispatcher = false;
+        }
+    }
+}
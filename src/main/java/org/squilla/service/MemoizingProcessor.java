@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Processor that memoizes the results of another, for processing that is a
+ * pure function of its input. An item equal to one already processed is
+ * answered from a ResultCache without reaching the wrapped processor, and
+ * equal items in flight at the same time share one processing.
+ * <p>
+ * The wrapped processor must be fed only through this one and report
+ * done(o, result) or failed(o, reason) with the item given to its
+ * process(), as AbstractProcessor, ParallelProcessor, BatchingProcessor and
+ * PartitionedProcessor do. Listeners are notified on the thread calling
+ * process() for a hit, and as the wrapped processor notifies otherwise.
+ * <p>
+ * Items that arrive while an equal one is processed with a result since
+ * invalidated are processed again once it completes. They are passed to
+ * the wrapped processor by a thread of this processor, never by the
+ * thread notifying the completion, which may be the one that has to free
+ * space in the wrapped processor's queue.
+ * <pre>
+ * Processor p = new MemoizingProcessor(new ParallelProcessor(4, 64) {
+ *     protected Object processNext(Object o) {
+ *         return render(o);
+ *     }
+ * }, 1024);
+ * </pre>
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class MemoizingProcessor implements Processor {
+
+    private static final Stage NO_LOADER = new Stage() {
+
+        public Object processNext(Object o) {
+            throw new UnsupportedOperationException("Loaded by MemoizingProcessor");
+        }
+    };
+    private final Processor processor;
+    private final ResultCache cache;
+    private final ListenerSupport listeners = new ListenerSupport();
+    // Guarded by this.
+    private final Map flights = new HashMap();
+    /** Items whose flights restart after an invalidation. Guarded by itself. */
+    private final List resubmits = new ArrayList();
+    private Resubmitter resubmitter = null;
+
+    public MemoizingProcessor(Processor processor, int cacheSize) {
+        this(processor, cacheSize, 0);
+    }
+
+    /**
+     * @param processor processor computing the results
+     * @param cacheSize most results kept
+     * @param protectedSize protected segment of the cache, 0 for plain LRU
+     */
+    public MemoizingProcessor(Processor processor, int cacheSize, int protectedSize) {
+        if (processor == null) {
+            throw new NullPointerException();
+        }
+        this.processor = processor;
+        cache = new ResultCache(NO_LOADER, cacheSize, protectedSize);
+        processor.addListener(new ProcessListener() {
+
+            public void done(Object o, Object result) {
+                completed(o, result, false);
+            }
+
+            public void failed(Object o, Object reason) {
+                completed(o, reason, true);
+            }
+        });
+    }
+
+    public Processor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * @return the cache, for its statistics, time-to-live and invalidation;
+     * results are put by this processor, not loaded by get()
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Answer o from the cache, join the processing of an equal item, or
+     * pass o to the wrapped processor.
+     */
+    public void process(Object o) {
+        Object value;
+        Flight f;
+        synchronized (this) {
+            value = cache.lookup(o);
+            if (value != ResultCache.MISSING) {
+                f = null;
+            } else {
+                f = (Flight) flights.get(o);
+                if (f != null) {
+                    if (cache.isCurrent(o, f.token)) {
+                        cache.joined();
+                        f.items.add(o);
+                    } else {
+                        // Invalidated in flight; processed again after.
+                        if (f.retry == null) {
+                            f.retry = new ArrayList(2);
+                        }
+                        f.retry.add(o);
+                    }
+                    return;
+                }
+                f = new Flight(cache.startLoad(o), new ArrayList(2));
+                f.items.add(o);
+                flights.put(o, f);
+            }
+        }
+        if (f == null) {
+            listeners.fire(o, value, false);
+            return;
+        }
+        try {
+            processor.process(o);
+        } catch (RuntimeException ex) {
+            List joined = abort(o);
+            for (int i = 1; i < joined.size(); i++) {
+                listeners.fire(joined.get(i), ex, true);
+            }
+            throw ex;
+        }
+    }
+
+    public void addListener(ProcessListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized boolean activate() {
+        if (!processor.activate()) {
+            return false;
+        }
+        listeners.open();
+        resubmitter = new Resubmitter();
+        resubmitter.activate();
+        return true;
+    }
+
+    /**
+     * Shut down the wrapped processor. Items still waiting to be processed
+     * again after an invalidation fail with a RejectedTaskException.
+     */
+    public synchronized boolean shutdown() {
+        if (resubmitter != null) {
+            synchronized (resubmits) {
+                resubmitter.shutdown();
+                resubmits.notifyAll();
+            }
+            resubmitter = null;
+        }
+        Object[] left;
+        synchronized (resubmits) {
+            left = resubmits.toArray();
+            resubmits.clear();
+        }
+        for (int i = 0; i < left.length; i++) {
+            List items = abort(left[i]);
+            RejectedTaskException ex = new RejectedTaskException("Processor is shut down.");
+            for (int j = 0; j < items.size(); j++) {
+                listeners.fire(items.get(j), ex, true);
+            }
+        }
+        listeners.release();
+        return processor.shutdown();
+    }
+
+    private void completed(Object o, Object value, boolean failed) {
+        Flight f;
+        Flight next = null;
+        synchronized (this) {
+            f = (Flight) flights.remove(o);
+            if (f == null) {
+                return;
+            }
+            cache.loaded(o, f.token, value, !failed);
+            if (f.retry != null) {
+                next = new Flight(cache.startLoad(o), f.retry);
+                flights.put(o, next);
+            }
+        }
+        for (int i = 0; i < f.items.size(); i++) {
+            listeners.fire(f.items.get(i), value, failed);
+        }
+        if (next == null) {
+            return;
+        }
+        synchronized (resubmits) {
+            resubmits.add(next.items.get(0));
+            resubmits.notifyAll();
+        }
+    }
+
+    private void resubmit(Object first) {
+        try {
+            processor.process(first);
+        } catch (RuntimeException ex) {
+            List items = abort(first);
+            for (int i = 0; i < items.size(); i++) {
+                listeners.fire(items.get(i), ex, true);
+            }
+        }
+    }
+
+    /**
+     * @return items of the flight of o, which the wrapped processor refused
+     */
+    private List abort(Object o) {
+        Flight f;
+        synchronized (this) {
+            f = (Flight) flights.remove(o);
+            cache.loaded(o, f.token, null, false);
+        }
+        if (f.retry != null) {
+            f.items.addAll(f.retry);
+        }
+        return f.items;
+    }
+
+    /**
+     * Passes restarted flights to the wrapped processor, which may block.
+     */
+    private class Resubmitter extends ServiceTask {
+
+        Resubmitter() {
+            super("MemoizingProcessor", Thread.NORM_PRIORITY);
+        }
+
+        protected void taskLoop() {
+            Object o;
+            synchronized (resubmits) {
+                while (resubmits.isEmpty()) {
+                    if (isShutdownRequested()) {
+                        return;
+                    }
+                    try {
+                        resubmits.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                o = resubmits.remove(0);
+            }
+            resubmit(o);
+        }
+    }
+
+    /**
+     * A processing in flight and the items waiting for its result.
+     */
+    private static class Flight {
+
+        final Object token;
+        final List items;
+        List retry;
+
+        Flight(Object token, List items) {
+            this.token = token;
+            this.items = items;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Processor that runs processNext() on several threads, yet notifies its
+ * listeners in the order the items were submitted.
+ * <p>
+ * Every item gets a sequence number and a slot in a ring of reorder-window
+ * slots. Workers take the oldest unclaimed slot, and a finished result
+ * waits in its slot until all earlier ones are delivered. The window
+ * bounds the items between the oldest undelivered one and the newest
+ * submitted one; process() blocks while it is full, so one slow item holds
+ * back at most a window of later ones.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class ParallelProcessor implements Processor {
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_DONE = 3;
+    private static final int STATE_FAILED = 4;
+    private final Object lock = new Object();
+    private final int workerCount;
+    private final int window;
+    private final int mask;
+    private final Object[] items;
+    private final Object[] results;
+    private final int[] states;
+    // Sequence numbers wrap; only their differences are compared.
+    private int head = 0;
+    private int claim = 0;
+    private int tail = 0;
+    private boolean delivering = false;
+    private int waitingProducers = 0;
+    private int idleWorkers = 0;
+    private final ListenerSupport listeners = new ListenerSupport();
+    private ExecutionBackend backend = null;
+    private Worker[] workers = null;
+    private volatile boolean draining = false;
+
+    /**
+     * @param workerCount number of threads running processNext()
+     * @param window maximum items between the oldest undelivered one and
+     * the newest submitted one
+     */
+    public ParallelProcessor(int workerCount, int window) {
+        if (workerCount < 1 || window < 1) {
+            throw new IllegalArgumentException();
+        }
+        int n = 1;
+        while (n < window) {
+            n <<= 1;
+        }
+        this.workerCount = workerCount;
+        this.window = window;
+        mask = n - 1;
+        items = new Object[n];
+        results = new Object[n];
+        states = new int[n];
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Submit an item, waiting while the reorder window is full.
+     * @throws RejectedTaskException if shutting down or shut down
+     */
+    public void process(Object o) {
+        if (o == null) {
+            throw new NullPointerException();
+        }
+        synchronized (lock) {
+            while (tail - head >= window && !draining) {
+                waitingProducers++;
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedTaskException("Interrupted while waiting for the window.");
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            if (draining) {
+                throw new RejectedTaskException("Processor is shutting down.");
+            }
+            int i = tail & mask;
+            items[i] = o;
+            states[i] = STATE_QUEUED;
+            tail++;
+            if (idleWorkers != 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return items submitted and not yet delivered
+     */
+    public int pendingItems() {
+        synchronized (lock) {
+            return tail - head;
+        }
+    }
+
+    public void addListener(ProcessListener listener) {
+        listeners.add(listener);
+    }
+
+    public ListenerDispatcher getListenerDispatcher() {
+        return listeners.getDispatcher();
+    }
+
+    /**
+     * @see AbstractProcessor#setListenerDispatcher(ListenerDispatcher)
+     */
+    public void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        listeners.setDispatcher(dispatcher);
+    }
+
+    public boolean isNonBlockingFire() {
+        return listeners.isNonBlocking();
+    }
+
+    /**
+     * @param nonBlockingFire true to notify listeners through a
+     * ListenerDispatcher rather than on the worker that delivers in order
+     */
+    public void setNonBlockingFire(boolean nonBlockingFire) {
+        listeners.setNonBlocking(nonBlockingFire);
+    }
+
+    public synchronized ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the workers, null for the default
+     */
+    public synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+        listeners.setBackend(backend);
+    }
+
+    public synchronized boolean activate() {
+        if (workers != null) {
+            return false;
+        }
+        listeners.open();
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+            workers[i].setBackend(backend);
+            workers[i].activate();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the workers. Items submitted from now on are rejected.
+     */
+    public synchronized boolean shutdown() {
+        if (workers == null) {
+            return false;
+        }
+        synchronized (lock) {
+            draining = true;
+            lock.notifyAll();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].shutdown();
+        }
+        listeners.release();
+        return true;
+    }
+
+    /**
+     * Stop accepting items, process and deliver the submitted ones for up
+     * to timeout milliseconds, then shut down.
+     * @param timeout milliseconds, 0 to wait until all are delivered
+     * @return items that no worker had started at the deadline
+     */
+    public Object[] shutdownGracefully(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean active;
+        synchronized (this) {
+            active = workers != null;
+        }
+        Object[] left;
+        synchronized (lock) {
+            draining = true;
+            lock.notifyAll();
+            while (active && (head != tail || delivering)) {
+                long millis = 0;
+                if (timeout != 0) {
+                    millis = deadline - System.currentTimeMillis();
+                    if (millis <= 0) {
+                        break;
+                    }
+                }
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+            left = new Object[tail - claim];
+            while (claim != tail) {
+                int i = (tail - 1) & mask;
+                left[tail - claim - 1] = items[i];
+                items[i] = null;
+                states[i] = STATE_EMPTY;
+                tail--;
+            }
+        }
+        shutdown();
+        return left;
+    }
+
+    /**
+     * Wait for the workers to end after shutdown.
+     * @param timeout milliseconds, 0 to wait forever
+     */
+    public boolean awaitTermination(int timeout) {
+        Worker[] ws;
+        synchronized (this) {
+            ws = workers;
+        }
+        if (ws == null) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < ws.length; i++) {
+            int millis = 0;
+            if (timeout != 0) {
+                millis = (int) (deadline - System.currentTimeMillis());
+                if (millis <= 0) {
+                    millis = 1;
+                }
+            }
+            if (!ws[i].awaitTermination(millis)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called concurrently on the worker threads.
+     */
+    protected abstract Object processNext(Object o) throws Exception;
+
+    /**
+     * Deliver finished results from the head of the window, in order. Only
+     * one thread delivers at a time; the others leave their results in
+     * their slots.
+     */
+    private void deliver() {
+        synchronized (lock) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+        while (true) {
+            Object o;
+            Object result;
+            boolean failed;
+            synchronized (lock) {
+                int i = head & mask;
+                if (head == claim || states[i] < STATE_DONE) {
+                    delivering = false;
+                    if (draining) {
+                        lock.notifyAll();
+                    }
+                    return;
+                }
+                o = items[i];
+                result = results[i];
+                failed = states[i] == STATE_FAILED;
+                items[i] = null;
+                results[i] = null;
+                states[i] = STATE_EMPTY;
+                head++;
+                if (waitingProducers != 0 || draining) {
+                    lock.notifyAll();
+                }
+            }
+            try {
+                listeners.fire(o, result, failed);
+            } catch (Throwable t) {
+                System.err.println("[ParallelProcessor] Uncaught exception: " + t);
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private class Worker extends ServiceTask {
+
+        Worker(int index) {
+            super("ParallelProcessor-" + index, Thread.NORM_PRIORITY);
+        }
+
+        protected void taskLoop() {
+            int seq;
+            Object o;
+            synchronized (lock) {
+                while (claim == tail) {
+                    if (isShutdownRequested()) {
+                        return;
+                    }
+                    idleWorkers++;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    } finally {
+                        idleWorkers--;
+                    }
+                }
+                seq = claim++;
+                states[seq & mask] = STATE_RUNNING;
+                o = items[seq & mask];
+            }
+            Object result;
+            try {
+                result = processNext(o);
+            } catch (Exception ex) {
+                finish(seq, ex, STATE_FAILED);
+                return;
+            } catch (Error err) {
+                // Fail the item before the error escapes, or its slot would
+                // hold back the window forever.
+                finish(seq, err, STATE_FAILED);
+                throw err;
+            }
+            finish(seq, result, STATE_DONE);
+        }
+
+        private void finish(int seq, Object result, int state) {
+            synchronized (lock) {
+                results[seq & mask] = result;
+                states[seq & mask] = state;
+                if (seq != head) {
+                    return;
+                }
+            }
+            deliver();
+        }
+    }
+}
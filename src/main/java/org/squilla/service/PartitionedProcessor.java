@@ -0,0 +1,452 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.squilla.util.ArrayFifoQueue;
+import org.squilla.util.BlockingFifoQueue;
+
+/**
+ * Processor that hashes the key of each item to one of several lanes, each
+ * a bounded queue served by a single thread. Items with equal keys are
+ * processed and reported in submission order; different keys run in
+ * parallel.
+ * <p>
+ * Listeners are notified on the lane threads, so they must be thread-safe
+ * unless nonBlockingFire is set.
+ * <p>
+ * With hot key tracking on, each lane counts its most frequent keys, in a
+ * small space-saving table, and getHotKeys() reports the keys that take
+ * more than their share of the traffic, with a lane to move each to when
+ * that would relieve its own.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class PartitionedProcessor implements Processor {
+
+    public static final int HOT_KEY_SLOTS = 8;
+    /** Queued by shutdownGracefully() behind the remaining items. */
+    private static final Object STOP = new Object();
+    private final Lane[] lanes;
+    private final ListenerSupport listeners = new ListenerSupport();
+    private ExecutionBackend backend = null;
+    private boolean active = false;
+    private volatile boolean draining = false;
+    private volatile boolean hotKeyTracking = false;
+    private double hotKeyShare;
+
+    /**
+     * @param laneCount number of lanes and threads
+     * @param laneSize capacity of each lane's queue
+     */
+    public PartitionedProcessor(int laneCount, int laneSize) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException();
+        }
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, laneSize);
+        }
+        hotKeyShare = Math.min(1.0, 2.0 / laneCount);
+    }
+
+    /**
+     * @return the key that decides the lane of o; equal keys share a lane
+     */
+    protected abstract Object keyOf(Object o);
+
+    /**
+     * Called on the lane thread of o.
+     */
+    protected abstract Object processNext(Object o) throws Exception;
+
+    /**
+     * Queue o on the lane of its key, waiting while the lane is full.
+     * @throws RejectedTaskException if shutting down
+     */
+    public void process(Object o) {
+        if (draining) {
+            throw new RejectedTaskException("Processor is shutting down.");
+        }
+        Object key = keyOf(o);
+        Lane lane = lanes[laneOf(key)];
+        lane.count(key);
+        lane.queue.blockingEnqueue(o);
+    }
+
+    /**
+     * @return lane of the given key
+     */
+    public int laneOf(Object key) {
+        if (lanes.length == 1 || key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        // Spread the bits, so keys differing only high up still scatter.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & 0x7fffffff) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getLaneDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /**
+     * @return current depth of every lane
+     */
+    public int[] getLaneDepths() {
+        int[] d = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            d[i] = lanes[i].queue.size();
+        }
+        return d;
+    }
+
+    /**
+     * @return highest depth the lane has reached since the last reset
+     */
+    public int getPeakLaneDepth(int lane) {
+        Lane l = lanes[lane];
+        synchronized (l) {
+            return l.peakDepth;
+        }
+    }
+
+    /**
+     * @return items submitted to the lane since the last reset
+     */
+    public long getSubmittedCount(int lane) {
+        Lane l = lanes[lane];
+        synchronized (l) {
+            return l.submitted;
+        }
+    }
+
+    public boolean isHotKeyTracking() {
+        return hotKeyTracking;
+    }
+
+    /**
+     * @param hotKeyTracking true to count the most frequent keys per lane
+     */
+    public void setHotKeyTracking(boolean hotKeyTracking) {
+        this.hotKeyTracking = hotKeyTracking;
+    }
+
+    public synchronized double getHotKeyShare() {
+        return hotKeyShare;
+    }
+
+    /**
+     * @param share fraction of all items above which a key is reported by
+     * getHotKeys(); defaults to twice the fair share of one lane
+     */
+    public synchronized void setHotKeyShare(double share) {
+        if (share <= 0 || share > 1) {
+            throw new IllegalArgumentException();
+        }
+        hotKeyShare = share;
+    }
+
+    /**
+     * @return keys above the hot key share, with the lane each could move
+     * to; empty unless hot key tracking is on
+     */
+    public HotKey[] getHotKeys() {
+        long total = 0;
+        long[] submitted = new long[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            synchronized (lanes[i]) {
+                submitted[i] = lanes[i].submitted;
+            }
+            total += submitted[i];
+        }
+        if (total == 0) {
+            return new HotKey[0];
+        }
+        int coolest = 0;
+        for (int i = 1; i < lanes.length; i++) {
+            if (submitted[i] < submitted[coolest]) {
+                coolest = i;
+            }
+        }
+        double threshold = getHotKeyShare();
+        List hot = new ArrayList();
+        for (int i = 0; i < lanes.length; i++) {
+            Lane l = lanes[i];
+            synchronized (l) {
+                for (int j = 0; j < l.hotCount; j++) {
+                    double share = (double) l.hotCounts[j] / total;
+                    if (share < threshold) {
+                        continue;
+                    }
+                    // Moving the key only helps if the coolest lane, with
+                    // the key added, stays below the key's lane as it is
+                    // now; otherwise the peak just moves there.
+                    int suggested = -1;
+                    if (coolest != i && submitted[coolest] + l.hotCounts[j] < submitted[i]) {
+                        suggested = coolest;
+                    }
+                    hot.add(new HotKey(l.hotKeys[j], i, l.hotCounts[j], share, suggested));
+                }
+            }
+        }
+        HotKey[] a = new HotKey[hot.size()];
+        hot.toArray(a);
+        return a;
+    }
+
+    public void resetStatistics() {
+        for (int i = 0; i < lanes.length; i++) {
+            Lane l = lanes[i];
+            synchronized (l) {
+                l.submitted = 0;
+                l.peakDepth = 0;
+                for (int j = 0; j < l.hotCount; j++) {
+                    l.hotKeys[j] = null;
+                    l.hotCounts[j] = 0;
+                }
+                l.hotCount = 0;
+            }
+        }
+    }
+
+    public void addListener(ProcessListener listener) {
+        listeners.add(listener);
+    }
+
+    public ListenerDispatcher getListenerDispatcher() {
+        return listeners.getDispatcher();
+    }
+
+    /**
+     * @see AbstractProcessor#setListenerDispatcher(ListenerDispatcher)
+     */
+    public void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        listeners.setDispatcher(dispatcher);
+    }
+
+    public boolean isNonBlockingFire() {
+        return listeners.isNonBlocking();
+    }
+
+    public void setNonBlockingFire(boolean nonBlockingFire) {
+        listeners.setNonBlocking(nonBlockingFire);
+    }
+
+    public synchronized ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the lane threads, null for the default
+     */
+    public synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+        listeners.setBackend(backend);
+    }
+
+    public synchronized boolean activate() {
+        if (active) {
+            return false;
+        }
+        listeners.open();
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].task = new LaneTask(lanes[i]);
+            lanes[i].task.setBackend(backend);
+            lanes[i].task.activate();
+        }
+        active = true;
+        return true;
+    }
+
+    public synchronized boolean shutdown() {
+        if (!active) {
+            return false;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].task.shutdown();
+        }
+        listeners.release();
+        active = false;
+        return true;
+    }
+
+    /**
+     * Stop accepting items, process the queued ones for up to timeout
+     * milliseconds, then shut down.
+     * @param timeout milliseconds, 0 to wait until all lanes are empty
+     * @return items that were still queued at the deadline
+     */
+    public Object[] shutdownGracefully(int timeout) {
+        synchronized (this) {
+            if (draining) {
+                return new Object[0];
+            }
+            draining = true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean[] stopped = new boolean[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            long millis = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            stopped[i] = millis >= 0 && lanes[i].queue.blockingEnqueue(STOP, (int) millis);
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            long millis = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (!stopped[i] || millis < 0) {
+                continue;
+            }
+            LaneTask t;
+            synchronized (this) {
+                t = lanes[i].task;
+            }
+            if (t != null) {
+                t.awaitTermination(millis == 0 && timeout != 0 ? 1 : (int) millis);
+            }
+        }
+        List left = new ArrayList();
+        for (int i = 0; i < lanes.length; i++) {
+            Object[] objs = lanes[i].queue.drainAll();
+            for (int j = 0; j < objs.length; j++) {
+                if (objs[j] != STOP) {
+                    left.add(objs[j]);
+                }
+            }
+        }
+        shutdown();
+        return left.toArray();
+    }
+
+    /**
+     * Wait for the lane threads to end after shutdown.
+     * @param timeout milliseconds, 0 to wait forever
+     */
+    public boolean awaitTermination(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < lanes.length; i++) {
+            LaneTask t;
+            synchronized (this) {
+                t = lanes[i].task;
+            }
+            if (t == null) {
+                continue;
+            }
+            int millis = 0;
+            if (timeout != 0) {
+                millis = (int) (deadline - System.currentTimeMillis());
+                if (millis <= 0) {
+                    millis = 1;
+                }
+            }
+            if (!t.awaitTermination(millis)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Lane {
+
+        final int index;
+        final BlockingFifoQueue queue;
+        final int size;
+        LaneTask task;
+        // Guarded by this.
+        long submitted;
+        int peakDepth;
+        final Object[] hotKeys = new Object[HOT_KEY_SLOTS];
+        final long[] hotCounts = new long[HOT_KEY_SLOTS];
+        int hotCount;
+
+        Lane(int index, int size) {
+            this.index = index;
+            this.size = size;
+            queue = new ArrayFifoQueue(size);
+        }
+
+        synchronized void count(Object key) {
+            submitted++;
+            int depth = Math.min(queue.size() + 1, size);
+            if (depth > peakDepth) {
+                peakDepth = depth;
+            }
+            if (!hotKeyTracking || key == null) {
+                return;
+            }
+            // Space-saving: a new key evicts the least counted one and
+            // inherits its count, keeping counts an upper bound.
+            int min = 0;
+            for (int i = 0; i < hotCount; i++) {
+                if (key.equals(hotKeys[i])) {
+                    hotCounts[i]++;
+                    return;
+                }
+                if (hotCounts[i] < hotCounts[min]) {
+                    min = i;
+                }
+            }
+            if (hotCount < hotKeys.length) {
+                hotKeys[hotCount] = key;
+                hotCounts[hotCount++] = 1;
+            } else {
+                hotKeys[min] = key;
+                hotCounts[min]++;
+            }
+        }
+    }
+
+    private class LaneTask extends ServiceTask {
+
+        private final Lane lane;
+
+        LaneTask(Lane lane) {
+            super("PartitionedProcessor-" + lane.index, Thread.NORM_PRIORITY);
+            this.lane = lane;
+        }
+
+        protected void taskLoop() {
+            Object o = lane.queue.blockingDequeue();
+            if (o == null) {
+                return;
+            }
+            if (o == STOP) {
+                shutdown(false);
+                return;
+            }
+            Object result;
+            boolean failed;
+            try {
+                result = processNext(o);
+                failed = false;
+            } catch (Exception ex) {
+                result = ex;
+                failed = true;
+            }
+            try {
+                listeners.fire(o, result, failed);
+            } catch (Exception ex) {
+                System.err.println("[PartitionedProcessor] Uncaught exception: " + ex);
+                ex.printStackTrace();
+            }
+        }
+    }
+}
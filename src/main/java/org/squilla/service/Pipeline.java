@@ -0,0 +1,518 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.squilla.util.ArrayFifoQueue;
+import org.squilla.util.BlockingFifoQueue;
+import org.squilla.util.Clock;
+
+/**
+ * Linear chain of stages, each fed by a bounded queue and run by threads
+ * of its own. A full queue blocks the stage before it, so the slowest
+ * stage sets the pace without unbounded buffering.
+ * <p>
+ * Stages added without threads are cheap ones: they are fused onto the
+ * thread of the stage before them, or of the first threaded stage if they
+ * lead the pipeline, and cost no queue hand-off. A stage with one thread
+ * keeps the order of its items.
+ * <p>
+ * Listeners are notified with done(o, result) when an item leaves the last
+ * stage, o being the input of that stage, and with failed(o, reason) when
+ * a stage throws, o being the input of the failing stage. A stage that
+ * returns null drops its item silently.
+ * <p>
+ * Every stage counts its items and samples its queue depth. Busy time is
+ * measured only while setInstrumented(true), as it reads the clock twice
+ * per item.
+ * <pre>
+ * Pipeline p = new Pipeline.Builder()
+ *         .stage("decode", decoder)
+ *         .stage("lookup", lookup, 4, 256)
+ *         .stage("write", writer, 1, 64)
+ *         .build();
+ * </pre>
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class Pipeline implements Processor {
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    /** Queued by shutdownGracefully() behind the remaining items. */
+    private static final Object STOP = new Object();
+    private final StageEntry[] stages;
+    private final Group[] groups;
+    private final ListenerSupport listeners = new ListenerSupport();
+    private ExecutionBackend backend = null;
+    private boolean active = false;
+    private volatile boolean draining = false;
+    private volatile boolean instrumented = false;
+    private long statsStart;
+
+    private Pipeline(StageEntry[] stages, Group[] groups) {
+        this.stages = stages;
+        this.groups = groups;
+        statsStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Feed an item to the first stage, waiting while its queue is full.
+     * @throws RejectedTaskException if shutting down
+     */
+    public void process(Object o) {
+        if (draining) {
+            throw new RejectedTaskException("Pipeline is shutting down.");
+        }
+        groups[0].queue.blockingEnqueue(o);
+    }
+
+    public void addListener(ProcessListener listener) {
+        listeners.add(listener);
+    }
+
+    public ListenerDispatcher getListenerDispatcher() {
+        return listeners.getDispatcher();
+    }
+
+    /**
+     * @see AbstractProcessor#setListenerDispatcher(ListenerDispatcher)
+     */
+    public void setListenerDispatcher(ListenerDispatcher dispatcher) {
+        listeners.setDispatcher(dispatcher);
+    }
+
+    public boolean isNonBlockingFire() {
+        return listeners.isNonBlocking();
+    }
+
+    public void setNonBlockingFire(boolean nonBlockingFire) {
+        listeners.setNonBlocking(nonBlockingFire);
+    }
+
+    public synchronized ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the stage threads, null for the default
+     */
+    public synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+        listeners.setBackend(backend);
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public synchronized boolean activate() {
+        if (active) {
+            return false;
+        }
+        listeners.open();
+        for (int i = 0; i < groups.length; i++) {
+            groups[i].start(backend);
+        }
+        resetStatistics();
+        active = true;
+        return true;
+    }
+
+    public synchronized boolean shutdown() {
+        if (!active) {
+            return false;
+        }
+        for (int i = 0; i < groups.length; i++) {
+            groups[i].stop();
+        }
+        listeners.release();
+        active = false;
+        return true;
+    }
+
+    /**
+     * Stop accepting items and let every stage finish what is queued, in
+     * stage order, for up to timeout milliseconds; then shut down.
+     * @param timeout milliseconds, 0 to wait until all stages are empty
+     * @return items still queued in any stage at the deadline
+     */
+    public Object[] shutdownGracefully(int timeout) {
+        synchronized (this) {
+            if (draining) {
+                return new Object[0];
+            }
+            draining = true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean timedOut = false;
+        for (int i = 0; i < groups.length && !timedOut; i++) {
+            timedOut = !groups[i].drain(deadline, timeout);
+        }
+        List left = new ArrayList();
+        for (int i = 0; i < groups.length; i++) {
+            Object[] objs = groups[i].queue.drainAll();
+            for (int j = 0; j < objs.length; j++) {
+                if (objs[j] != STOP) {
+                    left.add(objs[j]);
+                }
+            }
+        }
+        shutdown();
+        return left.toArray();
+    }
+
+    /**
+     * Wait for the stage threads to end after shutdown.
+     * @param timeout milliseconds, 0 to wait forever
+     */
+    public boolean awaitTermination(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < groups.length; i++) {
+            if (!groups[i].await(deadline, timeout)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * Turn busy-time measurement on or off. Turning it on resets the
+     * statistics.
+     */
+    public void setInstrumented(boolean instrumented) {
+        if (instrumented && !this.instrumented) {
+            resetStatistics();
+        }
+        this.instrumented = instrumented;
+    }
+
+    /**
+     * @return one snapshot per stage, in pipeline order
+     */
+    public StageStatistics[] getStatistics() {
+        long now = System.currentTimeMillis();
+        long elapsed;
+        synchronized (this) {
+            elapsed = now - statsStart;
+        }
+        StageStatistics[] s = new StageStatistics[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            StageEntry e = stages[i];
+            Group g = e.group;
+            int depth = g.queue.size();
+            int peak;
+            double average;
+            synchronized (g) {
+                peak = g.peakDepth;
+                average = g.depthSamples == 0 ? depth : (double) g.depthSum / g.depthSamples;
+                s[i] = new StageStatistics(e.name, e.fused, g.threads, elapsed,
+                        g.processed[e.position], g.failed[e.position], g.busyNanos,
+                        depth, g.capacity, peak, average);
+            }
+        }
+        return s;
+    }
+
+    public void resetStatistics() {
+        synchronized (this) {
+            statsStart = System.currentTimeMillis();
+        }
+        for (int i = 0; i < groups.length; i++) {
+            synchronized (groups[i]) {
+                for (int j = 0; j < groups[i].entries.length; j++) {
+                    groups[i].processed[j] = 0;
+                    groups[i].failed[j] = 0;
+                }
+                groups[i].busyNanos = 0;
+                groups[i].peakDepth = 0;
+                groups[i].depthSum = 0;
+                groups[i].depthSamples = 0;
+            }
+        }
+    }
+
+    private void fire(Object o, Object value, boolean failed) {
+        try {
+            listeners.fire(o, value, failed);
+        } catch (Exception ex) {
+            System.err.println("[Pipeline] Uncaught exception: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Builds a Pipeline, stages in the order they are added.
+     */
+    public static class Builder {
+
+        private final List entries = new ArrayList();
+        private final List groups = new ArrayList();
+        private final List leading = new ArrayList();
+
+        /**
+         * Add a cheap stage, fused onto the thread of the previous stage.
+         */
+        public Builder stage(String name, Stage stage) {
+            StageEntry e = new StageEntry(name, stage, true);
+            entries.add(e);
+            if (groups.isEmpty()) {
+                leading.add(e);
+            } else {
+                ((Group) groups.get(groups.size() - 1)).add(e);
+            }
+            return this;
+        }
+
+        /**
+         * Add a stage with its own queue and threads.
+         */
+        public Builder stage(String name, Stage stage, int threads, int queueSize) {
+            if (threads < 1 || queueSize < 1) {
+                throw new IllegalArgumentException();
+            }
+            StageEntry e = new StageEntry(name, stage, false);
+            entries.add(e);
+            Group g = new Group(groups.size(), threads, queueSize);
+            for (int i = 0; i < leading.size(); i++) {
+                g.add((StageEntry) leading.get(i));
+            }
+            leading.clear();
+            g.add(e);
+            groups.add(g);
+            return this;
+        }
+
+        public Pipeline build() {
+            if (entries.isEmpty()) {
+                throw new IllegalStateException("No stage");
+            }
+            if (groups.isEmpty()) {
+                // Only cheap stages; run them on one thread.
+                Group g = new Group(0, 1, DEFAULT_QUEUE_SIZE);
+                for (int i = 0; i < leading.size(); i++) {
+                    g.add((StageEntry) leading.get(i));
+                }
+                leading.clear();
+                groups.add(g);
+            }
+            StageEntry[] s = new StageEntry[entries.size()];
+            entries.toArray(s);
+            Group[] g = new Group[groups.size()];
+            groups.toArray(g);
+            Pipeline p = new Pipeline(s, g);
+            for (int i = 0; i < g.length; i++) {
+                g[i].pipeline = p;
+                g[i].next = i + 1 < g.length ? g[i + 1] : null;
+            }
+            entries.clear();
+            groups.clear();
+            return p;
+        }
+    }
+
+    private static class StageEntry {
+
+        final String name;
+        final Stage stage;
+        final boolean fused;
+        Group group;
+        int position;
+
+        StageEntry(String name, Stage stage, boolean fused) {
+            if (stage == null) {
+                throw new NullPointerException();
+            }
+            this.name = name;
+            this.stage = stage;
+            this.fused = fused;
+        }
+    }
+
+    /**
+     * A threaded stage and the cheap stages fused onto it.
+     */
+    private static class Group {
+
+        final int index;
+        final int threads;
+        final int capacity;
+        final BlockingFifoQueue queue;
+        StageEntry[] entries = new StageEntry[0];
+        Pipeline pipeline;
+        Group next;
+        Worker[] workers;
+        // Guarded by this; counters are per stage, busy time per group.
+        long[] processed = new long[0];
+        long[] failed = new long[0];
+        long busyNanos;
+        int peakDepth;
+        long depthSum;
+        long depthSamples;
+
+        Group(int index, int threads, int capacity) {
+            this.index = index;
+            this.threads = threads;
+            this.capacity = capacity;
+            queue = new ArrayFifoQueue(capacity);
+        }
+
+        void add(StageEntry e) {
+            StageEntry[] a = new StageEntry[entries.length + 1];
+            System.arraycopy(entries, 0, a, 0, entries.length);
+            a[entries.length] = e;
+            e.group = this;
+            e.position = entries.length;
+            entries = a;
+            processed = new long[a.length];
+            failed = new long[a.length];
+        }
+
+        void start(ExecutionBackend backend) {
+            workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker(this, i);
+                workers[i].setBackend(backend);
+                workers[i].activate();
+            }
+        }
+
+        void stop() {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i].shutdown();
+            }
+        }
+
+        /**
+         * Queue one STOP per thread and wait for the threads to end.
+         * @return false if the deadline passed
+         */
+        boolean drain(long deadline, int timeout) {
+            for (int i = 0; i < threads; i++) {
+                int millis = remaining(deadline, timeout);
+                if (millis < 0 || !queue.blockingEnqueue(STOP, millis)) {
+                    return false;
+                }
+            }
+            return await(deadline, timeout);
+        }
+
+        boolean await(long deadline, int timeout) {
+            Worker[] ws = workers;
+            if (ws == null) {
+                return true;
+            }
+            for (int i = 0; i < ws.length; i++) {
+                int millis = remaining(deadline, timeout);
+                if (millis < 0 || !ws[i].awaitTermination(millis)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Run an item through the stages of this group. The group is timed
+         * and its counters updated once per item, however many stages are
+         * fused into it.
+         * @param depth queue depth when the item was taken
+         */
+        void run(Object o, int depth) {
+            boolean timed = pipeline.instrumented;
+            long start = timed ? Clock.nanoTime() : 0;
+            int last = entries.length - 1;
+            int i = 0;
+            Object r = null;
+            Exception failure = null;
+            for (; ; i++) {
+                try {
+                    r = entries[i].stage.processNext(o);
+                } catch (Exception ex) {
+                    failure = ex;
+                    break;
+                }
+                if (r == null || i == last) {
+                    break;
+                }
+                o = r;
+            }
+            long end = timed ? Clock.nanoTime() : 0;
+            synchronized (this) {
+                for (int j = 0; j < i; j++) {
+                    processed[j]++;
+                }
+                if (failure != null) {
+                    failed[i]++;
+                } else {
+                    processed[i]++;
+                }
+                busyNanos += end - start;
+                if (depth > peakDepth) {
+                    peakDepth = depth;
+                }
+                depthSum += depth;
+                depthSamples++;
+            }
+            if (failure != null) {
+                pipeline.fire(o, failure, true);
+            } else if (r == null) {
+                return;
+            } else if (next != null) {
+                next.queue.blockingEnqueue(r);
+            } else {
+                pipeline.fire(o, r, false);
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds left, 0 for no timeout, or -1 if passed
+     */
+    private static int remaining(long deadline, int timeout) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 ? (int) millis : -1;
+    }
+
+    private static class Worker extends ServiceTask {
+
+        private final Group group;
+
+        Worker(Group group, int index) {
+            super("Pipeline-" + group.index + "-" + index, Thread.NORM_PRIORITY);
+            this.group = group;
+        }
+
+        protected void taskLoop() {
+            int depth = group.queue.size();
+            Object o = group.queue.blockingDequeue();
+            if (o == null) {
+                return;
+            }
+            if (o == STOP) {
+                shutdown(false);
+                return;
+            }
+            group.run(o, depth);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Exposes a Processor as a Subscriber of input items and a Publisher of
+ * their results, with demand flowing end to end.
+ * <p>
+ * The flow holds a window of credits. Each item requested from upstream
+ * takes one, and it is returned only when the item's result has been
+ * delivered downstream, or dropped. Upstream is asked for more as
+ * credits come back, so a slow subscriber throttles the producer without
+ * any thread blocking, provided the window fits in the processor's queue.
+ * <p>
+ * Results arrive through a listener added to the processor, so the
+ * processor must be fed by this flow only. Null results are not
+ * delivered. A failed item is dropped, or with failFast set, ends the
+ * stream with onError() and cancels upstream. There is one downstream
+ * subscriber.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ProcessorFlow implements Subscriber, Publisher {
+
+    private final Processor processor;
+    private final int window;
+    private final int refill;
+    private Object[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private Subscription upstream = null;
+    private Subscriber downstream = null;
+    private long demand = 0;
+    private int credits = 0;
+    private int inFlight = 0;
+    private boolean upstreamDone = false;
+    private Throwable error = null;
+    private boolean failFast = false;
+    private boolean cancelled = false;
+    private boolean terminated = false;
+    private boolean emitting = false;
+    private long failedCount = 0;
+
+    /**
+     * @param processor processor fed by this flow only
+     * @param window items in flight or awaiting demand, at most the
+     * processor's queue size to never block upstream
+     */
+    public ProcessorFlow(Processor processor, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.processor = processor;
+        this.window = window;
+        refill = Math.max(1, window / 4);
+        buffer = new Object[window];
+        processor.addListener(new ProcessListener() {
+
+            public void done(Object o, Object result) {
+                resolved(result, null);
+            }
+
+            public void failed(Object o, Object reason) {
+                resolved(null, reason);
+            }
+        });
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public synchronized boolean isFailFast() {
+        return failFast;
+    }
+
+    /**
+     * @param failFast true to end the stream on the first failed item
+     */
+    public synchronized void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * @return items dropped because they failed
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public void onSubscribe(Subscription s) {
+        if (s == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (upstream != null || cancelled) {
+                s.cancel();
+                return;
+            }
+            upstream = s;
+        }
+        s.request(window);
+    }
+
+    public void onNext(Object item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (upstreamDone || cancelled) {
+                return;
+            }
+            inFlight++;
+        }
+        try {
+            processor.process(item);
+        } catch (RuntimeException ex) {
+            synchronized (this) {
+                inFlight--;
+            }
+            fail(ex);
+        }
+    }
+
+    public void onError(Throwable t) {
+        synchronized (this) {
+            if (upstreamDone) {
+                return;
+            }
+            upstreamDone = true;
+            if (error == null) {
+                error = t;
+            }
+        }
+        drain();
+    }
+
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    public void subscribe(Subscriber s) {
+        if (s == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = s;
+                s = null;
+            }
+        }
+        if (s != null) {
+            s.onSubscribe(new Subscription() {
+
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+        downstream.onSubscribe(new Subscription() {
+
+            public void request(long n) {
+                ProcessorFlow.this.request(n);
+            }
+
+            public void cancel() {
+                ProcessorFlow.this.cancel();
+            }
+        });
+        drain();
+    }
+
+    private void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Non-positive request: " + n));
+            return;
+        }
+        synchronized (this) {
+            demand += n;
+            if (demand < 0) {
+                demand = Long.MAX_VALUE;
+            }
+        }
+        drain();
+    }
+
+    private void cancel() {
+        Subscription s;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            for (int i = 0; i < count; i++) {
+                buffer[(head + i) % buffer.length] = null;
+            }
+            count = 0;
+            s = upstream;
+        }
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    private void resolved(Object result, Object reason) {
+        boolean stop = false;
+        synchronized (this) {
+            inFlight--;
+            if (reason != null) {
+                failedCount++;
+                if (failFast) {
+                    stop = true;
+                } else {
+                    credits++;
+                }
+            } else if (result == null || cancelled) {
+                credits++;
+            } else {
+                offer(result);
+            }
+        }
+        if (stop) {
+            if (reason instanceof Throwable) {
+                fail((Throwable) reason);
+            } else {
+                fail(new ExecutionException(String.valueOf(reason)));
+            }
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * End the stream with t and cancel upstream.
+     */
+    private void fail(Throwable t) {
+        Subscription s;
+        synchronized (this) {
+            if (error == null) {
+                error = t;
+            }
+            // Buffered results are dropped in favour of the error.
+            for (int i = 0; i < count; i++) {
+                buffer[(head + i) % buffer.length] = null;
+            }
+            count = 0;
+            upstreamDone = true;
+            s = upstream;
+        }
+        if (s != null) {
+            s.cancel();
+        }
+        drain();
+    }
+
+    private void offer(Object result) {
+        if (count == buffer.length) {
+            // Only when the processor is fed from elsewhere too.
+            Object[] b = new Object[buffer.length * 2];
+            for (int i = 0; i < count; i++) {
+                b[i] = buffer[(head + i) % buffer.length];
+            }
+            buffer = b;
+            head = 0;
+        }
+        buffer[(head + count) % buffer.length] = result;
+        count++;
+    }
+
+    /**
+     * Deliver buffered results and terminal signals, and return credits
+     * upstream. One thread at a time; others leave their work to it.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (emitting) {
+                return;
+            }
+            emitting = true;
+        }
+        while (true) {
+            Subscriber d;
+            Subscription s = null;
+            int req = 0;
+            Object item = null;
+            Throwable err = null;
+            boolean complete = false;
+            synchronized (this) {
+                d = downstream;
+                if (!upstreamDone && credits >= refill) {
+                    req = credits;
+                    credits = 0;
+                    s = upstream;
+                }
+                if (d != null && !cancelled && !terminated) {
+                    if (count != 0 && demand != 0) {
+                        item = buffer[head];
+                        buffer[head] = null;
+                        head = (head + 1) % buffer.length;
+                        count--;
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                        credits++;
+                    } else if (count == 0 && upstreamDone && (inFlight == 0 || error != null)) {
+                        terminated = true;
+                        err = error;
+                        complete = err == null;
+                    }
+                }
+                if (s == null && item == null && err == null && !complete) {
+                    emitting = false;
+                    return;
+                }
+            }
+            try {
+                if (s != null) {
+                    s.request(req);
+                }
+                if (item != null) {
+                    d.onNext(item);
+                } else if (err != null) {
+                    d.onError(err);
+                } else if (complete) {
+                    d.onComplete();
+                }
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    emitting = false;
+                }
+                cancel();
+                throw ex;
+            }
+        }
+    }
+}
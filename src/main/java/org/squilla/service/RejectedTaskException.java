@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Thrown when a task or item cannot be accepted, because the queue is full
+ * or the service is shutting down.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class RejectedTaskException extends RuntimeException {
+
+    public RejectedTaskException() {
+    }
+
+    public RejectedTaskException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the results of a Stage, for stages that are pure
+ * functions of their input. Equal inputs, by equals() and hashCode(),
+ * share one result.
+ * <p>
+ * Eviction is LRU, or segmented LRU when a protected size is given: new
+ * entries enter a probationary segment and move to the protected one on
+ * their second hit, so a burst of one-off inputs cannot flush the entries
+ * that recur. Entries may also expire after a time-to-live.
+ * <p>
+ * When several threads miss on the same input at once, only the first
+ * runs the stage; the others wait for its result. Failures are not cached,
+ * nor are results of loads that started before the input was invalidated.
+ * The cache is itself a Stage, so it can wrap a stage of a Pipeline.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ResultCache implements Stage {
+
+    /** Returned by lookup() when no valid entry exists. */
+    static final Object MISSING = new Object();
+    private final Stage loader;
+    private final int maxSize;
+    private final int protectedSize;
+    private final Map entries = new HashMap();
+    // Loads in flight; invalidation removes the key, so a load that is no
+    // longer mapped here is stale.
+    private final Map loading = new HashMap();
+    // Heads of the circular lists, most recently used first.
+    private final Entry probation = new Entry(null);
+    private final Entry protect = new Entry(null);
+    private int protectedCount = 0;
+    private long timeToLive = 0;
+    private long hitCount;
+    private long missCount;
+    private long joinCount;
+    private long evictionCount;
+    private long expirationCount;
+
+    /**
+     * LRU cache.
+     */
+    public ResultCache(Stage loader, int maxSize) {
+        this(loader, maxSize, 0);
+    }
+
+    /**
+     * @param loader stage computing the result of a missing input
+     * @param maxSize most entries kept
+     * @param protectedSize entries kept in the protected segment, 0 for
+     * plain LRU
+     */
+    public ResultCache(Stage loader, int maxSize, int protectedSize) {
+        if (loader == null) {
+            throw new NullPointerException();
+        }
+        if (maxSize < 1 || protectedSize < 0 || protectedSize >= maxSize) {
+            throw new IllegalArgumentException();
+        }
+        this.loader = loader;
+        this.maxSize = maxSize;
+        this.protectedSize = protectedSize;
+        probation.prev = probation.next = probation;
+        protect.prev = protect.next = protect;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getProtectedSize() {
+        return protectedSize;
+    }
+
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive milliseconds an entry stays valid after it was
+     * computed, 0 for no expiry
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Same as get().
+     */
+    public Object processNext(Object o) throws Exception {
+        return get(o);
+    }
+
+    /**
+     * @return the cached result for key, computing it on a miss
+     * @throws Exception thrown by the loader
+     */
+    public Object get(Object key) throws Exception {
+        Loading l;
+        boolean owner = false;
+        synchronized (this) {
+            Object v = lookup(key);
+            if (v != MISSING) {
+                return v;
+            }
+            l = (Loading) loading.get(key);
+            if (l != null) {
+                joinCount++;
+            } else {
+                l = new Loading();
+                loading.put(key, l);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            return l.await();
+        }
+        Object value = null;
+        Throwable error = null;
+        try {
+            value = loader.processNext(key);
+        } catch (Throwable t) {
+            error = t;
+        }
+        loaded(key, l, value, error == null);
+        l.complete(value, error);
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached result for key, or null if not cached
+     */
+    public synchronized Object peek(Object key) {
+        Entry e = (Entry) entries.get(key);
+        if (e == null || (e.expires != 0 && e.expires <= System.currentTimeMillis())) {
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Remove the entry of key. A load of key in flight still answers the
+     * callers that joined it, but its result is not cached.
+     */
+    public synchronized void invalidate(Object key) {
+        Entry e = (Entry) entries.remove(key);
+        if (e != null) {
+            unlink(e);
+        }
+        loading.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        loading.clear();
+        probation.prev = probation.next = probation;
+        protect.prev = protect.next = protect;
+        protectedCount = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return lookups that found no valid entry, including joined ones
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return misses that waited for a computation already in flight
+     */
+    public synchronized long getJoinCount() {
+        return joinCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirationCount;
+    }
+
+    public synchronized double getHitRatio() {
+        long n = hitCount + missCount;
+        return n == 0 ? 0 : (double) hitCount / n;
+    }
+
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        joinCount = 0;
+        evictionCount = 0;
+        expirationCount = 0;
+    }
+
+    public synchronized String toString() {
+        return "ResultCache[size=" + entries.size() + "/" + maxSize
+                + ", hits=" + hitCount + ", misses=" + missCount
+                + ", joins=" + joinCount + ", evictions=" + evictionCount
+                + ", expirations=" + expirationCount + "]";
+    }
+
+    /**
+     * Look key up without loading it, for callers that load elsewhere.
+     * @return the cached result, or MISSING after counting a miss
+     */
+    synchronized Object lookup(Object key) {
+        Entry e = (Entry) entries.get(key);
+        if (e != null) {
+            if (e.expires == 0 || e.expires > System.currentTimeMillis()) {
+                hitCount++;
+                touch(e);
+                return e.value;
+            }
+            unlink(e);
+            entries.remove(key);
+            expirationCount++;
+        }
+        missCount++;
+        return MISSING;
+    }
+
+    /**
+     * Register a load of key run by the caller.
+     * @return token to pass to loaded()
+     */
+    synchronized Object startLoad(Object key) {
+        Loading l = new Loading();
+        loading.put(key, l);
+        return l;
+    }
+
+    /**
+     * @return true unless key was invalidated since the load started
+     */
+    synchronized boolean isCurrent(Object key, Object token) {
+        return loading.get(key) == token;
+    }
+
+    synchronized void joined() {
+        joinCount++;
+    }
+
+    /**
+     * End a load, caching its result if it succeeded and is still current.
+     */
+    synchronized void loaded(Object key, Object token, Object value, boolean succeeded) {
+        if (loading.get(key) != token) {
+            return;
+        }
+        loading.remove(key);
+        if (succeeded) {
+            put(key, value);
+        }
+    }
+
+    private void put(Object key, Object value) {
+        Entry e = (Entry) entries.get(key);
+        if (e != null) {
+            unlink(e);
+        } else {
+            e = new Entry(key);
+            entries.put(key, e);
+        }
+        e.value = value;
+        e.expires = timeToLive == 0 ? 0 : System.currentTimeMillis() + timeToLive;
+        e.protect = false;
+        linkFirst(probation, e);
+        while (entries.size() > maxSize) {
+            Entry victim = probation.prev;
+            if (victim == probation) {
+                victim = protect.prev;
+            }
+            unlink(victim);
+            entries.remove(victim.key);
+            evictionCount++;
+        }
+    }
+
+    private void touch(Entry e) {
+        if (protectedSize == 0 || e.protect) {
+            unlink(e);
+            linkFirst(e.protect ? protect : probation, e);
+            if (e.protect) {
+                protectedCount++;
+            }
+            return;
+        }
+        // Second hit: promote, demoting the protected tail if full.
+        unlink(e);
+        e.protect = true;
+        linkFirst(protect, e);
+        protectedCount++;
+        if (protectedCount > protectedSize) {
+            Entry d = protect.prev;
+            unlink(d);
+            d.protect = false;
+            linkFirst(probation, d);
+        }
+    }
+
+    private void linkFirst(Entry head, Entry e) {
+        e.next = head.next;
+        e.prev = head;
+        head.next.prev = e;
+        head.next = e;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+        if (e.protect) {
+            protectedCount--;
+        }
+    }
+
+    private static class Entry {
+
+        final Object key;
+        Object value;
+        long expires;
+        boolean protect;
+        Entry prev;
+        Entry next;
+
+        Entry(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A computation in flight, awaited by the threads that joined it.
+     */
+    private static class Loading {
+
+        private boolean done = false;
+        private Object value;
+        private Throwable error;
+
+        synchronized void complete(Object value, Throwable error) {
+            this.value = value;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Object await() throws Exception {
+            while (!done) {
+                wait();
+            }
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            } else if (error != null) {
+                throw new ExecutionException("Loader failed", error);
+            }
+            return value;
+        }
+    }
+}
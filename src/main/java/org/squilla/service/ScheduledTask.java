@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Handle of a task scheduled on a HashedWheelTimer.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ScheduledTask implements Discardable {
+
+    static final int STATE_WAITING = 0;
+    static final int STATE_DISPATCHED = 1;
+    static final int STATE_CANCELLED = 2;
+    static final int STATE_DONE = 3;
+    static final int STATE_REJECTED = 4;
+    private final HashedWheelTimer timer;
+    private final Runnable task;
+    /** 0 for one-shot, positive for fixed-rate, negative for fixed-delay. */
+    private final long period;
+    // Guarded by the timer.
+    long deadline;
+    long rounds;
+    int bucket;
+    ScheduledTask prev;
+    ScheduledTask next;
+    int state;
+
+    ScheduledTask(HashedWheelTimer timer, Runnable task, long deadline, long period) {
+        this.timer = timer;
+        this.task = task;
+        this.deadline = deadline;
+        this.period = period;
+        this.state = STATE_WAITING;
+    }
+
+    /**
+     * Cancel this task. A periodic task that is running completes its
+     * current run but is not rescheduled.
+     * @return false if already cancelled, done or rejected
+     */
+    public boolean cancel() {
+        return timer.cancel(this);
+    }
+
+    public boolean isCancelled() {
+        synchronized (timer) {
+            return state == STATE_CANCELLED;
+        }
+    }
+
+    /**
+     * @return true if a one-shot task has run
+     */
+    public boolean isDone() {
+        synchronized (timer) {
+            return state == STATE_DONE;
+        }
+    }
+
+    /**
+     * @return true if the executor rejected or dropped a one-shot task,
+     * which then never ran
+     */
+    public boolean isRejected() {
+        synchronized (timer) {
+            return state == STATE_REJECTED;
+        }
+    }
+
+    public boolean isPeriodic() {
+        return period != 0;
+    }
+
+    /**
+     * @return time of the next expiry, as System.currentTimeMillis()
+     */
+    public long getDeadline() {
+        synchronized (timer) {
+            return deadline;
+        }
+    }
+
+    public Runnable getTask() {
+        return task;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Called by the timer's WorkQueue when it drops this task. A one-shot
+     * task becomes rejected; a periodic one is scheduled for its next
+     * period.
+     */
+    public void discarded() {
+        timer.rejected(this);
+    }
+
+    /**
+     * Run by the timer's WorkQueue.
+     */
+    public void run() {
+        synchronized (timer) {
+            if (state != STATE_DISPATCHED) {
+                return;
+            }
+        }
+        try {
+            task.run();
+        } finally {
+            timer.completed(this);
+        }
+    }
+}
@@ -25,6 +25,7 @@ public abstract class ServiceTask implements Service, Runnable {
     private volatile Thread context = null;
     private final String contextName;
     private int contextPriority = -1;
+    private ExecutionBackend backend = null;
     
     public ServiceTask(String name, int priority) {
         this.contextName = name;
@@ -43,41 +44,90 @@ public abstract class ServiceTask implements Service, Runnable {
         return context;
     }
 
+    protected boolean isShutdownRequested() {
+        return shutdownRequested;
+    }
+
+    public ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the next activation, null for the default
+     */
+    public void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+    }
+
     public boolean activate() {
         if (context != null) {
             return false;
         }
-        if (contextName != null) {
-            context = new Thread(this, contextName);
-        } else {
-            context = new Thread(this);
-        }
-        if (contextPriority != -1) {
-            context.setPriority(contextPriority);
+        ExecutionBackend b = backend;
+        if (b == null) {
+            b = ExecutionBackend.getDefault();
         }
+        context = b.newThread(this, contextName, contextPriority);
         context.start();
         return true;
     }
 
     public boolean shutdown() {
+        return shutdown(true);
+    }
+
+    /**
+     * Ask the loop to end after the current iteration.
+     * @param interrupt true to also interrupt the context thread
+     */
+    public boolean shutdown(boolean interrupt) {
         shutdownRequested = true;
-        context.interrupt();
+        Thread t = context;
+        if (interrupt && t != null) {
+            t.interrupt();
+        }
         return true;
     }
 
+    /**
+     * Wait for the context thread to end.
+     * @param timeout milliseconds, 0 to wait forever
+     * @return true if the context thread has ended or was never started
+     */
+    public boolean awaitTermination(int timeout) {
+        Thread t = context;
+        if (t == null) {
+            return true;
+        }
+        try {
+            t.join(timeout);
+        } catch (InterruptedException ex) {
+        }
+        return !t.isAlive();
+    }
+
     public final void run() {
         while (!shutdownRequested) {
             try {
                 taskLoop();
-            } catch (Exception ex) {
-                System.err.println("[ServiceThread] Uncaught exception: " + ex);
-                ex.printStackTrace();
             } catch (Throwable t) {
-                System.err.println("[ServiceThread] Uncaught error: " + t);
-                t.printStackTrace();
+                uncaught(t);
             }
         }
     }
 
+    /**
+     * Report a throwable that escaped the task loop, or that a subclass
+     * caught on its behalf.
+     */
+    protected void uncaught(Throwable t) {
+        if (t instanceof Exception) {
+            System.err.println("[ServiceThread] Uncaught exception: " + t);
+        } else {
+            System.err.println("[ServiceThread] Uncaught error: " + t);
+        }
+        t.printStackTrace();
+    }
+
     protected abstract void taskLoop();
 }
@@ -16,6 +16,9 @@
 package org.squilla.service;
 
 /**
+ * With a virtual backend the loop runs on a separate virtual thread and
+ * this Thread object is never started, so interrupt() and join() on it
+ * have no effect; use shutdown() and waitForShutdown() instead.
  *
  * @deprecated 
  * @author Shotaro Uchida <fantom@xmaker.mx>
@@ -25,6 +28,7 @@ public abstract class ServiceThread extends Thread implements Service {
     private boolean active = false;
     private volatile boolean shutdownRequested;
     private final Object activeLock = new Object();
+    private ExecutionBackend backend = null;
     
     public ServiceThread(String name) {
         super(name);
@@ -33,6 +37,17 @@ public abstract class ServiceThread extends Thread implements Service {
     public ServiceThread() {
     }
 
+    public ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for the next activation, null to run on this thread
+     */
+    public void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+    }
+
     public boolean activate() {
         synchronized (activeLock) {
             if (active) {
@@ -41,7 +56,11 @@ public abstract class ServiceThread extends Thread implements Service {
             active = true;
             shutdownRequested = false;
         }
-        this.start();
+        if (backend != null && backend.isVirtual()) {
+            backend.newThread(this, getName(), -1).start();
+        } else {
+            this.start();
+        }
         return true;
     }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Snapshot of the counters of one Pipeline stage. A fused stage shares
+ * the queue and threads of the stage it was fused to.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class StageStatistics {
+
+    private final String name;
+    private final boolean fused;
+    private final int threads;
+    private final long elapsedMillis;
+    private final long processed;
+    private final long failed;
+    private final long busyNanos;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final int peakQueueDepth;
+    private final double averageQueueDepth;
+
+    StageStatistics(String name, boolean fused, int threads, long elapsedMillis,
+            long processed, long failed, long busyNanos,
+            int queueDepth, int queueCapacity, int peakQueueDepth, double averageQueueDepth) {
+        this.name = name;
+        this.fused = fused;
+        this.threads = threads;
+        this.elapsedMillis = elapsedMillis;
+        this.processed = processed;
+        this.failed = failed;
+        this.busyNanos = busyNanos;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.peakQueueDepth = peakQueueDepth;
+        this.averageQueueDepth = averageQueueDepth;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFused() {
+        return fused;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return milliseconds since activation or the last reset
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return items the stage returned from, including dropped ones
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return items per second
+     */
+    public double getThroughput() {
+        if (elapsedMillis <= 0) {
+            return 0;
+        }
+        return (processed + failed) * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * @return fraction of the stage threads' time spent in this stage,
+     * together with the stages fused with it, which are timed as one; 0
+     * unless the pipeline is instrumented
+     */
+    public double getBusyRatio() {
+        if (elapsedMillis <= 0) {
+            return 0;
+        }
+        return busyNanos / (elapsedMillis * 1000000.0 * threads);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    /**
+     * @return queue depth averaged over the items taken from it
+     */
+    public double getAverageQueueDepth() {
+        return averageQueueDepth;
+    }
+
+    /**
+     * @return average queue depth relative to its capacity; a stage whose
+     * queue stays full is slower than the stages before it
+     */
+    public double getOccupancy() {
+        return averageQueueDepth / queueCapacity;
+    }
+
+    public String toString() {
+        return "StageStatistics[" + name + (fused ? " (fused)" : "")
+                + ", items/s=" + getThroughput()
+                + ", failed=" + failed
+                + ", busy=" + getBusyRatio()
+                + ", depth=" + queueDepth + "/" + queueCapacity
+                + ", peak=" + peakQueueDepth
+                + ", occupancy=" + getOccupancy()
+                + "]";
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Link between one Publisher and one Subscriber, after the Reactive
+ * Streams interface of the same name.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface Subscription {
+
+    /**
+     * Allow n more items to be delivered.
+     * @param n positive count; Long.MAX_VALUE for no limit
+     */
+    public void request(long n);
+
+    /**
+     * Stop delivery. Items already in flight may still arrive.
+     */
+    public void cancel();
+}
@@ -15,44 +15,517 @@
  */
 package org.squilla.service;
 
-import org.squilla.util.ArrayFifoQueue;
+import org.squilla.util.BlockingFifoQueue;
+import org.squilla.util.Clock;
+import org.squilla.util.LogHistogram;
+import org.squilla.util.PriorityLaneQueue;
+import org.squilla.util.QueueFactory;
+import org.squilla.util.VirtualThreads;
 
 /**
  * Tweaked version of IBM's WorkQueue example.
+ * <p>
+ * In work-stealing mode every worker owns a deque. Tasks executed from a
+ * worker thread are pushed to its own deque, other tasks are spread over
+ * the deques round-robin, and an idle worker steals from its siblings
+ * before it parks. Only one parked worker is woken per task.
+ * <p>
+ * What happens to a task that does not fit in the queue is decided by the
+ * saturation policy. The default is to throw RejectedTaskException.
+ * <p>
+ * Without work stealing the pool can be elastic: poolSize threads are kept,
+ * and up to the maximum pool size are added while the queue is deeper than
+ * the growth threshold, while no task has been taken for the growth wait
+ * time, or when the queue is full. Threads beyond poolSize retire after
+ * staying idle for the keep-alive time.
+ * <p>
+ * A WorkQueue created with priority lanes queues tasks on a
+ * PriorityLaneQueue; execute(Runnable, int) picks the lane, 0 being the
+ * most urgent, and execute(Runnable) uses the default lane.
+ * <p>
+ * With a batch size above 1, a worker of the shared queue takes up to that
+ * many tasks per lock acquisition and runs them back to back. The batch
+ * adapts to the queue depth: it doubles while drains come back full and
+ * halves while they come back less than half full.
+ * <p>
+ * setInstrumented(true) records queue-wait and execution times, worker
+ * utilization and peak depth, read back with getStatistics(). When off, the
+ * only cost per task is a volatile read.
+ * <p>
+ * shutdown() stops the workers at once. shutdownGracefully() stops
+ * accepting tasks, lets the workers finish what is queued within a
+ * deadline and returns the tasks that never started.
  * 
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
 public class WorkQueue implements Service {
 
+    /** Throw RejectedTaskException. */
+    public static final int POLICY_ABORT = 0;
+    /** Wait for space up to the block timeout, then throw RejectedTaskException. */
+    public static final int POLICY_BLOCK = 1;
+    /** Run the task on the calling thread. */
+    public static final int POLICY_CALLER_RUNS = 2;
+    /** Discard the oldest queued task to make room. */
+    public static final int POLICY_DISCARD_OLDEST = 3;
+
     private final int poolSize;
     private final int queueSize;
-    private final PoolWorker[] threads;
-    private final ArrayFifoQueue queue;
+    private PoolWorker[] threads;
+    private final BlockingFifoQueue queue;
+    private final PriorityLaneQueue laneQueue;
+    private final boolean workStealing;
+    private final WorkStealingDeque[] deques;
+    private final ThreadLocal currentWorker = new ThreadLocal();
+    private final Object idleLock = new Object();
+    private final PoolWorker[] idleWorkers;
+    private volatile int idleCount = 0;
+    private int nextDeque = 0;
+    private final Object spaceLock = new Object();
+    private volatile int waitingProducers = 0;
+    private volatile int saturationPolicy = POLICY_ABORT;
+    private volatile int blockTimeout = 0;
+    private final Object statsLock = new Object();
+    private long blockedCount;
+    private long callerRunsCount;
+    private long discardedCount;
+    private long rejectedCount;
+    private volatile boolean instrumented = false;
+    private long statsStartTime;
+    private int peakDepth;
+    private long retiredCompleted;
+    private final LogHistogram retiredWait = new LogHistogram();
+    private final LogHistogram retiredExec = new LogHistogram();
+    private volatile int maxPoolSize;
+    private volatile int liveCount = 0;
+    private int largestPoolSize = 0;
+    private int keepAliveTime = 60000;
+    private int growthThreshold;
+    private int growthWaitTime = 100;
+    private volatile long lastTakeTime;
+    private ExecutionBackend backend = null;
+    private volatile int batchSize = 1;
+    private volatile boolean adaptiveBatch = true;
+    private volatile boolean draining = false;
+    /** STOPs queued and not yet taken, guarded by this. */
+    private int queuedStops = 0;
+    private PoolWorker[] stoppedWorkers = new PoolWorker[0];
     private boolean active = false;
 
     public WorkQueue(int poolSize, int queueSize) {
+        this(poolSize, queueSize, false);
+    }
+
+    /**
+     * @param poolSize number of workers kept alive, at least 1
+     * @param queueSize total number of tasks that can be queued
+     * @param workStealing true to give each worker its own deque
+     */
+    public WorkQueue(int poolSize, int queueSize, boolean workStealing) {
+        this(poolSize, queueSize, workStealing, 1, null);
+    }
+
+    /**
+     * @param poolSize number of workers
+     * @param queueSize number of tasks that can be queued in each lane
+     * @param lanes number of priority lanes
+     */
+    public WorkQueue(int poolSize, int queueSize, int lanes) {
+        this(poolSize, queueSize, false, lanes, null);
+    }
+
+    /**
+     * @param poolSize number of workers
+     * @param queueSize total number of tasks that can be queued
+     * @param factory creates the shared task queue
+     */
+    public WorkQueue(int poolSize, int queueSize, QueueFactory factory) {
+        this(poolSize, queueSize, false, 1, factory);
+    }
+
+    private WorkQueue(int poolSize, int queueSize, boolean workStealing, int lanes, QueueFactory factory) {
+        // Extra threads are only started on a growing queue, so a pool
+        // without core workers could leave tasks queued forever.
+        if (poolSize < 1 || lanes < 1) {
+            throw new IllegalArgumentException();
+        }
         this.poolSize = poolSize;
         this.queueSize = queueSize;
-        queue = new ArrayFifoQueue(queueSize);
-        threads = new PoolWorker[poolSize];
+        this.workStealing = workStealing;
+        maxPoolSize = poolSize;
+        growthThreshold = queueSize / 2;
+        if (workStealing) {
+            queue = null;
+            laneQueue = null;
+            deques = new WorkStealingDeque[poolSize];
+            int dequeSize = (queueSize + poolSize - 1) / poolSize;
+            for (int i = 0; i < poolSize; i++) {
+                deques[i] = new WorkStealingDeque(dequeSize);
+            }
+            idleWorkers = new PoolWorker[poolSize];
+        } else if (lanes > 1) {
+            laneQueue = new PriorityLaneQueue(lanes, queueSize);
+            queue = laneQueue;
+            deques = null;
+            idleWorkers = null;
+        } else {
+            if (factory == null) {
+                factory = QueueFactory.getDefault();
+            }
+            queue = factory.newQueue(queueSize);
+            laneQueue = null;
+            deques = null;
+            idleWorkers = null;
+        }
     }
     
     public int getQueueSize() {
         return queueSize;
     }
     
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * @return number of priority lanes, 1 if tasks share one queue
+     */
+    public int getLaneCount() {
+        return laneQueue != null ? laneQueue.getLaneCount() : 1;
+    }
+
+    /**
+     * @return the lane queue, to tune its dequeue policy, or null without lanes
+     */
+    public PriorityLaneQueue getLaneQueue() {
+        return laneQueue;
+    }
+
+    public int getCorePoolSize() {
+        return poolSize;
+    }
+
+    public int getMaximumPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @param maxPoolSize upper bound of threads, not less than poolSize
+     * @throws IllegalStateException if active or in work-stealing mode
+     */
+    public synchronized void setMaximumPoolSize(int maxPoolSize) {
+        if (maxPoolSize < poolSize) {
+            throw new IllegalArgumentException();
+        }
+        if (active) {
+            throw new IllegalStateException("WorkQueue is active.");
+        }
+        if (workStealing && maxPoolSize != poolSize) {
+            throw new IllegalStateException("Work-stealing pool is fixed size.");
+        }
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * @return number of live threads
+     */
+    public int getPoolSize() {
+        return liveCount;
+    }
+
+    public synchronized int getLargestPoolSize() {
+        return largestPoolSize;
+    }
+
+    public int getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    /**
+     * @param keepAliveTime milliseconds an extra thread may stay idle
+     */
+    public void setKeepAliveTime(int keepAliveTime) {
+        if (keepAliveTime <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    public int getGrowthThreshold() {
+        return growthThreshold;
+    }
+
+    /**
+     * @param growthThreshold queue depth above which a thread is added
+     */
+    public void setGrowthThreshold(int growthThreshold) {
+        this.growthThreshold = growthThreshold;
+    }
+
+    public int getGrowthWaitTime() {
+        return growthWaitTime;
+    }
+
+    /**
+     * @param growthWaitTime milliseconds queued tasks may go without a taker
+     * before a thread is added
+     */
+    public void setGrowthWaitTime(int growthWaitTime) {
+        this.growthWaitTime = growthWaitTime;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize maximum number of tasks a worker takes at once
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.batchSize = batchSize;
+    }
+
+    public boolean isAdaptiveBatch() {
+        return adaptiveBatch;
+    }
+
+    /**
+     * @param adaptiveBatch true to adapt the batch to the queue depth, false
+     * to always drain up to the batch size
+     */
+    public void setAdaptiveBatch(boolean adaptiveBatch) {
+        this.adaptiveBatch = adaptiveBatch;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * Turn instrumentation on or off. Turning it on resets the statistics.
+     */
+    public void setInstrumented(boolean instrumented) {
+        if (instrumented && !this.instrumented) {
+            resetStatistics();
+        }
+        this.instrumented = instrumented;
+    }
+
+    /**
+     * Clear the statistics and restart the measurement period.
+     */
+    public void resetStatistics() {
+        PoolWorker[] workers = liveWorkers();
+        long nanos = Clock.nanoTime();
+        synchronized (statsLock) {
+            statsStartTime = System.currentTimeMillis();
+            peakDepth = 0;
+            retiredCompleted = 0;
+            retiredWait.reset();
+            retiredExec.reset();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].resetStats(nanos);
+        }
+    }
+
+    /**
+     * @return snapshot of the statistics recorded while instrumented
+     */
+    public WorkQueueStatistics getStatistics() {
+        PoolWorker[] workers = liveWorkers();
+        long now = System.currentTimeMillis();
+        long nanos = Clock.nanoTime();
+        LogHistogram wait = new LogHistogram();
+        LogHistogram exec = new LogHistogram();
+        long completed;
+        long startTime;
+        int peak;
+        long blocked;
+        long callerRuns;
+        long discarded;
+        long rejected;
+        synchronized (statsLock) {
+            wait.add(retiredWait);
+            exec.add(retiredExec);
+            completed = retiredCompleted;
+            startTime = statsStartTime;
+            peak = peakDepth;
+            blocked = blockedCount;
+            callerRuns = callerRunsCount;
+            discarded = discardedCount;
+            rejected = rejectedCount;
+        }
+        double[] busy = new double[workers.length];
+        long busyNanos = 0;
+        long lifeNanos = 0;
+        for (int i = 0; i < workers.length; i++) {
+            PoolWorker w = workers[i];
+            synchronized (w.stats) {
+                wait.add(w.waitHist);
+                exec.add(w.execHist);
+                completed += w.completed;
+                long life = nanos - w.statsStart;
+                busy[i] = life > 0 ? (double) w.busyNanos / life : 0;
+                busyNanos += w.busyNanos;
+                lifeNanos += life;
+            }
+        }
+        return new WorkQueueStatistics(now, now - startTime, completed,
+                remainingTask(), peak, wait, exec,
+                busy, lifeNanos > 0 ? (double) busyNanos / lifeNanos : 0,
+                blocked, callerRuns, discarded, rejected);
+    }
+
+    private synchronized PoolWorker[] liveWorkers() {
+        if (threads == null) {
+            return new PoolWorker[0];
+        }
+        int n = 0;
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] != null) {
+                n++;
+            }
+        }
+        PoolWorker[] workers = new PoolWorker[n];
+        n = 0;
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] != null) {
+                workers[n++] = threads[i];
+            }
+        }
+        return workers;
+    }
+
+    private void retireStats(PoolWorker w) {
+        synchronized (statsLock) {
+            synchronized (w.stats) {
+                retiredCompleted += w.completed;
+                retiredWait.add(w.waitHist);
+                retiredExec.add(w.execHist);
+            }
+        }
+    }
+
+    public synchronized ExecutionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @param backend backend for workers started from now on, null for the default
+     */
+    public synchronized void setBackend(ExecutionBackend backend) {
+        this.backend = backend;
+    }
+
+    public int getSaturationPolicy() {
+        return saturationPolicy;
+    }
+
+    /**
+     * @param policy one of the POLICY_ constants
+     */
+    public void setSaturationPolicy(int policy) {
+        if (policy < POLICY_ABORT || policy > POLICY_DISCARD_OLDEST) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        this.saturationPolicy = policy;
+    }
+
+    public int getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * @param timeout milliseconds to wait under POLICY_BLOCK, 0 to wait forever
+     */
+    public void setBlockTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.blockTimeout = timeout;
+    }
+
+    /**
+     * @return number of tasks queued after waiting for space
+     */
+    public long getBlockedCount() {
+        synchronized (statsLock) {
+            return blockedCount;
+        }
+    }
+
+    /**
+     * @return number of tasks run on the calling thread
+     */
+    public long getCallerRunsCount() {
+        synchronized (statsLock) {
+            return callerRunsCount;
+        }
+    }
+
+    /**
+     * @return number of queued tasks discarded to make room
+     */
+    public long getDiscardedCount() {
+        synchronized (statsLock) {
+            return discardedCount;
+        }
+    }
+
+    /**
+     * @return number of tasks rejected with RejectedTaskException
+     */
+    public long getRejectedCount() {
+        synchronized (statsLock) {
+            return rejectedCount;
+        }
+    }
+    
+    /**
+     * @return number of tasks queued in the given lane
+     */
+    public int remainingTask(int priority) {
+        if (laneQueue == null) {
+            if (priority != 0) {
+                throw new IllegalArgumentException("No such lane: " + priority);
+            }
+            return remainingTask();
+        }
+        return laneQueue.size(priority);
+    }
+
     public int remainingTask() {
-        return queue.size();
+        if (!workStealing) {
+            return queue.size();
+        }
+        int n = 0;
+        for (int i = 0; i < poolSize; i++) {
+            n += deques[i].size();
+        }
+        return n;
     }
 
     public synchronized boolean activate() {
         if (active) {
             return false;
         }
+        draining = false;
+        queuedStops = 0;
+        threads = new PoolWorker[maxPoolSize];
+        lastTakeTime = System.currentTimeMillis();
         for (int i = 0; i < poolSize; i++) {
-            threads[i] = new PoolWorker();
+            threads[i] = new PoolWorker(i, null);
+            threads[i].setBackend(backend);
             threads[i].activate();
         }
+        liveCount = poolSize;
+        if (largestPoolSize < liveCount) {
+            largestPoolSize = liveCount;
+        }
         active = true;
         return true;
     }
@@ -61,27 +534,856 @@ public class WorkQueue implements Service {
         if (!active) {
             return false;
         }
-        for (int i = 0; i < poolSize; i++) {
+        stoppedWorkers = liveWorkers();
+        cancelQueued();
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == null) {
+                continue;
+            }
             threads[i].shutdown();
+            if (workStealing) {
+                threads[i].unpark();
+            }
+            retireStats(threads[i]);
+            threads[i] = null;
+        }
+        liveCount = 0;
+        if (workStealing) {
+            synchronized (idleLock) {
+                idleCount = 0;
+            }
         }
         active = false;
         return true;
     }
     
+    /**
+     * Stop accepting tasks, run the queued ones for up to timeout
+     * milliseconds, then shut down. Tasks still running at the deadline are
+     * interrupted.
+     * @param timeout milliseconds, 0 to wait until the queue is empty
+     * @return tasks that were still queued at the deadline; Discardable
+     * ones among them, such as Completions, have been told so
+     */
+    public Runnable[] shutdownGracefully(int timeout) {
+        PoolWorker[] workers;
+        synchronized (this) {
+            if (!active || draining) {
+                return new Runnable[0];
+            }
+            draining = true;
+            workers = liveWorkers();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        if (workStealing) {
+            // Idle workers wake up, find nothing and leave. Workers not
+            // yet idle see draining before they park.
+            signalAllWork();
+        } else {
+            // One STOP per worker, queued behind the remaining tasks.
+            for (int i = 0; i < workers.length; i++) {
+                long millis = remaining(deadline, timeout);
+                if (millis < 0 || !offerStop((int) millis)) {
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < workers.length; i++) {
+            long millis = remaining(deadline, timeout);
+            if (millis < 0) {
+                break;
+            }
+            workers[i].awaitTermination((int) millis);
+        }
+        Runnable[] left = drainLeftovers();
+        shutdown();
+        return left;
+    }
+
+    /**
+     * Wait for the workers stopped by the last shutdown to end.
+     * @param timeout milliseconds, 0 to wait forever
+     * @return true if all of them have ended
+     */
+    public boolean awaitTermination(int timeout) {
+        PoolWorker[] workers;
+        synchronized (this) {
+            workers = stoppedWorkers;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < workers.length; i++) {
+            long millis = remaining(deadline, timeout);
+            if (millis < 0 || !workers[i].awaitTermination((int) millis)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true while shutdownGracefully() is in progress or after it
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    private static long remaining(long deadline, int timeout) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 ? millis : -1;
+    }
+
+    private boolean offerStop(int timeout) {
+        // Counted before it is queued, so a worker taking it never sees
+        // fewer STOPs counted than queued.
+        synchronized (this) {
+            queuedStops++;
+        }
+        boolean queued;
+        if (laneQueue != null) {
+            queued = laneQueue.blockingEnqueue(STOP, laneQueue.getLaneCount() - 1, timeout);
+        } else {
+            queued = queue.blockingEnqueue(STOP, timeout);
+        }
+        if (!queued) {
+            synchronized (this) {
+                queuedStops--;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Account for STOPs a worker took.
+     * @return true if tasks other than STOPs may still be queued
+     */
+    private synchronized boolean takeStops(int n) {
+        queuedStops -= n;
+        return queue.size() > queuedStops;
+    }
+
+    private Runnable[] drainLeftovers() {
+        Object[] objs;
+        if (workStealing) {
+            objs = new Object[remainingTask()];
+            int n = 0;
+            for (int i = 0; i < poolSize; i++) {
+                Object o;
+                while (n < objs.length && (o = deques[i].pollFirst()) != null) {
+                    objs[n++] = o;
+                }
+            }
+        } else {
+            objs = queue.drainAll();
+        }
+        int n = 0;
+        for (int i = 0; i < objs.length; i++) {
+            if (objs[i] != null && objs[i] != STOP) {
+                n++;
+            }
+        }
+        Runnable[] left = new Runnable[n];
+        n = 0;
+        for (int i = 0; i < objs.length; i++) {
+            Object o = objs[i];
+            if (o == null || o == STOP) {
+                continue;
+            }
+            if (o instanceof TimedTask) {
+                o = ((TimedTask) o).task;
+            }
+            discard(o);
+            left[n++] = (Runnable) o;
+        }
+        return left;
+    }
+
+    /**
+     * Drop the queued Discardable tasks, such as Completions, which would
+     * otherwise be waited on until a next activation that may never come,
+     * and stale STOPs. Other tasks stay queued.
+     */
+    private void cancelQueued() {
+        if (workStealing) {
+            for (int i = 0; i < poolSize; i++) {
+                WorkStealingDeque d = deques[i];
+                for (int n = d.size(); n > 0; n--) {
+                    Object o = d.pollFirst();
+                    if (o == null) {
+                        break;
+                    }
+                    if (keepQueued(o) && !d.offerLast(o)) {
+                        lostQueued(o);
+                    }
+                }
+            }
+        } else if (laneQueue != null) {
+            for (int l = 0; l < laneQueue.getLaneCount(); l++) {
+                for (int n = laneQueue.size(l); n > 0; n--) {
+                    Object o = laneQueue.dequeue(l);
+                    if (o == null) {
+                        break;
+                    }
+                    if (keepQueued(o) && !laneQueue.enqueue(o, l)) {
+                        lostQueued(o);
+                    }
+                }
+            }
+        } else {
+            Object[] objs = queue.drainAll();
+            for (int i = 0; i < objs.length; i++) {
+                if (keepQueued(objs[i]) && !queue.enqueue(objs[i])) {
+                    lostQueued(objs[i]);
+                }
+            }
+        }
+        queuedStops = 0;
+    }
+
+    /**
+     * @return false if o is a STOP or a Discardable task, now discarded
+     */
+    private static boolean keepQueued(Object o) {
+        if (o == STOP) {
+            return false;
+        }
+        return !discard(o);
+    }
+
+    /**
+     * A task taken out by cancelQueued() lost its place to a new one.
+     */
+    private void lostQueued(Object o) {
+        synchronized (statsLock) {
+            discardedCount++;
+        }
+        discard(o);
+    }
+
+    /**
+     * Tell a task that it is dropped without running.
+     * @return true if o was a Discardable task
+     */
+    private static boolean discard(Object o) {
+        if (o instanceof TimedTask) {
+            o = ((TimedTask) o).task;
+        }
+        if (!(o instanceof Discardable)) {
+            return false;
+        }
+        ((Discardable) o).discarded();
+        return true;
+    }
+
+    /**
+     * Queue a task, applying the saturation policy if the queue is full.
+     * @throws RejectedTaskException if the task was not accepted
+     */
     public void execute(Runnable r) {
-        queue.enqueue(r);
+        executeInternal(r, -1);
+    }
+
+    /**
+     * Queue a task in a priority lane. Without lanes the priority is ignored.
+     * @param priority lane, 0 being the most urgent
+     * @throws RejectedTaskException if the task was not accepted
+     */
+    public void execute(Runnable r, int priority) {
+        if (laneQueue == null) {
+            executeInternal(r, -1);
+            return;
+        }
+        if (priority < 0 || priority >= laneQueue.getLaneCount()) {
+            throw new IllegalArgumentException("No such lane: " + priority);
+        }
+        executeInternal(r, priority);
+    }
+
+    /**
+     * Queue a task and return a handle to its result.
+     * @throws RejectedTaskException if the task was not accepted
+     */
+    public Completion submit(Callable task) {
+        Completion c = new Completion(task);
+        executeInternal(c, -1);
+        return c;
+    }
+
+    /**
+     * Queue a task and return a handle to its completion; the result is null.
+     * @throws RejectedTaskException if the task was not accepted
+     */
+    public Completion submit(Runnable task) {
+        Completion c = new Completion(task);
+        executeInternal(c, -1);
+        return c;
+    }
+
+    /**
+     * Queue a task in a priority lane and return a handle to its result.
+     * @throws RejectedTaskException if the task was not accepted
+     */
+    public Completion submit(Callable task, int priority) {
+        Completion c = new Completion(task);
+        execute(c, priority);
+        return c;
+    }
+
+    /**
+     * @param lane priority lane, or -1 for the default lane
+     */
+    private void executeInternal(Runnable r, int lane) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        if (draining) {
+            synchronized (statsLock) {
+                rejectedCount++;
+            }
+            throw new RejectedTaskException("WorkQueue is shutting down.");
+        }
+        if (instrumented) {
+            r = new TimedTask(r, Clock.nanoTime());
+        }
+        if (offer(r, lane)) {
+            if (instrumented) {
+                recordDepth();
+            }
+            signalWork();
+            if (maxPoolSize > poolSize) {
+                growIfBacklogged();
+            }
+            return;
+        }
+        if (maxPoolSize > poolSize && addWorker(r)) {
+            return;
+        }
+        switch (saturationPolicy) {
+            case POLICY_BLOCK:
+                if (offerBlocking(r, lane, blockTimeout)) {
+                    synchronized (statsLock) {
+                        blockedCount++;
+                    }
+                    signalWork();
+                    return;
+                }
+                synchronized (statsLock) {
+                    rejectedCount++;
+                }
+                throw new RejectedTaskException("Timed out waiting for queue space.");
+            case POLICY_CALLER_RUNS:
+                synchronized (statsLock) {
+                    callerRunsCount++;
+                }
+                r.run();
+                return;
+            case POLICY_DISCARD_OLDEST:
+                do {
+                    Object discarded = pollOldest(lane);
+                    if (discarded != null) {
+                        synchronized (statsLock) {
+                            discardedCount++;
+                        }
+                        // Release anyone waiting on the discarded task.
+                        discard(discarded);
+                    }
+                } while (!offer(r, lane));
+                signalWork();
+                return;
+            default:
+                synchronized (statsLock) {
+                    rejectedCount++;
+                }
+                throw new RejectedTaskException("Queue is full.");
+        }
+    }
+
+    private void growIfBacklogged() {
+        if (liveCount >= maxPoolSize) {
+            return;
+        }
+        int depth = queue.size();
+        if (depth == 0) {
+            return;
+        }
+        if (depth > growthThreshold
+                || System.currentTimeMillis() - lastTakeTime >= growthWaitTime) {
+            addWorker(null);
+        }
+    }
+
+    private synchronized boolean addWorker(Runnable firstTask) {
+        if (!active || draining || liveCount >= maxPoolSize) {
+            return false;
+        }
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == null) {
+                threads[i] = new PoolWorker(i, firstTask);
+                threads[i].setBackend(backend);
+                threads[i].activate();
+                liveCount++;
+                if (largestPoolSize < liveCount) {
+                    largestPoolSize = liveCount;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean retireWorker(PoolWorker w) {
+        if (!active || liveCount <= poolSize || !queue.isEmpty()) {
+            return false;
+        }
+        threads[w.index] = null;
+        liveCount--;
+        retireStats(w);
+        return true;
+    }
+
+    private void recordDepth() {
+        int depth = remainingTask();
+        synchronized (statsLock) {
+            if (depth > peakDepth) {
+                peakDepth = depth;
+            }
+        }
+    }
+
+    private boolean offer(Runnable r, int lane) {
+        if (lane >= 0) {
+            return laneQueue.enqueue(r, lane);
+        }
+        if (!workStealing) {
+            return queue.enqueue(r);
+        }
+        PoolWorker w = (PoolWorker) currentWorker.get();
+        if (w != null && w.deque.offerLast(r)) {
+            return true;
+        }
+        return offerShared(r);
+    }
+
+    private boolean offerBlocking(Runnable r, int lane, int timeout) {
+        if (lane >= 0) {
+            return laneQueue.blockingEnqueue(r, lane, timeout);
+        }
+        if (!workStealing) {
+            return queue.blockingEnqueue(r, timeout);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (spaceLock) {
+            waitingProducers++;
+            try {
+                while (!offer(r, -1)) {
+                    long wait = 0;
+                    if (timeout != 0) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            return false;
+                        }
+                    }
+                    try {
+                        spaceLock.wait(wait);
+                    } catch (InterruptedException ex) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                waitingProducers--;
+            }
+        }
+    }
+
+    private Object pollOldest(int lane) {
+        if (lane >= 0) {
+            return laneQueue.dequeue(lane);
+        }
+        if (laneQueue != null) {
+            return laneQueue.dequeue(laneQueue.getDefaultLane());
+        }
+        if (!workStealing) {
+            return queue.dequeue();
+        }
+        int start = (nextDeque & 0x7FFFFFFF) % poolSize;
+        for (int i = 0; i < poolSize; i++) {
+            Object r = deques[(start + i) % poolSize].pollFirst();
+            if (r != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private void signalSpace() {
+        if (waitingProducers == 0) {
+            return;
+        }
+        synchronized (spaceLock) {
+            spaceLock.notifyAll();
+        }
+    }
+
+    private boolean offerShared(Runnable r) {
+        int start = (nextDeque++ & 0x7FFFFFFF) % poolSize;
+        for (int i = 0; i < poolSize; i++) {
+            if (deques[(start + i) % poolSize].offerLast(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signalWork() {
+        if (!workStealing || idleCount == 0) {
+            return;
+        }
+        PoolWorker w;
+        synchronized (idleLock) {
+            if (idleCount == 0) {
+                return;
+            }
+            w = idleWorkers[--idleCount];
+            idleWorkers[idleCount] = null;
+        }
+        w.unpark();
+    }
+
+    private void signalAllWork() {
+        PoolWorker[] ws;
+        synchronized (idleLock) {
+            ws = new PoolWorker[idleCount];
+            for (int i = 0; i < idleCount; i++) {
+                ws[i] = idleWorkers[i];
+                idleWorkers[i] = null;
+            }
+            idleCount = 0;
+        }
+        for (int i = 0; i < ws.length; i++) {
+            ws[i].unpark();
+        }
+    }
+
+    private void parkIdle(PoolWorker w) {
+        synchronized (idleLock) {
+            idleWorkers[idleCount++] = w;
+        }
+    }
+
+    private void unparkIdle(PoolWorker w) {
+        synchronized (idleLock) {
+            for (int i = 0; i < idleCount; i++) {
+                if (idleWorkers[i] == w) {
+                    idleWorkers[i] = idleWorkers[--idleCount];
+                    idleWorkers[idleCount] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private Runnable scan(PoolWorker w) {
+        Object r = w.deque.pollLast();
+        if (r != null) {
+            signalSpace();
+            return (Runnable) r;
+        }
+        for (int i = 1; i < poolSize; i++) {
+            WorkStealingDeque victim = deques[(w.index + i) % poolSize];
+            r = victim.pollFirst();
+            if (r != null) {
+                signalSpace();
+                if (victim.size() > 0) {
+                    signalWork();
+                }
+                return (Runnable) r;
+            }
+        }
+        return null;
+    }
+
+    private Runnable takeTask(PoolWorker w) {
+        Runnable r = scan(w);
+        while (r == null) {
+            if (draining) {
+                return null;
+            }
+            // Register as idle before the rescan so that a concurrent
+            // execute() either sees us or its task is seen by the rescan.
+            w.prepareToPark();
+            parkIdle(w);
+            r = scan(w);
+            if (r != null) {
+                unparkIdle(w);
+                break;
+            }
+            if (draining) {
+                unparkIdle(w);
+                return null;
+            }
+            if (!w.park() || w.isShutdownRequested()) {
+                unparkIdle(w);
+                return null;
+            }
+            r = scan(w);
+        }
+        return r;
     }
 
     private class PoolWorker extends ServiceTask {
 
+        private final int index;
+        private final WorkStealingDeque deque;
+        private Runnable firstTask;
+        private final Object parkLock = new Object();
+        private boolean unparked;
+        private Thread parkedThread;
+        private boolean bound = false;
+        private Object[] batch;
+        private int batchLimit = 1;
+        final Object stats = new Object();
+        final LogHistogram waitHist = new LogHistogram();
+        final LogHistogram execHist = new LogHistogram();
+        long busyNanos;
+        long completed;
+        long statsStart = Clock.nanoTime();
+
+        PoolWorker(int index, Runnable firstTask) {
+            this.index = index;
+            this.firstTask = firstTask;
+            this.deque = workStealing ? deques[index] : null;
+        }
+
         protected void taskLoop() {
-            Runnable r = (Runnable) queue.blockingDequeue();
+            Runnable r;
+            if (firstTask != null) {
+                r = firstTask;
+                firstTask = null;
+            } else if (workStealing) {
+                if (!bound) {
+                    currentWorker.set(this);
+                    bound = true;
+                }
+                r = takeTask(this);
+                if (r == null) {
+                    if (draining) {
+                        shutdown(false);
+                    }
+                    return;
+                }
+            } else if (maxPoolSize > poolSize) {
+                r = (Runnable) queue.blockingDequeue(keepAliveTime);
+                if (r == null) {
+                    if (retireWorker(this)) {
+                        shutdown();
+                    }
+                    return;
+                }
+                lastTakeTime = System.currentTimeMillis();
+                growIfBacklogged();
+            } else {
+                r = (Runnable) queue.blockingDequeue();
+                if (r == null) {
+                    return;
+                }
+            }
+            if (r == STOP) {
+                stopped(1);
+                return;
+            }
+            if (!workStealing && batchSize > 1) {
+                runBatch(r);
+            } else {
+                runTask(r);
+            }
+        }
+
+        private void runBatch(Runnable first) {
+            int max = batchSize;
+            if (batch == null || batch.length != max) {
+                batch = new Object[max];
+                batchLimit = max;
+            }
+            int limit = adaptiveBatch ? batchLimit : max;
+            int n = 1 + queue.drainTo(batch, 1, limit - 1);
+            if (adaptiveBatch) {
+                if (n == limit) {
+                    batchLimit = Math.min(max, limit * 2);
+                } else if (n * 2 < limit) {
+                    batchLimit = Math.max(2, limit / 2);
+                }
+            }
+            runTask(first);
+            int stops = 0;
+            for (int i = 1; i < n; i++) {
+                Runnable r = (Runnable) batch[i];
+                batch[i] = null;
+                if (r == STOP) {
+                    stops++;
+                } else {
+                    runTask(r);
+                }
+            }
+            if (stops != 0) {
+                stopped(stops);
+            }
+        }
+
+        /**
+         * Took n STOPs. Put back the ones meant for other workers, and our
+         * own too while real tasks remain, which lanes can reorder ahead of
+         * it; otherwise leave. Other workers' STOPs do not count as
+         * remaining tasks, or idle workers would pass them around forever.
+         */
+        private void stopped(int n) {
+            boolean tasksLeft = takeStops(n);
+            for (int i = 1; i < n; i++) {
+                requeueStop();
+            }
+            if (tasksLeft && requeueStop()) {
+                return;
+            }
+            shutdown(false);
+        }
+
+        private boolean requeueStop() {
+            synchronized (WorkQueue.this) {
+                queuedStops++;
+            }
+            boolean requeued;
+            if (laneQueue != null) {
+                requeued = laneQueue.enqueue(STOP, laneQueue.getLaneCount() - 1);
+            } else {
+                requeued = queue.enqueue(STOP);
+            }
+            if (!requeued) {
+                synchronized (WorkQueue.this) {
+                    queuedStops--;
+                }
+            }
+            return requeued;
+        }
+
+        private void runTask(Runnable r) {
+            long enqueued = 0;
+            if (r instanceof TimedTask) {
+                enqueued = ((TimedTask) r).enqueued;
+                r = ((TimedTask) r).task;
+            }
+            if (!instrumented) {
+                runSafely(r);
+                return;
+            }
+            long start = Clock.nanoTime();
+            runSafely(r);
+            long end = Clock.nanoTime();
+            synchronized (stats) {
+                if (enqueued != 0) {
+                    waitHist.record((start - enqueued) / 1000);
+                }
+                execHist.record((end - start) / 1000);
+                busyNanos += end - start;
+                completed++;
+            }
+        }
+
+        private void runSafely(Runnable r) {
             try {
                 r.run();
             } catch (Throwable t) {
-                t.printStackTrace();
-                System.out.println("[PoolWorker] Uncaught Exception!");
+                uncaught(t);
+            }
+        }
+
+        void resetStats(long nanos) {
+            synchronized (stats) {
+                waitHist.reset();
+                execHist.reset();
+                busyNanos = 0;
+                completed = 0;
+                statsStart = nanos;
             }
         }
+
+        void prepareToPark() {
+            synchronized (parkLock) {
+                unparked = false;
+            }
+        }
+
+        /**
+         * @return false if interrupted
+         */
+        boolean park() {
+            Thread t = Thread.currentThread();
+            if (VirtualThreads.isVirtual(t)) {
+                while (true) {
+                    synchronized (parkLock) {
+                        if (unparked) {
+                            parkedThread = null;
+                            return true;
+                        }
+                        parkedThread = t;
+                    }
+                    VirtualThreads.park(parkLock, 0);
+                    if (Thread.interrupted()) {
+                        synchronized (parkLock) {
+                            parkedThread = null;
+                        }
+                        return false;
+                    }
+                }
+            }
+            synchronized (parkLock) {
+                while (!unparked) {
+                    try {
+                        parkLock.wait();
+                    } catch (InterruptedException ex) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        void unpark() {
+            synchronized (parkLock) {
+                unparked = true;
+                parkLock.notify();
+                if (parkedThread != null) {
+                    VirtualThreads.unpark(parkedThread);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queued by shutdownGracefully() to make a worker leave.
+     */
+    private static final Runnable STOP = new Runnable() {
+
+        public void run() {
+        }
+    };
+
+    /**
+     * Task stamped with its enqueue time while instrumented.
+     */
+    private static class TimedTask implements Runnable {
+
+        final Runnable task;
+        final long enqueued;
+
+        TimedTask(Runnable task, long enqueued) {
+            this.task = task;
+            this.enqueued = enqueued;
+        }
+
+        public void run() {
+            task.run();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import org.squilla.util.LogHistogram;
+
+/**
+ * Snapshot of the instrumentation of a WorkQueue.
+ * Times in the histograms are in microseconds.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkQueueStatistics {
+
+    private final long timestamp;
+    private final long elapsedMillis;
+    private final long completedTasks;
+    private final int queueDepth;
+    private final int peakQueueDepth;
+    private final LogHistogram queueWait;
+    private final LogHistogram execution;
+    private final double[] workerBusyRatio;
+    private final double busyRatio;
+    private final long blockedCount;
+    private final long callerRunsCount;
+    private final long discardedCount;
+    private final long rejectedCount;
+
+    WorkQueueStatistics(long timestamp, long elapsedMillis, long completedTasks,
+            int queueDepth, int peakQueueDepth,
+            LogHistogram queueWait, LogHistogram execution,
+            double[] workerBusyRatio, double busyRatio,
+            long blockedCount, long callerRunsCount, long discardedCount, long rejectedCount) {
+        this.timestamp = timestamp;
+        this.elapsedMillis = elapsedMillis;
+        this.completedTasks = completedTasks;
+        this.queueDepth = queueDepth;
+        this.peakQueueDepth = peakQueueDepth;
+        this.queueWait = queueWait;
+        this.execution = execution;
+        this.workerBusyRatio = workerBusyRatio;
+        this.busyRatio = busyRatio;
+        this.blockedCount = blockedCount;
+        this.callerRunsCount = callerRunsCount;
+        this.discardedCount = discardedCount;
+        this.rejectedCount = rejectedCount;
+    }
+
+    /**
+     * @return time of the snapshot, as System.currentTimeMillis()
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return milliseconds since instrumentation was enabled or reset
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * @return average tasks per second since instrumentation was enabled
+     */
+    public double getTasksPerSecond() {
+        if (elapsedMillis <= 0) {
+            return 0;
+        }
+        return completedTasks * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * @return tasks per second between an earlier snapshot and this one
+     */
+    public double getTasksPerSecondSince(WorkQueueStatistics earlier) {
+        long millis = timestamp - earlier.timestamp;
+        if (millis <= 0) {
+            return 0;
+        }
+        return (completedTasks - earlier.completedTasks) * 1000.0 / millis;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    /**
+     * @return time from execute() to the start of the task, in microseconds
+     */
+    public LogHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return time spent running the task, in microseconds
+     */
+    public LogHistogram getExecution() {
+        return execution;
+    }
+
+    /**
+     * @return fraction of time each live worker spent running tasks
+     */
+    public double[] getWorkerBusyRatio() {
+        return workerBusyRatio;
+    }
+
+    /**
+     * @return fraction of worker time spent running tasks, over all workers
+     */
+    public double getBusyRatio() {
+        return busyRatio;
+    }
+
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    public long getCallerRunsCount() {
+        return callerRunsCount;
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public String toString() {
+        return "WorkQueueStatistics[completed=" + completedTasks
+                + ", tasks/s=" + getTasksPerSecond()
+                + ", depth=" + queueDepth + ", peak=" + peakQueueDepth
+                + ", busy=" + busyRatio
+                + ", wait p50/p99=" + queueWait.getPercentile(0.5) + "/" + queueWait.getPercentile(0.99) + "us"
+                + ", exec p50/p99=" + execution.getPercentile(0.5) + "/" + execution.getPercentile(0.99) + "us"
+                + "]";
+    }
+}
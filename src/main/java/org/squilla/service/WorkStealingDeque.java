@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+/**
+ * Bounded per-worker deque used by the work-stealing mode of WorkQueue.
+ * The owner pushes and pops at the tail, thieves take from the head.
+ * Each deque has its own monitor so workers only contend when stealing.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+class WorkStealingDeque {
+
+    private final Object[] elements;
+    private final int mask;
+    private final int capacity;
+    private int head;
+    private int tail;
+    private int size;
+
+    WorkStealingDeque(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.capacity = capacity;
+        elements = new Object[n];
+        mask = n - 1;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isFull() {
+        return size >= capacity;
+    }
+
+    synchronized boolean offerLast(Object e) {
+        if (size >= capacity) {
+            return false;
+        }
+        elements[tail] = e;
+        tail = (tail + 1) & mask;
+        size++;
+        return true;
+    }
+
+    synchronized Object pollLast() {
+        if (size == 0) {
+            return null;
+        }
+        tail = (tail - 1) & mask;
+        Object e = elements[tail];
+        elements[tail] = null;
+        size--;
+        return e;
+    }
+
+    synchronized Object pollFirst() {
+        if (size == 0) {
+            return null;
+        }
+        Object e = elements[head];
+        elements[head] = null;
+        head = (head + 1) & mask;
+        size--;
+        return e;
+    }
+}
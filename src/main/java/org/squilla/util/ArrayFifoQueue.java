@@ -17,6 +17,10 @@ package org.squilla.util;
 
 /**
  * Array implementation of FIFO Queue.
+ * <p>
+ * Blocking calls wait on the queue monitor, except on virtual threads which
+ * park instead so that they release their carrier thread. With a polling
+ * WaitStrategy they poll the queue instead and are never notified.
  * 
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -25,13 +29,27 @@ public class ArrayFifoQueue implements BlockingFifoQueue {
     private int maxElement;
     private int head;
     private int tail;
-    private int size;
+    private volatile int size;
     private Object[] data;
+    private final Blocker blocker = new Blocker(this);
+    private final WaitStrategy strategy;
     
     public ArrayFifoQueue(int maxSize) {
+        this(maxSize, WaitStrategy.getBlocking());
+    }
+
+    public ArrayFifoQueue(int maxSize, WaitStrategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
         maxElement = maxSize;
         size = 0;
         data = new Object[maxSize];
+        this.strategy = strategy;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
     }
     
     public synchronized int size() {
@@ -66,7 +84,7 @@ public class ArrayFifoQueue implements BlockingFifoQueue {
             throw new NullPointerException();
         }
         enqueueInternal(e);
-        notifyAll();
+        signalWaiters();
         return true;
     }
     
@@ -83,7 +101,7 @@ public class ArrayFifoQueue implements BlockingFifoQueue {
             return null;
         }
         Object e = dequeueInternal();
-        notifyAll();
+        signalWaiters();
         return e;
     }
     
@@ -94,42 +112,173 @@ public class ArrayFifoQueue implements BlockingFifoQueue {
         return data[head];
     }
     
-    public synchronized boolean blockingEnqueue(Object e) {
+    public boolean blockingEnqueue(Object e) {
         return blockingEnqueue(e, 0);
     }
     
-    public synchronized boolean blockingEnqueue(Object e, int timeout) {
-        while (isFull()) {
-            try {
-                wait(timeout);
-            } catch (InterruptedException ex) {
+    public boolean blockingEnqueue(final Object e, int timeout) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (!strategy.isBlocking()) {
+            return pollEnqueue(e, timeout);
+        }
+        if (enqueue(e)) {
+            return true;
+        }
+        return blocker.await(new Blocker.Condition() {
+
+            public boolean attempt() {
+                return enqueue(e);
             }
-            if (timeout != 0 && isFull()) {
-                return false;
+        }, timeout);
+    }
+
+    public Object blockingDequeue() {
+        return this.blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollDequeue(timeout);
+        }
+        Object e = dequeue();
+        if (e != null) {
+            return e;
+        }
+        Blocker.Take take = new Blocker.Take(this);
+        return blocker.await(take, timeout) ? take.element : null;
+    }
+
+    private boolean pollEnqueue(Object e, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (true) {
+            synchronized (this) {
+                if (size < maxElement) {
+                    enqueueInternal(e);
+                    return true;
+                }
             }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return false;
+                }
+            } while (size >= maxElement);
         }
-        enqueueInternal(e);
-        notifyAll();
-        return true;
     }
 
-    public synchronized Object blockingDequeue() {
-        return this.blockingDequeue(0);
+    private Object pollDequeue(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (true) {
+            synchronized (this) {
+                if (size != 0) {
+                    return dequeueInternal();
+                }
+            }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return null;
+                }
+            } while (size == 0);
+        }
+    }
+
+    /**
+     * Wake threads blocked on this queue, whether waiting on the monitor or
+     * parked as virtual threads. Must hold the lock.
+     */
+    protected void signalWaiters() {
+        if (!strategy.isBlocking()) {
+            return;
+        }
+        blocker.signal();
     }
 
-    public synchronized Object blockingDequeue(int timeout) {
-        while (isEmpty()) {
-            try {
-                wait(timeout);
-            } catch (InterruptedException ex) {
+    /**
+     * Enqueue under one lock acquisition and one wake-up.
+     */
+    public synchronized int enqueueAll(Object[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, maxElement - size);
+        for (int i = 0; i < n; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
             }
-            if (timeout != 0 && isEmpty()) {
-                return null;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        int first = Math.min(n, maxElement - tail);
+        System.arraycopy(src, off, data, tail, first);
+        System.arraycopy(src, off + first, data, 0, n - first);
+        tail = (tail + n) % maxElement;
+        size += n;
+        signalWaiters();
+        return n;
+    }
+
+    /**
+     * Dequeue under one lock acquisition and one wake-up.
+     */
+    public synchronized int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(max, size);
+        if (n == 0) {
+            return 0;
+        }
+        int first = Math.min(n, maxElement - head);
+        System.arraycopy(data, head, dst, off, first);
+        System.arraycopy(data, 0, dst, off + first, n - first);
+        clear(head, first);
+        clear(0, n - first);
+        head = (head + n) % maxElement;
+        size -= n;
+        signalWaiters();
+        return n;
+    }
+
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        if (!strategy.isBlocking()) {
+            return pollDrainAtLeast(dst, off, min, max, timeout);
+        }
+        Blocker.Drain drain = new Blocker.Drain(this, dst, off, min, max);
+        blocker.await(drain, timeout);
+        return drain.count;
+    }
+
+    private int pollDrainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        int n = 0;
+        while (true) {
+            n += drainTo(dst, off + n, max - n);
+            if (n >= min) {
+                return n;
             }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return n;
+                }
+            } while (size == 0);
+        }
+    }
+
+    private void clear(int from, int len) {
+        for (int i = from, end = from + len; i < end; i++) {
+            data[i] = null;
         }
-        Object e = dequeueInternal();
-        notifyAll();
-        return e;
     }
 
     public synchronized Object[] drainAll() {
@@ -138,6 +287,7 @@ public class ArrayFifoQueue implements BlockingFifoQueue {
         while (!isEmpty()) {
             objs[i++] = dequeueInternal();
         }
+        signalWaiters();
         return objs;
     }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Array implementation of BlockingLongFifoQueue.
+ * <p>
+ * Bulk calls copy whole runs with System.arraycopy and signal waiters once
+ * per call. Blocking calls wait on the queue monitor, except on virtual
+ * threads which park instead, or poll under a polling WaitStrategy, as in
+ * ArrayFifoQueue.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ArrayLongFifoQueue implements BlockingLongFifoQueue {
+
+    private final long[] data;
+    private final long emptyValue;
+    private int head;
+    private int tail;
+    private volatile int size;
+    private final Blocker blocker = new Blocker(this);
+    private final WaitStrategy strategy;
+
+    /**
+     * Queue whose empty value is -1.
+     */
+    public ArrayLongFifoQueue(int maxSize) {
+        this(maxSize, -1);
+    }
+
+    public ArrayLongFifoQueue(int maxSize, long emptyValue) {
+        this(maxSize, emptyValue, WaitStrategy.getBlocking());
+    }
+
+    public ArrayLongFifoQueue(int maxSize, long emptyValue, WaitStrategy strategy) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
+        data = new long[maxSize];
+        this.emptyValue = emptyValue;
+        this.strategy = strategy;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public long getEmptyValue() {
+        return emptyValue;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized boolean isFull() {
+        return size == data.length;
+    }
+
+    public synchronized boolean enqueue(long e) {
+        if (size == data.length) {
+            return false;
+        }
+        enqueueInternal(e);
+        signalWaiters();
+        return true;
+    }
+
+    public synchronized long dequeue() {
+        if (size == 0) {
+            return emptyValue;
+        }
+        long e = dequeueInternal();
+        signalWaiters();
+        return e;
+    }
+
+    public synchronized long peek() {
+        if (size == 0) {
+            return emptyValue;
+        }
+        return data[head];
+    }
+
+    public synchronized int enqueueAll(long[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, data.length - size);
+        if (n == 0) {
+            return 0;
+        }
+        int first = Math.min(n, data.length - tail);
+        System.arraycopy(src, off, data, tail, first);
+        System.arraycopy(src, off + first, data, 0, n - first);
+        tail = (tail + n) % data.length;
+        size += n;
+        signalWaiters();
+        return n;
+    }
+
+    public synchronized int drainTo(long[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return drainInternal(dst, off, max);
+    }
+
+    public synchronized long[] drainAll() {
+        long[] a = new long[size];
+        drainInternal(a, 0, size);
+        return a;
+    }
+
+    public boolean blockingEnqueue(long e) {
+        return blockingEnqueue(e, 0);
+    }
+
+    public boolean blockingEnqueue(final long e, int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollEnqueue(e, timeout);
+        }
+        if (enqueue(e)) {
+            return true;
+        }
+        return blocker.await(new Blocker.Condition() {
+
+            public boolean attempt() {
+                return enqueue(e);
+            }
+        }, timeout);
+    }
+
+    public long blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public long blockingDequeue(int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollDequeue(timeout);
+        }
+        Take take = new Take();
+        return blocker.await(take, timeout) ? take.element : emptyValue;
+    }
+
+    public int blockingDrainTo(long[] dst, int off, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (max == 0) {
+            return 0;
+        }
+        if (!strategy.isBlocking()) {
+            return pollDrainTo(dst, off, max, timeout);
+        }
+        Drain drain = new Drain(dst, off, max);
+        blocker.await(drain, timeout);
+        return drain.count;
+    }
+
+    private void enqueueInternal(long e) {
+        data[tail] = e;
+        tail = (tail + 1) % data.length;
+        size++;
+    }
+
+    private long dequeueInternal() {
+        long e = data[head];
+        head = (head + 1) % data.length;
+        size--;
+        return e;
+    }
+
+    private int drainInternal(long[] dst, int off, int max) {
+        int n = Math.min(max, size);
+        if (n == 0) {
+            return 0;
+        }
+        int first = Math.min(n, data.length - head);
+        System.arraycopy(data, head, dst, off, first);
+        System.arraycopy(data, 0, dst, off + first, n - first);
+        head = (head + n) % data.length;
+        size -= n;
+        signalWaiters();
+        return n;
+    }
+
+    private boolean pollEnqueue(long e, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (true) {
+            synchronized (this) {
+                if (size != data.length) {
+                    enqueueInternal(e);
+                    return true;
+                }
+            }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return false;
+                }
+            } while (size == data.length);
+        }
+    }
+
+    private long pollDequeue(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (true) {
+            synchronized (this) {
+                if (size != 0) {
+                    return dequeueInternal();
+                }
+            }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return emptyValue;
+                }
+            } while (size == 0);
+        }
+    }
+
+    private int pollDrainTo(long[] dst, int off, int max, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (true) {
+            synchronized (this) {
+                if (size != 0) {
+                    return drainInternal(dst, off, max);
+                }
+            }
+            do {
+                if (!strategy.idle(attempt++, deadline, timeout)) {
+                    return 0;
+                }
+            } while (size == 0);
+        }
+    }
+
+    private void signalWaiters() {
+        if (!strategy.isBlocking()) {
+            return;
+        }
+        blocker.signal();
+    }
+
+    private class Take implements Blocker.Condition {
+
+        long element;
+
+        public boolean attempt() {
+            if (size == 0) {
+                return false;
+            }
+            element = dequeueInternal();
+            signalWaiters();
+            return true;
+        }
+    }
+
+    private class Drain implements Blocker.Condition {
+
+        private final long[] dst;
+        private final int off;
+        private final int max;
+        int count = 0;
+
+        Drain(long[] dst, int off, int max) {
+            this.dst = dst;
+            this.off = off;
+            this.max = max;
+        }
+
+        public boolean attempt() {
+            count = drainInternal(dst, off, max);
+            return count != 0;
+        }
+    }
+}
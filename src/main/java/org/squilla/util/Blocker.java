@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Blocks threads on an owner's lock until a condition holds. Threads wait
+ * on the lock's monitor, except virtual threads which park instead so that
+ * they release their carrier thread.
+ * <p>
+ * The owner calls signal(), holding the lock, whenever a condition may have
+ * changed.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+class Blocker {
+
+    interface Condition {
+
+        /**
+         * Called holding the lock. Performs the blocked operation if it can.
+         * @return true to end the wait
+         */
+        boolean attempt();
+    }
+
+    private final Object lock;
+    private WaitSet parked;
+
+    Blocker(Object lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Wait until the condition holds.
+     * @param timeout milliseconds, 0 to wait forever
+     * @return false if timed out or interrupted, in which case the thread
+     * is left interrupted
+     */
+    boolean await(Condition c, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean virtual = false;
+        try {
+            while (true) {
+                long millis;
+                synchronized (lock) {
+                    if (c.attempt()) {
+                        return true;
+                    }
+                    millis = remaining(deadline, timeout);
+                    if (millis < 0) {
+                        return false;
+                    }
+                    if (!virtual) {
+                        virtual = VirtualThreads.isVirtual(Thread.currentThread());
+                    }
+                    if (!virtual) {
+                        try {
+                            lock.wait(millis);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                        continue;
+                    }
+                    addParked();
+                }
+                VirtualThreads.park(lock, millis);
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+            }
+        } finally {
+            if (virtual) {
+                removeParked();
+            }
+        }
+    }
+
+    /**
+     * Wake all blocked threads. Must hold the lock.
+     */
+    void signal() {
+        lock.notifyAll();
+        if (parked != null) {
+            parked.unparkAll();
+        }
+    }
+
+    private static long remaining(long deadline, int timeout) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 ? millis : -1;
+    }
+
+    private void addParked() {
+        if (parked == null) {
+            parked = new WaitSet();
+        }
+        parked.remove(Thread.currentThread());
+        parked.add(Thread.currentThread());
+    }
+
+    private void removeParked() {
+        synchronized (lock) {
+            if (parked != null) {
+                parked.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * Dequeues one element.
+     */
+    static class Take implements Condition {
+
+        private final FifoQueue queue;
+        Object element;
+
+        Take(FifoQueue queue) {
+            this.queue = queue;
+        }
+
+        public boolean attempt() {
+            element = queue.dequeue();
+            return element != null;
+        }
+    }
+
+    /**
+     * Drains until at least min elements were taken.
+     */
+    static class Drain implements Condition {
+
+        private final FifoQueue queue;
+        private final Object[] dst;
+        private final int off;
+        private final int min;
+        private final int max;
+        int count = 0;
+
+        Drain(FifoQueue queue, Object[] dst, int off, int min, int max) {
+            this.queue = queue;
+            this.dst = dst;
+            this.off = off;
+            this.min = min;
+            this.max = max;
+        }
+
+        public boolean attempt() {
+            count += queue.drainTo(dst, off + count, max - count);
+            return count >= min;
+        }
+    }
+}
@@ -16,6 +16,9 @@
 package org.squilla.util;
 
 /**
+ * FIFO Queue with blocking operations. A timeout of 0 waits forever.
+ * Blocking operations give up, returning false or null, when the timeout
+ * elapses or the waiting thread is interrupted.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -28,4 +31,13 @@ public interface BlockingFifoQueue extends FifoQueue {
     public Object blockingDequeue();
 
     public Object blockingDequeue(int timeout);
+
+    /**
+     * Dequeue into dst, starting at off, until at least min elements are
+     * taken, waiting for more as needed, then take any others queued up to
+     * max.
+     * @return number of elements dequeued; less than min on timeout or
+     * interrupt
+     */
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout);
 }
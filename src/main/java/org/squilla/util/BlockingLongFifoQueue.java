@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * LongFifoQueue with blocking calls. Timed calls give up after timeout
+ * milliseconds, 0 meaning forever, or when interrupted.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface BlockingLongFifoQueue extends LongFifoQueue {
+
+    public boolean blockingEnqueue(long e);
+
+    public boolean blockingEnqueue(long e, int timeout);
+
+    public long blockingDequeue();
+
+    /**
+     * @return head, or the empty value on timeout
+     */
+    public long blockingDequeue(int timeout);
+
+    /**
+     * Wait until the queue is not empty, then dequeue up to max elements
+     * into dst, starting at off.
+     * @return number of elements dequeued, 0 on timeout
+     */
+    public int blockingDrainTo(long[] dst, int off, int max, int timeout);
+}
@@ -21,6 +21,10 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 /**
+ * Byte pipe over a ring buffer. A reader running on a virtual thread parks
+ * instead of waiting on the pipe lock so that it releases its carrier.
+ * Under a polling WaitStrategy the reader polls for the writer's signal
+ * instead of waiting at all.
  * 
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -36,8 +40,20 @@ public class BufferedPipe {
     private final PipeInputStream pis;
     private final PipeOutputStream pos;
     private boolean shutdown = false;
+    private WaitSet parked;
+    private final WaitStrategy strategy;
+    /** Bumped on every signal, for polling readers. */
+    private volatile int signals = 0;
 
     public BufferedPipe(int bufferSize) {
+        this(bufferSize, WaitStrategy.getBlocking());
+    }
+
+    public BufferedPipe(int bufferSize, WaitStrategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
+        this.strategy = strategy;
         this.bufferSize = bufferSize;
         buffer = new byte[bufferSize];
         head = 0;
@@ -52,6 +68,10 @@ public class BufferedPipe {
         return pipeLock;
     }
     
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
+    }
+
     public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
@@ -75,7 +95,7 @@ public class BufferedPipe {
                 tail = 0;
             }
             this.shutdown = shutdown;
-            pipeLock.notifyAll();
+            signalReaders();
         }
     }
     
@@ -85,6 +105,14 @@ public class BufferedPipe {
         }
     }
 
+    private void signalReaders() {
+        signals++;
+        pipeLock.notifyAll();
+        if (parked != null) {
+            parked.unparkAll();
+        }
+    }
+
     protected int bufferAvailable() {
         if (isEmpty()) {
             return 0;
@@ -212,6 +240,14 @@ public class BufferedPipe {
         }
         
         private void waitMinIncoming() throws InterruptedIOException {
+            if (!strategy.isBlocking()) {
+                pollIncoming(1, true);
+                return;
+            }
+            if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                parkIncoming(1, true);
+                return;
+            }
             synchronized (pipeLock) {
                 awaitingSize = 1;
                 while (available() == 0 && !shutdown) {
@@ -225,6 +261,14 @@ public class BufferedPipe {
         }
 
         private void waitIncoming(int length) throws InterruptedIOException {
+            if (!strategy.isBlocking()) {
+                pollIncoming(length, false);
+                return;
+            }
+            if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                parkIncoming(length, false);
+                return;
+            }
             synchronized (pipeLock) {
                 awaitingSize = length;
                 try {
@@ -235,10 +279,80 @@ public class BufferedPipe {
             }
         }
         
+        /**
+         * Park until a byte arrives (untilAvailable) or, like waitIncoming,
+         * until notified or the timeout elapses.
+         */
+        private void parkIncoming(int length, boolean untilAvailable) throws InterruptedIOException {
+            Thread t = Thread.currentThread();
+            try {
+                do {
+                    synchronized (pipeLock) {
+                        awaitingSize = length;
+                        if (untilAvailable && (available() != 0 || shutdown)) {
+                            return;
+                        }
+                        if (parked == null) {
+                            parked = new WaitSet();
+                        }
+                        parked.remove(t);
+                        parked.add(t);
+                    }
+                    VirtualThreads.park(pipeLock, untilAvailable ? 0 : timeout);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("Interrupted while awaiting " + length + " bytes.");
+                    }
+                } while (untilAvailable);
+            } finally {
+                synchronized (pipeLock) {
+                    if (parked != null) {
+                        parked.remove(t);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Poll until a byte arrives (untilAvailable) or, like waitIncoming,
+         * until signalled or the timeout elapses.
+         */
+        private void pollIncoming(int length, boolean untilAvailable) throws InterruptedIOException {
+            int seen;
+            synchronized (pipeLock) {
+                awaitingSize = length;
+                if (untilAvailable && (available() != 0 || shutdown)) {
+                    return;
+                }
+                seen = signals;
+            }
+            int wait = untilAvailable ? 0 : timeout;
+            long deadline = System.currentTimeMillis() + wait;
+            int attempt = 0;
+            while (true) {
+                if (signals != seen) {
+                    if (!untilAvailable) {
+                        return;
+                    }
+                    synchronized (pipeLock) {
+                        if (available() != 0 || shutdown) {
+                            return;
+                        }
+                        seen = signals;
+                    }
+                }
+                if (!strategy.idle(attempt++, deadline, wait)) {
+                    if (wait != 0 && System.currentTimeMillis() >= deadline) {
+                        return;
+                    }
+                    throw new InterruptedIOException("Interrupted while awaiting " + length + " bytes.");
+                }
+            }
+        }
+
         private void notifyIncoming(boolean forceRead) {
             synchronized (pipeLock) {
                 if (awaitingSize <= bufferAvailable() || forceRead) {
-                    pipeLock.notifyAll();
+                    signalReaders();
                 }
             }
         }
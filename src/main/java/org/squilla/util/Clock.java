@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Monotonic nanosecond clock. Uses System.nanoTime() when the JVM has it,
+ * looked up at runtime, and falls back to millisecond resolution.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class Clock {
+
+    private static final Method NANO_TIME;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    static {
+        Method m = null;
+        try {
+            m = System.class.getMethod("nanoTime", new Class[0]);
+        } catch (Throwable t) {
+        }
+        NANO_TIME = m;
+    }
+
+    /**
+     * @return true if nanoTime() has better than millisecond resolution
+     */
+    public static boolean isHighResolution() {
+        return NANO_TIME != null;
+    }
+
+    /**
+     * @return current time in nanoseconds, from an arbitrary origin
+     */
+    public static long nanoTime() {
+        if (NANO_TIME != null) {
+            try {
+                return ((Long) NANO_TIME.invoke(null, NO_ARGS)).longValue();
+            } catch (Exception ex) {
+            }
+        }
+        return System.currentTimeMillis() * 1000000L;
+    }
+}
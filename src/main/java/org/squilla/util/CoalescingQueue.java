@@ -0,0 +1,271 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded FIFO queue that merges an entry into a pending one with the same
+ * key instead of queuing it again. The merged entry keeps the place of the
+ * pending one, so a key that is updated continuously is still served in
+ * turn, and the queue never holds more entries than there are distinct
+ * pending keys.
+ * <p>
+ * An entry whose key is already pending is always accepted, even when the
+ * queue is full.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class CoalescingQueue implements BlockingFifoQueue {
+
+    private final Coalescer coalescer;
+    private final int maxSize;
+    private final Object[] data;
+    private final Object[] keys;
+    /** Ring index of each pending key; entries never move in the ring. */
+    private final Map slots = new HashMap();
+    /** One boxed index per ring slot, reused by every enqueue. */
+    private final Integer[] indices;
+    private int head = 0;
+    private int tail = 0;
+    private int size = 0;
+    private long coalescedCount = 0;
+    private final Blocker blocker = new Blocker(this);
+
+    public CoalescingQueue(int maxSize, Coalescer coalescer) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (coalescer == null) {
+            throw new NullPointerException();
+        }
+        this.coalescer = coalescer;
+        this.maxSize = maxSize;
+        data = new Object[maxSize];
+        keys = new Object[maxSize];
+        indices = new Integer[maxSize];
+        for (int i = 0; i < maxSize; i++) {
+            indices[i] = new Integer(i);
+        }
+    }
+
+    public Coalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * @return entries merged into pending ones rather than queued
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized boolean isFull() {
+        return size >= maxSize;
+    }
+
+    public boolean enqueue(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return offer(coalescer.keyOf(e), e);
+    }
+
+    public synchronized Object dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        Object e = dequeueInternal();
+        signalWaiters();
+        return e;
+    }
+
+    public synchronized Object peek() {
+        return size == 0 ? null : data[head];
+    }
+
+    public boolean blockingEnqueue(Object e) {
+        return blockingEnqueue(e, 0);
+    }
+
+    public boolean blockingEnqueue(final Object e, int timeout) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final Object key = coalescer.keyOf(e);
+        if (offer(key, e)) {
+            return true;
+        }
+        return blocker.await(new Blocker.Condition() {
+
+            public boolean attempt() {
+                return offer(key, e);
+            }
+        }, timeout);
+    }
+
+    public Object blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        Object e = dequeue();
+        if (e != null) {
+            return e;
+        }
+        Blocker.Take take = new Blocker.Take(this);
+        return blocker.await(take, timeout) ? take.element : null;
+    }
+
+    public synchronized int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = 0;
+        while (n < max && size != 0) {
+            dst[off + n++] = dequeueInternal();
+        }
+        if (n != 0) {
+            signalWaiters();
+        }
+        return n;
+    }
+
+    /**
+     * Enqueue or merge elements in order until one neither merges nor
+     * fits, under one lock acquisition and one wake-up.
+     * @return number of elements enqueued or merged
+     */
+    public synchronized int enqueueAll(Object[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < len; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
+            }
+        }
+        int n = 0;
+        boolean queued = false;
+        while (n < len) {
+            Object e = src[off + n];
+            Object key = coalescer.keyOf(e);
+            if (!coalesce(key, e)) {
+                if (size >= maxSize) {
+                    break;
+                }
+                enqueueInternal(key, e);
+                queued = true;
+            }
+            n++;
+        }
+        if (queued) {
+            signalWaiters();
+        }
+        return n;
+    }
+
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        Blocker.Drain drain = new Blocker.Drain(this, dst, off, min, max);
+        blocker.await(drain, timeout);
+        return drain.count;
+    }
+
+    public synchronized Object[] drainAll() {
+        Object[] objs = new Object[size];
+        int i = 0;
+        while (size != 0) {
+            objs[i++] = dequeueInternal();
+        }
+        signalWaiters();
+        return objs;
+    }
+
+    /**
+     * @return true if e was merged into a pending entry
+     */
+    private synchronized boolean offer(Object key, Object e) {
+        if (coalesce(key, e)) {
+            return true;
+        }
+        if (size >= maxSize) {
+            return false;
+        }
+        enqueueInternal(key, e);
+        signalWaiters();
+        return true;
+    }
+
+    private boolean coalesce(Object key, Object e) {
+        if (key == null) {
+            return false;
+        }
+        Integer slot = (Integer) slots.get(key);
+        if (slot == null) {
+            return false;
+        }
+        int i = slot.intValue();
+        Object merged = coalescer.merge(data[i], e);
+        if (merged == null) {
+            throw new NullPointerException("Coalescer returned null");
+        }
+        data[i] = merged;
+        coalescedCount++;
+        return true;
+    }
+
+    private void enqueueInternal(Object key, Object e) {
+        data[tail] = e;
+        keys[tail] = key;
+        if (key != null) {
+            slots.put(key, indices[tail]);
+        }
+        tail = (tail + 1) % maxSize;
+        size++;
+    }
+
+    private Object dequeueInternal() {
+        Object e = data[head];
+        Object key = keys[head];
+        data[head] = null;
+        keys[head] = null;
+        if (key != null) {
+            slots.remove(key);
+        }
+        head = (head + 1) % maxSize;
+        size--;
+        return e;
+    }
+
+    private void signalWaiters() {
+        blocker.signal();
+    }
+}
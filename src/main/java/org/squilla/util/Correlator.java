@@ -0,0 +1,409 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import org.squilla.service.HashedWheelTimer;
+import org.squilla.service.ScheduledTask;
+
+/**
+ * Table of requests awaiting a response, indexed by request id.
+ * <p>
+ * Ids are numbers of a fixed bit width, as carried in a protocol frame.
+ * They are handed out in sequence and wrap around, skipping ids still in
+ * use, so each id names one table slot and completing a request is a
+ * single array lookup. Slots are reused across wraps.
+ * <p>
+ * Timeouts are scheduled on a HashedWheelTimer, either one shared with
+ * the caller or one of the Correlator's own, activated on the first
+ * request with a timeout and shut down by close().
+ * <p>
+ * A request registered with a ResponseListener is released as soon as its
+ * outcome is delivered, on the thread calling complete() or on the timer
+ * thread. A request registered without one keeps its id until await()
+ * collects the outcome or cancel() drops it.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class Correlator {
+
+    public static final int DEFAULT_TICK_DURATION = 10;
+    private static final int TICKS_PER_WHEEL = 256;
+    private static final int STATE_FREE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_DONE = 2;
+    private final Slot[] slots;
+    private final int mask;
+    private final int tickDuration;
+    private final boolean ownTimer;
+    private HashedWheelTimer timer;
+    private int nextId = 0;
+    private int pending = 0;
+    private long timeoutCount = 0;
+    private long unmatchedCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param bits width of request ids
+     */
+    public Correlator(int bits) {
+        this(bits, DEFAULT_TICK_DURATION);
+    }
+
+    /**
+     * @param bits width of request ids, 1 to 24
+     * @param tickDuration timeout resolution in milliseconds
+     */
+    public Correlator(int bits, int tickDuration) {
+        this(bits, null, tickDuration);
+    }
+
+    /**
+     * @param bits width of request ids, 1 to 24
+     * @param timer active timer to schedule timeouts on; close() leaves it
+     * running
+     */
+    public Correlator(int bits, HashedWheelTimer timer) {
+        this(bits, timer, DEFAULT_TICK_DURATION);
+        if (timer == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private Correlator(int bits, HashedWheelTimer timer, int tickDuration) {
+        if (bits < 1 || bits > 24 || tickDuration < 1) {
+            throw new IllegalArgumentException();
+        }
+        slots = new Slot[1 << bits];
+        mask = slots.length - 1;
+        this.tickDuration = tickDuration;
+        this.timer = timer;
+        ownTimer = timer == null;
+    }
+
+    /**
+     * @return number of ids
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return responses that matched no pending request
+     */
+    public synchronized long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    /**
+     * Register a request to be collected with await().
+     * @param timeout milliseconds, 0 for none
+     * @return request id, or -1 if every id is in use
+     */
+    public int register(int timeout) {
+        return register(null, timeout);
+    }
+
+    /**
+     * @param listener receives the outcome, or null to collect it with
+     * await()
+     * @param timeout milliseconds, 0 for none
+     * @return request id, or -1 if every id is in use
+     */
+    public synchronized int register(ResponseListener listener, int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (closed) {
+            throw new IllegalStateException("Correlator is closed.");
+        }
+        for (int n = 0; n < slots.length; n++) {
+            int id = nextId;
+            nextId = (nextId + 1) & mask;
+            Slot s = slots[id];
+            if (s == null) {
+                s = new Slot(id);
+                slots[id] = s;
+            } else if (s.state != STATE_FREE) {
+                continue;
+            }
+            s.state = STATE_PENDING;
+            s.generation++;
+            s.listener = listener;
+            s.response = null;
+            s.done = false;
+            pending++;
+            if (timeout != 0) {
+                schedule(s, timeout);
+            }
+            return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Complete the pending request with the given id.
+     * @return false if no request with that id is pending
+     */
+    public boolean complete(int id, Object response) {
+        Slot s;
+        ResponseListener l;
+        synchronized (this) {
+            s = id >= 0 && id <= mask ? slots[id] : null;
+            if (s == null || s.state != STATE_PENDING) {
+                unmatchedCount++;
+                return false;
+            }
+            unschedule(s);
+            l = s.listener;
+            if (l != null) {
+                release(s);
+            } else {
+                s.response = response;
+                s.state = STATE_DONE;
+                s.done = true;
+            }
+        }
+        if (l != null) {
+            received(l, id, response);
+        } else {
+            s.signal();
+        }
+        return true;
+    }
+
+    /**
+     * Drop a request, pending or done, freeing its id. Its listener is not
+     * called.
+     * @return false if the id was not in use
+     */
+    public boolean cancel(int id) {
+        Slot s;
+        synchronized (this) {
+            s = id >= 0 && id <= mask ? slots[id] : null;
+            if (s == null || s.state == STATE_FREE) {
+                return false;
+            }
+            if (s.state == STATE_PENDING) {
+                unschedule(s);
+            }
+            release(s);
+        }
+        s.signal();
+        return true;
+    }
+
+    public synchronized boolean isPending(int id) {
+        Slot s = id >= 0 && id <= mask ? slots[id] : null;
+        return s != null && s.state == STATE_PENDING;
+    }
+
+    /**
+     * Wait for the outcome of a request registered without a listener,
+     * and free its id.
+     * An interrupt cancels the request and leaves the thread interrupted.
+     * @return the response, or null if the request timed out, was
+     * cancelled or the wait was interrupted
+     */
+    public Object await(int id) {
+        return await(id, 0);
+    }
+
+    /**
+     * @param timeout milliseconds to wait, 0 to wait for the request's own
+     * timeout; the request is cancelled if this one elapses first
+     */
+    public Object await(int id, int timeout) {
+        Slot s;
+        synchronized (this) {
+            s = id >= 0 && id <= mask ? slots[id] : null;
+            if (s == null || s.state == STATE_FREE) {
+                return null;
+            }
+            if (s.listener != null) {
+                throw new IllegalStateException("Request has a listener.");
+            }
+        }
+        s.await(timeout);
+        synchronized (this) {
+            if (s.state == STATE_PENDING) {
+                unschedule(s);
+            }
+            if (s.state == STATE_FREE) {
+                return null;
+            }
+            Object r = s.response;
+            release(s);
+            return r;
+        }
+    }
+
+    /**
+     * Refuse new requests and cancel the timeouts of pending ones, which
+     * no longer time out. Shuts down the Correlator's own timer.
+     */
+    public void close() {
+        HashedWheelTimer t;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null) {
+                    unschedule(slots[i]);
+                }
+            }
+            t = ownTimer ? timer : null;
+            if (ownTimer) {
+                timer = null;
+            }
+        }
+        if (t != null) {
+            t.shutdown();
+        }
+    }
+
+    private void release(Slot s) {
+        s.state = STATE_FREE;
+        s.listener = null;
+        s.response = null;
+        s.done = true;
+        pending--;
+    }
+
+    private void schedule(Slot s, int timeout) {
+        if (timer == null) {
+            timer = new HashedWheelTimer(null, tickDuration, TICKS_PER_WHEEL);
+            timer.activate();
+        }
+        s.timeout = timer.schedule(new Expiry(s, s.generation), timeout);
+    }
+
+    private void unschedule(Slot s) {
+        if (s.timeout != null) {
+            s.timeout.cancel();
+            s.timeout = null;
+        }
+    }
+
+    /**
+     * Time out the request, unless its slot has moved on since.
+     */
+    private void expire(Slot s, int generation) {
+        ResponseListener l;
+        synchronized (this) {
+            if (s.generation != generation || s.state != STATE_PENDING) {
+                return;
+            }
+            s.timeout = null;
+            timeoutCount++;
+            l = s.listener;
+            if (l != null) {
+                release(s);
+            } else {
+                s.state = STATE_DONE;
+                s.done = true;
+            }
+        }
+        if (l != null) {
+            try {
+                l.timedOut(s.id);
+            } catch (Throwable t) {
+                System.err.println("[Correlator] Uncaught exception: " + t);
+                t.printStackTrace();
+            }
+        } else {
+            s.signal();
+        }
+    }
+
+    private static void received(ResponseListener l, int id, Object response) {
+        try {
+            l.received(id, response);
+        } catch (Throwable t) {
+            System.err.println("[Correlator] Uncaught exception: " + t);
+            t.printStackTrace();
+        }
+    }
+
+    private class Expiry implements Runnable {
+
+        private final Slot slot;
+        private final int generation;
+
+        Expiry(Slot slot, int generation) {
+            this.slot = slot;
+            this.generation = generation;
+        }
+
+        public void run() {
+            expire(slot, generation);
+        }
+    }
+
+    private static class Slot {
+
+        final int id;
+        // Guarded by the Correlator.
+        int state = STATE_FREE;
+        ResponseListener listener;
+        Object response;
+        /** Bumped on every register, so a late expiry can tell. */
+        int generation;
+        ScheduledTask timeout;
+        /** Set once the request leaves the pending state. */
+        volatile boolean done;
+
+        Slot(int id) {
+            this.id = id;
+        }
+
+        synchronized void signal() {
+            notifyAll();
+        }
+
+        /**
+         * Wait for done, signalled under this monitor after it is set.
+         * Returns early on interrupt, keeping the interrupt status.
+         */
+        synchronized void await(int timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!done) {
+                long millis = 0;
+                if (timeout != 0) {
+                    millis = deadline - System.currentTimeMillis();
+                    if (millis <= 0) {
+                        return;
+                    }
+                }
+                try {
+                    wait(millis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
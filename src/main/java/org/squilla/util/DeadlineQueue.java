@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Bounded queue served earliest-deadline-first. Entries with equal
+ * deadlines, including all entries queued without one, leave in the order
+ * they came, so without deadlines it behaves as a plain FIFO.
+ * <p>
+ * Deadlines are System.currentTimeMillis() values; the queue only orders
+ * by them and never drops an entry.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DeadlineQueue implements BlockingFifoQueue {
+
+    /** Deadline of entries queued without one. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+    private final int maxSize;
+    private final Object[] data;
+    private final long[] deadlines;
+    private final long[] orders;
+    private int size = 0;
+    private long order = 0;
+    private final Blocker blocker = new Blocker(this);
+
+    public DeadlineQueue(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxSize = maxSize;
+        data = new Object[maxSize];
+        deadlines = new long[maxSize];
+        orders = new long[maxSize];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized boolean isFull() {
+        return size >= maxSize;
+    }
+
+    public boolean enqueue(Object e) {
+        return enqueue(e, NO_DEADLINE);
+    }
+
+    public synchronized boolean enqueue(Object e, long deadline) {
+        if (size >= maxSize) {
+            return false;
+        }
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        enqueueInternal(e, deadline);
+        signalWaiters();
+        return true;
+    }
+
+    public synchronized Object dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        Object e = dequeueInternal();
+        signalWaiters();
+        return e;
+    }
+
+    /**
+     * @return entry with the earliest deadline
+     */
+    public synchronized Object peek() {
+        return size == 0 ? null : data[0];
+    }
+
+    /**
+     * @return earliest deadline, or NO_DEADLINE if empty
+     */
+    public synchronized long peekDeadline() {
+        return size == 0 ? NO_DEADLINE : deadlines[0];
+    }
+
+    public boolean blockingEnqueue(Object e) {
+        return blockingEnqueue(e, NO_DEADLINE, 0);
+    }
+
+    public boolean blockingEnqueue(Object e, int timeout) {
+        return blockingEnqueue(e, NO_DEADLINE, timeout);
+    }
+
+    public boolean blockingEnqueue(final Object e, final long deadline, int timeout) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (enqueue(e, deadline)) {
+            return true;
+        }
+        return blocker.await(new Blocker.Condition() {
+
+            public boolean attempt() {
+                return enqueue(e, deadline);
+            }
+        }, timeout);
+    }
+
+    public Object blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        Object e = dequeue();
+        if (e != null) {
+            return e;
+        }
+        Blocker.Take take = new Blocker.Take(this);
+        return blocker.await(take, timeout) ? take.element : null;
+    }
+
+    /**
+     * Dequeue up to max entries, earliest deadline first.
+     */
+    public synchronized int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = 0;
+        while (n < max && size != 0) {
+            dst[off + n++] = dequeueInternal();
+        }
+        if (n != 0) {
+            signalWaiters();
+        }
+        return n;
+    }
+
+    /**
+     * Enqueue without deadlines, under one lock acquisition and one
+     * wake-up.
+     */
+    public synchronized int enqueueAll(Object[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, maxSize - size);
+        for (int i = 0; i < n; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        for (int i = 0; i < n; i++) {
+            enqueueInternal(src[off + i], NO_DEADLINE);
+        }
+        signalWaiters();
+        return n;
+    }
+
+    /**
+     * Dequeue earliest deadline first.
+     */
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        Blocker.Drain drain = new Blocker.Drain(this, dst, off, min, max);
+        blocker.await(drain, timeout);
+        return drain.count;
+    }
+
+    /**
+     * @return all entries, earliest deadline first
+     */
+    public synchronized Object[] drainAll() {
+        Object[] objs = new Object[size];
+        int i = 0;
+        while (size != 0) {
+            objs[i++] = dequeueInternal();
+        }
+        signalWaiters();
+        return objs;
+    }
+
+    private void enqueueInternal(Object e, long deadline) {
+        long o = order++;
+        int i = size++;
+        // Sift up.
+        while (i > 0) {
+            int p = (i - 1) >> 1;
+            if (!before(deadline, o, deadlines[p], orders[p])) {
+                break;
+            }
+            set(i, data[p], deadlines[p], orders[p]);
+            i = p;
+        }
+        set(i, e, deadline, o);
+    }
+
+    private Object dequeueInternal() {
+        Object e = data[0];
+        int n = --size;
+        Object last = data[n];
+        long d = deadlines[n];
+        long o = orders[n];
+        data[n] = null;
+        if (n != 0) {
+            // Sift down.
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= n) {
+                    break;
+                }
+                if (c + 1 < n && before(deadlines[c + 1], orders[c + 1], deadlines[c], orders[c])) {
+                    c++;
+                }
+                if (!before(deadlines[c], orders[c], d, o)) {
+                    break;
+                }
+                set(i, data[c], deadlines[c], orders[c]);
+                i = c;
+            }
+            set(i, last, d, o);
+        }
+        return e;
+    }
+
+    private void set(int i, Object e, long deadline, long o) {
+        data[i] = e;
+        deadlines[i] = deadline;
+        orders[i] = o;
+    }
+
+    private static boolean before(long d1, long o1, long d2, long o2) {
+        return d1 < d2 || (d1 == d2 && o1 < o2);
+    }
+
+    private void signalWaiters() {
+        blocker.signal();
+    }
+}
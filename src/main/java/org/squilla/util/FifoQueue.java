@@ -35,4 +35,16 @@ public interface FifoQueue {
     public Object peek();
     
     public Object[] drainAll();
+
+    /**
+     * Dequeue up to max elements into dst, starting at off.
+     * @return number of elements dequeued
+     */
+    public int drainTo(Object[] dst, int off, int max);
+
+    /**
+     * Enqueue as many of src[off]..src[off + len - 1] as fit, in order.
+     * @return number of elements enqueued
+     */
+    public int enqueueAll(Object[] src, int off, int len);
 }
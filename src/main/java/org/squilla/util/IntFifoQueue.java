@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * First-In First-Out Queue of int values, without boxing.
+ * <p>
+ * There is no null to report an empty queue, so dequeue() and peek()
+ * return the empty value instead. Where that value can also be queued, use
+ * isEmpty() or drainTo() to tell them apart.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface IntFifoQueue {
+
+    public int size();
+
+    public boolean isEmpty();
+
+    public boolean isFull();
+
+    public boolean enqueue(int e);
+
+    /**
+     * @return head, or the empty value if empty
+     */
+    public int dequeue();
+
+    public int peek();
+
+    /**
+     * @return value returned by dequeue() and peek() when empty
+     */
+    public int getEmptyValue();
+
+    /**
+     * Enqueue as many of src[off]..src[off + len - 1] as fit, in order.
+     * @return number of elements enqueued
+     */
+    public int enqueueAll(int[] src, int off, int len);
+
+    /**
+     * Dequeue up to max elements into dst, starting at off.
+     * @return number of elements dequeued
+     */
+    public int drainTo(int[] dst, int off, int max);
+
+    public int[] drainAll();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Histogram with power-of-two buckets. Bucket 0 counts values below 1,
+ * bucket i counts values in [2^(i-1), 2^i). Not thread-safe.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class LogHistogram {
+
+    public static final int BUCKETS = 64;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LogHistogram h) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += h.counts[i];
+        }
+        count += h.count;
+        sum += h.sum;
+        if (h.max > max) {
+            max = h.max;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public LogHistogram copy() {
+        LogHistogram h = new LogHistogram();
+        h.add(this);
+        return h;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param p fraction, 0.0 to 1.0
+     * @return upper bound of the bucket holding the p-th value
+     */
+    public long getPercentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return copy of the bucket counts
+     */
+    public long[] getBucketCounts() {
+        long[] a = new long[BUCKETS];
+        System.arraycopy(counts, 0, a, 0, BUCKETS);
+        return a;
+    }
+
+    /**
+     * @return smallest value not counted in bucket i
+     */
+    public static long upperBound(int i) {
+        return i >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+    }
+
+    private static int bucketOf(long value) {
+        int b = 0;
+        while (value != 0) {
+            value >>>= 1;
+            b++;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Bounded FIFO queue for any number of producer and consumer threads,
+ * built on a ring of slots that carry sequence numbers.
+ * <p>
+ * A slot's sequence tells which side may use it next: a producer at
+ * position p needs sequence p, stores its entry and publishes p + 1; a
+ * consumer at p needs p + 1, takes the entry and publishes p + capacity,
+ * handing the slot to the producer one lap later. Without compare-and-set
+ * on this platform level, each side claims its position under a lock of
+ * its own that is held only to bump a counter; the entry itself is
+ * written and read outside it. Producers never contend with consumers,
+ * and nothing is signalled unless a thread is waiting.
+ * <p>
+ * Blocking calls spin for a bounded number of attempts before they wait,
+ * or only poll under a polling WaitStrategy.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class MpmcRingQueue implements BlockingFifoQueue {
+
+    private static final int SPIN_COUNT = 64;
+    private final Slot[] slots;
+    private final int mask;
+    private final WaitStrategy strategy;
+    private final Object putLock = new Object();
+    private final Object takeLock = new Object();
+    private final Object notEmpty = new Object();
+    private final Object notFull = new Object();
+    long p01, p02, p03, p04, p05, p06, p07;
+    private volatile long tail = 0;
+    long p11, p12, p13, p14, p15, p16, p17;
+    private volatile long head = 0;
+    long p21, p22, p23, p24, p25, p26, p27;
+    private volatile int waitingConsumers = 0;
+    private volatile int waitingProducers = 0;
+
+    /**
+     * @param capacity rounded up to a power of two, at least 2
+     */
+    public MpmcRingQueue(int capacity) {
+        this(capacity, WaitStrategy.getBlocking());
+    }
+
+    /**
+     * @param capacity rounded up to a power of two, at least 2
+     * @param strategy how blocking calls wait once the brief spin is over;
+     * a polling strategy replaces the spin as well
+     */
+    public MpmcRingQueue(int capacity, WaitStrategy strategy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException();
+        }
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
+        this.strategy = strategy;
+        // With a single slot, a published entry would look free to the
+        // next producer, since both want the same sequence.
+        int n = 2;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        slots = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = n - 1;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return number of claimed positions, which may include entries
+     * still being written or read
+     */
+    public int size() {
+        long h = head;
+        long t = tail;
+        int n = (int) (t - h);
+        return n < 0 ? 0 : (n > slots.length ? slots.length : n);
+    }
+
+    /**
+     * @return true unless the entry at the head is published, so that a
+     * false result means dequeue() can succeed barring other consumers
+     */
+    public boolean isEmpty() {
+        long h = head;
+        return slots[(int) h & mask].seq != h + 1;
+    }
+
+    /**
+     * @return true unless the slot at the tail is released, so that a false
+     * result means enqueue() can succeed barring other producers
+     */
+    public boolean isFull() {
+        long t = tail;
+        return slots[(int) t & mask].seq != t;
+    }
+
+    public boolean enqueue(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        Slot s;
+        long pos;
+        synchronized (putLock) {
+            pos = tail;
+            s = slots[(int) pos & mask];
+            if (s.seq != pos) {
+                // Not yet released by the consumer one lap behind.
+                return false;
+            }
+            tail = pos + 1;
+        }
+        s.value = e;
+        s.seq = pos + 1;
+        if (waitingConsumers != 0) {
+            synchronized (notEmpty) {
+                notEmpty.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    public Object dequeue() {
+        Slot s;
+        long pos;
+        synchronized (takeLock) {
+            pos = head;
+            s = slots[(int) pos & mask];
+            if (s.seq != pos + 1) {
+                // Empty, or the producer is still writing.
+                return null;
+            }
+            head = pos + 1;
+        }
+        Object e = s.value;
+        s.value = null;
+        s.seq = pos + slots.length;
+        if (waitingProducers != 0) {
+            synchronized (notFull) {
+                notFull.notifyAll();
+            }
+        }
+        return e;
+    }
+
+    public Object peek() {
+        synchronized (takeLock) {
+            long pos = head;
+            Slot s = slots[(int) pos & mask];
+            if (s.seq != pos + 1) {
+                return null;
+            }
+            return s.value;
+        }
+    }
+
+    public boolean blockingEnqueue(Object e) {
+        return blockingEnqueue(e, 0);
+    }
+
+    public boolean blockingEnqueue(Object e, int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollEnqueue(e, timeout);
+        }
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            if (enqueue(e)) {
+                return true;
+            }
+            Thread.yield();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (notFull) {
+            waitingProducers++;
+            try {
+                while (!enqueue(e)) {
+                    long millis = remaining(deadline, timeout);
+                    if (millis < 0) {
+                        return false;
+                    }
+                    try {
+                        notFull.wait(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                waitingProducers--;
+            }
+        }
+    }
+
+    public Object blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollDequeue(timeout);
+        }
+        Object e;
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            if ((e = dequeue()) != null) {
+                return e;
+            }
+            Thread.yield();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (notEmpty) {
+            // Counted before the recheck, so a producer publishing after
+            // it sees the count and signals.
+            waitingConsumers++;
+            try {
+                while ((e = dequeue()) == null) {
+                    long millis = remaining(deadline, timeout);
+                    if (millis < 0) {
+                        return null;
+                    }
+                    try {
+                        notEmpty.wait(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                return e;
+            } finally {
+                waitingConsumers--;
+            }
+        }
+    }
+
+    public int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = 0;
+        synchronized (takeLock) {
+            long pos = head;
+            while (n < max) {
+                Slot s = slots[(int) (pos + n) & mask];
+                if (s.seq != pos + n + 1) {
+                    break;
+                }
+                dst[off + n] = s.value;
+                s.value = null;
+                s.seq = pos + n + slots.length;
+                n++;
+            }
+            head = pos + n;
+        }
+        if (n != 0 && waitingProducers != 0) {
+            synchronized (notFull) {
+                notFull.notifyAll();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Claim as many consecutive free slots as fit under one acquisition of
+     * the put lock, then publish them with at most one signal.
+     */
+    public int enqueueAll(Object[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < len; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
+            }
+        }
+        long pos;
+        int n = 0;
+        synchronized (putLock) {
+            pos = tail;
+            while (n < len && slots[(int) (pos + n) & mask].seq == pos + n) {
+                n++;
+            }
+            tail = pos + n;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        for (int k = 0; k < n; k++) {
+            Slot s = slots[(int) (pos + k) & mask];
+            s.value = src[off + k];
+            s.seq = pos + k + 1;
+        }
+        if (waitingConsumers != 0) {
+            synchronized (notEmpty) {
+                notEmpty.notifyAll();
+            }
+        }
+        return n;
+    }
+
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        int n = drainTo(dst, off, max);
+        while (n < min) {
+            // Wait for one element the usual way, then take what followed.
+            long millis = remaining(deadline, timeout);
+            if (millis < 0) {
+                return n;
+            }
+            Object e = blockingDequeue((int) millis);
+            if (e == null) {
+                return n;
+            }
+            dst[off + n++] = e;
+            n += drainTo(dst, off + n, max - n);
+        }
+        return n;
+    }
+
+    public Object[] drainAll() {
+        Object[] objs = new Object[slots.length];
+        int n = drainTo(objs, 0, objs.length);
+        Object[] a = new Object[n];
+        System.arraycopy(objs, 0, a, 0, n);
+        return a;
+    }
+
+    private boolean pollEnqueue(Object e, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (!enqueue(e)) {
+            if (!strategy.idle(attempt++, deadline, timeout)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object pollDequeue(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        Object e;
+        while ((e = dequeue()) == null) {
+            if (!strategy.idle(attempt++, deadline, timeout)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    private static long remaining(long deadline, int timeout) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 ? millis : -1;
+    }
+
+    private static class Slot {
+
+        volatile long seq;
+        Object value;
+
+        Slot(long seq) {
+            this.seq = seq;
+        }
+    }
+}
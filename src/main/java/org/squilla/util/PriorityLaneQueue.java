@@ -0,0 +1,429 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * FIFO Queue split into a fixed number of priority lanes, lane 0 being the
+ * highest. Each lane is a bounded FIFO of its own, so a flooded lane never
+ * takes space from the others.
+ * <p>
+ * Dequeue is strict-priority by default, or weighted-fair (smooth weighted
+ * round-robin over the non-empty lanes). With aging enabled, the head of
+ * any lane that has waited longer than the aging time is served first,
+ * oldest first, so no lane starves.
+ * <p>
+ * Methods without a lane argument enqueue to the default lane.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PriorityLaneQueue implements BlockingFifoQueue {
+
+    public static final int DEFAULT_AGING_TIME = 1000;
+    private final int lanes;
+    private final int laneSize;
+    private final Object[][] data;
+    private final long[][] stamps;
+    private final int[] head;
+    private final int[] tail;
+    private final int[] count;
+    private final int[] peak;
+    private final int[] weights;
+    private final int[] current;
+    private int size;
+    private boolean strict = true;
+    private int agingTime = DEFAULT_AGING_TIME;
+    private int defaultLane;
+    private final Blocker blocker = new Blocker(this);
+
+    /**
+     * @param lanes number of lanes
+     * @param laneSize capacity of each lane
+     */
+    public PriorityLaneQueue(int lanes, int laneSize) {
+        if (lanes < 1 || laneSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.lanes = lanes;
+        this.laneSize = laneSize;
+        data = new Object[lanes][laneSize];
+        stamps = new long[lanes][laneSize];
+        head = new int[lanes];
+        tail = new int[lanes];
+        count = new int[lanes];
+        peak = new int[lanes];
+        weights = new int[lanes];
+        current = new int[lanes];
+        for (int i = 0; i < lanes; i++) {
+            weights[i] = lanes - i;
+        }
+        defaultLane = (lanes - 1) / 2;
+    }
+
+    public int getLaneCount() {
+        return lanes;
+    }
+
+    public int getLaneSize() {
+        return laneSize;
+    }
+
+    public synchronized int getDefaultLane() {
+        return defaultLane;
+    }
+
+    public synchronized void setDefaultLane(int lane) {
+        checkLane(lane);
+        defaultLane = lane;
+    }
+
+    public synchronized boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * @param strict true for strict-priority, false for weighted-fair dequeue
+     */
+    public synchronized void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    public synchronized int[] getWeights() {
+        int[] w = new int[lanes];
+        System.arraycopy(weights, 0, w, 0, lanes);
+        return w;
+    }
+
+    /**
+     * @param w weight of each lane for weighted-fair dequeue, all positive;
+     * defaults to lanes - lane
+     */
+    public synchronized void setWeights(int[] w) {
+        if (w.length != lanes) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < lanes; i++) {
+            if (w[i] < 1) {
+                throw new IllegalArgumentException();
+            }
+        }
+        System.arraycopy(w, 0, weights, 0, lanes);
+        for (int i = 0; i < lanes; i++) {
+            current[i] = 0;
+        }
+    }
+
+    public synchronized int getAgingTime() {
+        return agingTime;
+    }
+
+    /**
+     * @param agingTime milliseconds after which a waiting head is served
+     * ahead of higher lanes, 0 to disable aging
+     */
+    public synchronized void setAgingTime(int agingTime) {
+        if (agingTime < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (this.agingTime == 0 && agingTime != 0) {
+            // Entries queued while aging was off start aging now.
+            long now = System.currentTimeMillis();
+            for (int l = 0; l < lanes; l++) {
+                for (int i = 0, j = head[l]; i < count[l]; i++, j = (j + 1) % laneSize) {
+                    stamps[l][j] = now;
+                }
+            }
+        }
+        this.agingTime = agingTime;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int size(int lane) {
+        checkLane(lane);
+        return count[lane];
+    }
+
+    /**
+     * @return highest depth the lane has reached
+     */
+    public synchronized int peakSize(int lane) {
+        checkLane(lane);
+        return peak[lane];
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized boolean isFull() {
+        return count[defaultLane] >= laneSize;
+    }
+
+    public synchronized boolean isFull(int lane) {
+        checkLane(lane);
+        return count[lane] >= laneSize;
+    }
+
+    public synchronized boolean enqueue(Object e) {
+        return enqueue(e, defaultLane);
+    }
+
+    public synchronized boolean enqueue(Object e, int lane) {
+        checkLane(lane);
+        if (count[lane] >= laneSize) {
+            return false;
+        }
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        enqueueInternal(e, lane);
+        signalWaiters();
+        return true;
+    }
+
+    public synchronized Object dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        Object e = dequeueInternal(selectLane());
+        signalWaiters();
+        return e;
+    }
+
+    /**
+     * Dequeue from the given lane only, bypassing lane selection.
+     */
+    public synchronized Object dequeue(int lane) {
+        checkLane(lane);
+        if (count[lane] == 0) {
+            return null;
+        }
+        Object e = dequeueInternal(lane);
+        signalWaiters();
+        return e;
+    }
+
+    /**
+     * @return head of the highest non-empty lane
+     */
+    public synchronized Object peek() {
+        for (int l = 0; l < lanes; l++) {
+            if (count[l] != 0) {
+                return data[l][head[l]];
+            }
+        }
+        return null;
+    }
+
+    public boolean blockingEnqueue(Object e) {
+        return blockingEnqueue(e, 0);
+    }
+
+    public boolean blockingEnqueue(Object e, int timeout) {
+        int lane;
+        synchronized (this) {
+            lane = defaultLane;
+        }
+        return blockingEnqueue(e, lane, timeout);
+    }
+
+    public boolean blockingEnqueue(final Object e, final int lane, int timeout) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (enqueue(e, lane)) {
+            return true;
+        }
+        return blocker.await(new Blocker.Condition() {
+
+            public boolean attempt() {
+                return enqueue(e, lane);
+            }
+        }, timeout);
+    }
+
+    public Object blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        Object e = dequeue();
+        if (e != null) {
+            return e;
+        }
+        Blocker.Take take = new Blocker.Take(this);
+        return blocker.await(take, timeout) ? take.element : null;
+    }
+
+    /**
+     * Dequeue up to max elements in lane selection order.
+     */
+    public synchronized int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = 0;
+        while (n < max && size != 0) {
+            dst[off + n++] = dequeueInternal(selectLane());
+        }
+        if (n != 0) {
+            signalWaiters();
+        }
+        return n;
+    }
+
+    public int enqueueAll(Object[] src, int off, int len) {
+        int lane;
+        synchronized (this) {
+            lane = defaultLane;
+        }
+        return enqueueAll(src, off, len, lane);
+    }
+
+    /**
+     * Enqueue as many of src[off]..src[off + len - 1] as fit in the lane,
+     * in order, under one lock acquisition and one wake-up.
+     * @return number of elements enqueued
+     */
+    public synchronized int enqueueAll(Object[] src, int off, int len, int lane) {
+        checkLane(lane);
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, laneSize - count[lane]);
+        for (int i = 0; i < n; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        for (int i = 0; i < n; i++) {
+            enqueueInternal(src[off + i], lane);
+        }
+        signalWaiters();
+        return n;
+    }
+
+    /**
+     * Dequeue in lane selection order.
+     */
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        Blocker.Drain drain = new Blocker.Drain(this, dst, off, min, max);
+        blocker.await(drain, timeout);
+        return drain.count;
+    }
+
+    /**
+     * @return all entries, highest lane first
+     */
+    public synchronized Object[] drainAll() {
+        Object[] objs = new Object[size];
+        int i = 0;
+        for (int l = 0; l < lanes; l++) {
+            while (count[l] != 0) {
+                objs[i++] = dequeueInternal(l);
+            }
+        }
+        signalWaiters();
+        return objs;
+    }
+
+    private void enqueueInternal(Object e, int lane) {
+        int t = tail[lane];
+        data[lane][t] = e;
+        if (agingTime != 0) {
+            stamps[lane][t] = System.currentTimeMillis();
+        }
+        tail[lane] = (t + 1) % laneSize;
+        size++;
+        if (++count[lane] > peak[lane]) {
+            peak[lane] = count[lane];
+        }
+    }
+
+    private Object dequeueInternal(int lane) {
+        int h = head[lane];
+        Object e = data[lane][h];
+        data[lane][h] = null;
+        head[lane] = (h + 1) % laneSize;
+        size--;
+        if (--count[lane] == 0) {
+            current[lane] = 0;
+        }
+        return e;
+    }
+
+    private int selectLane() {
+        if (agingTime != 0) {
+            long oldest = System.currentTimeMillis() - agingTime;
+            int aged = -1;
+            for (int l = 0; l < lanes; l++) {
+                if (count[l] == 0) {
+                    continue;
+                }
+                long stamp = stamps[l][head[l]];
+                // Ties go to the higher lane.
+                if (stamp < oldest || (aged == -1 && stamp == oldest)) {
+                    oldest = stamp;
+                    aged = l;
+                }
+            }
+            if (aged != -1) {
+                return aged;
+            }
+        }
+        if (strict) {
+            for (int l = 0; l < lanes; l++) {
+                if (count[l] != 0) {
+                    return l;
+                }
+            }
+        }
+        int best = -1;
+        int total = 0;
+        for (int l = 0; l < lanes; l++) {
+            if (count[l] != 0) {
+                current[l] += weights[l];
+                total += weights[l];
+                if (best == -1 || current[l] > current[best]) {
+                    best = l;
+                }
+            }
+        }
+        current[best] -= total;
+        return best;
+    }
+
+    private void checkLane(int lane) {
+        if (lane < 0 || lane >= lanes) {
+            throw new IllegalArgumentException("No such lane: " + lane);
+        }
+    }
+
+    private void signalWaiters() {
+        blocker.signal();
+    }
+}
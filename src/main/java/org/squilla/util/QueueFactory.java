@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Creates the BlockingFifoQueue behind a WorkQueue or processor.
+ * <p>
+ * The default factory makes ArrayFifoQueue, unless the system property
+ * <code>org.squilla.util.queue</code> is set to <code>mpmc</code>. The
+ * SPSC factory is never a default, as it only suits queues with a single
+ * producer and a single consumer.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class QueueFactory {
+
+    public static final String QUEUE_PROPERTY = "org.squilla.util.queue";
+
+    private static final QueueFactory ARRAY = new QueueFactory() {
+
+        public BlockingFifoQueue newQueue(int capacity) {
+            return new ArrayFifoQueue(capacity);
+        }
+    };
+
+    private static final QueueFactory MPMC = new QueueFactory() {
+
+        public BlockingFifoQueue newQueue(int capacity) {
+            return new MpmcRingQueue(capacity);
+        }
+    };
+
+    private static final QueueFactory SPSC = new QueueFactory() {
+
+        public BlockingFifoQueue newQueue(int capacity) {
+            return new SpscRingQueue(capacity);
+        }
+    };
+
+    private static QueueFactory defaultFactory;
+
+    static {
+        String s = null;
+        try {
+            s = System.getProperty(QUEUE_PROPERTY);
+        } catch (SecurityException ex) {
+        }
+        if ("mpmc".equalsIgnoreCase(s)) {
+            defaultFactory = MPMC;
+        } else {
+            defaultFactory = ARRAY;
+        }
+    }
+
+    /**
+     * @param capacity number of entries; ring queues round it up to a
+     * power of two
+     */
+    public abstract BlockingFifoQueue newQueue(int capacity);
+
+    /**
+     * @return factory of ArrayFifoQueue, one lock for everything
+     */
+    public static QueueFactory getArray() {
+        return ARRAY;
+    }
+
+    /**
+     * @return factory of MpmcRingQueue, for many producers and consumers
+     */
+    public static QueueFactory getMpmc() {
+        return MPMC;
+    }
+
+    /**
+     * @return factory of SpscRingQueue; only for queues with a single
+     * producer thread and a single consumer thread
+     */
+    public static QueueFactory getSpsc() {
+        return SPSC;
+    }
+
+    public static synchronized QueueFactory getDefault() {
+        return defaultFactory;
+    }
+
+    public static synchronized void setDefault(QueueFactory factory) {
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        defaultFactory = factory;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Bounded FIFO queue for exactly one producer thread and one consumer
+ * thread, without locks on the fast path.
+ * <p>
+ * The ring has a power-of-two capacity, so wraparound is a mask. Head and
+ * tail are volatile counters that only their own side writes, and each
+ * side keeps a cached copy of the other's counter, reading it again only
+ * when the ring looks full or empty. The counters are padded apart so the
+ * two sides do not share a cache line.
+ * <p>
+ * A blocked side spins briefly, then waits; the other side only signals
+ * when it knows a thread is waiting. Under a polling WaitStrategy it
+ * never waits, so the other side never signals.
+ * <p>
+ * enqueue() and blockingEnqueue() must only be called by the producer;
+ * dequeue(), peek(), drainTo(), drainAll() and blockingDequeue() only by
+ * the consumer.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class SpscRingQueue implements BlockingFifoQueue {
+
+    private static final int SPIN_COUNT = 100;
+    private final Object[] buffer;
+    private final int mask;
+    private final WaitStrategy strategy;
+    private final Object consumerLock = new Object();
+    private final Object producerLock = new Object();
+    // Padding keeps the producer and consumer fields on separate cache
+    // lines, assuming the JVM lays out longs in declaration order.
+    long p01, p02, p03, p04, p05, p06, p07;
+    private volatile long head = 0;
+    private long cachedTail = 0;
+    long p11, p12, p13, p14, p15, p16, p17;
+    private volatile long tail = 0;
+    private long cachedHead = 0;
+    long p21, p22, p23, p24, p25, p26, p27;
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean producerWaiting = false;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SpscRingQueue(int capacity) {
+        this(capacity, WaitStrategy.getBlocking());
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param strategy how blocking calls wait once the brief spin is over;
+     * a polling strategy replaces the spin as well
+     */
+    public SpscRingQueue(int capacity, WaitStrategy strategy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException();
+        }
+        if (strategy == null) {
+            throw new NullPointerException();
+        }
+        this.strategy = strategy;
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        buffer = new Object[n];
+        mask = n - 1;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        long h = head;
+        long t = tail;
+        return (int) (t - h);
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public boolean isFull() {
+        long h = head;
+        return tail - h >= buffer.length;
+    }
+
+    public boolean enqueue(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long t = tail;
+        if (t - cachedHead >= buffer.length) {
+            cachedHead = head;
+            if (t - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        tail = t + 1;
+        if (consumerWaiting) {
+            synchronized (consumerLock) {
+                consumerLock.notify();
+            }
+        }
+        return true;
+    }
+
+    public Object dequeue() {
+        long h = head;
+        if (h >= cachedTail) {
+            cachedTail = tail;
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        int i = (int) h & mask;
+        Object e = buffer[i];
+        buffer[i] = null;
+        head = h + 1;
+        if (producerWaiting) {
+            synchronized (producerLock) {
+                producerLock.notify();
+            }
+        }
+        return e;
+    }
+
+    public Object peek() {
+        long h = head;
+        if (h >= cachedTail) {
+            cachedTail = tail;
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        return buffer[(int) h & mask];
+    }
+
+    public boolean blockingEnqueue(Object e) {
+        return blockingEnqueue(e, 0);
+    }
+
+    public boolean blockingEnqueue(Object e, int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollEnqueue(e, timeout);
+        }
+        if (enqueue(e)) {
+            return true;
+        }
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            Thread.yield();
+            if (enqueue(e)) {
+                return true;
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (producerLock) {
+            producerWaiting = true;
+            try {
+                while (!enqueue(e)) {
+                    long millis = remaining(deadline, timeout);
+                    if (millis < 0) {
+                        return false;
+                    }
+                    try {
+                        producerLock.wait(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                producerWaiting = false;
+            }
+        }
+    }
+
+    public Object blockingDequeue() {
+        return blockingDequeue(0);
+    }
+
+    public Object blockingDequeue(int timeout) {
+        if (!strategy.isBlocking()) {
+            return pollDequeue(timeout);
+        }
+        Object e = dequeue();
+        if (e != null) {
+            return e;
+        }
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            Thread.yield();
+            e = dequeue();
+            if (e != null) {
+                return e;
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (consumerLock) {
+            // Set before the recheck in dequeue(), so a producer that
+            // publishes after it sees the flag and signals.
+            consumerWaiting = true;
+            try {
+                while ((e = dequeue()) == null) {
+                    long millis = remaining(deadline, timeout);
+                    if (millis < 0) {
+                        return null;
+                    }
+                    try {
+                        consumerLock.wait(millis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                return e;
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    public int drainTo(Object[] dst, int off, int max) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        long h = head;
+        long t = tail;
+        int n = (int) Math.min(t - h, max);
+        for (int k = 0; k < n; k++) {
+            int i = (int) (h + k) & mask;
+            dst[off + k] = buffer[i];
+            buffer[i] = null;
+        }
+        if (n != 0) {
+            head = h + n;
+            if (producerWaiting) {
+                synchronized (producerLock) {
+                    producerLock.notify();
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Publish as many elements as fit with a single tail update and at
+     * most one signal. Producer only.
+     */
+    public int enqueueAll(Object[] src, int off, int len) {
+        if (len < 0 || off < 0 || off + len > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < len; i++) {
+            if (src[off + i] == null) {
+                throw new NullPointerException();
+            }
+        }
+        long t = tail;
+        int n = (int) Math.min(len, buffer.length - (t - cachedHead));
+        if (n < len) {
+            cachedHead = head;
+            n = (int) Math.min(len, buffer.length - (t - cachedHead));
+        }
+        if (n == 0) {
+            return 0;
+        }
+        for (int k = 0; k < n; k++) {
+            buffer[(int) (t + k) & mask] = src[off + k];
+        }
+        tail = t + n;
+        if (consumerWaiting) {
+            synchronized (consumerLock) {
+                consumerLock.notify();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Consumer only.
+     */
+    public int drainAtLeast(Object[] dst, int off, int min, int max, int timeout) {
+        if (max < 0 || off < 0 || off + max > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        int n = drainTo(dst, off, max);
+        while (n < min) {
+            // Wait for one element the usual way, then take what followed.
+            long millis = remaining(deadline, timeout);
+            if (millis < 0) {
+                return n;
+            }
+            Object e = blockingDequeue((int) millis);
+            if (e == null) {
+                return n;
+            }
+            dst[off + n++] = e;
+            n += drainTo(dst, off + n, max - n);
+        }
+        return n;
+    }
+
+    public Object[] drainAll() {
+        Object[] objs = new Object[size()];
+        int n = drainTo(objs, 0, objs.length);
+        if (n == objs.length) {
+            return objs;
+        }
+        Object[] a = new Object[n];
+        System.arraycopy(objs, 0, a, 0, n);
+        return a;
+    }
+
+    private boolean pollEnqueue(Object e, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        while (!enqueue(e)) {
+            if (!strategy.idle(attempt++, deadline, timeout)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object pollDequeue(int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int attempt = 0;
+        Object e;
+        while ((e = dequeue()) == null) {
+            if (!strategy.idle(attempt++, deadline, timeout)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    private static long remaining(long deadline, int timeout) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long millis = deadline - System.currentTimeMillis();
+        return millis > 0 ? millis : -1;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reflective access to virtual threads and LockSupport, resolved at runtime
+ * so that this bundle still runs on JVMs without them.
+ * <p>
+ * A virtual thread blocked in Object.wait() keeps its carrier thread, so
+ * blocking code should park() instead when isVirtual() is true.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+    private static final Method IS_VIRTUAL;
+    private static final Method PARK;
+    private static final Method PARK_NANOS;
+    private static final Method UNPARK;
+    private static final boolean SUPPORTED;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        Method isVirtual = null;
+        Method park = null;
+        Method parkNanos = null;
+        Method unpark = null;
+        boolean supported = false;
+        try {
+            Class ls = Class.forName("java.util.concurrent.locks.LockSupport");
+            park = ls.getMethod("park", new Class[] {Object.class});
+            parkNanos = ls.getMethod("parkNanos", new Class[] {Object.class, Long.TYPE});
+            unpark = ls.getMethod("unpark", new Class[] {Thread.class});
+
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+            builderName = builder.getMethod("name", new Class[] {String.class});
+            builderUnstarted = builder.getMethod("unstarted", new Class[] {Runnable.class});
+            isVirtual = Thread.class.getMethod("isVirtual", new Class[0]);
+
+            // Fails when virtual threads are a disabled preview feature.
+            Object b = ofVirtual.invoke(null, new Object[0]);
+            builderUnstarted.invoke(b, new Object[] {new Runnable() {
+                public void run() {
+                }
+            }});
+            supported = true;
+        } catch (Throwable t) {
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+        IS_VIRTUAL = isVirtual;
+        PARK = park;
+        PARK_NANOS = parkNanos;
+        UNPARK = unpark;
+        SUPPORTED = supported;
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * @return true if t is a virtual thread
+     */
+    public static boolean isVirtual(Thread t) {
+        if (!SUPPORTED) {
+            return false;
+        }
+        return ((Boolean) invoke(IS_VIRTUAL, t, new Object[0])).booleanValue();
+    }
+
+    /**
+     * Create an unstarted virtual thread.
+     * @param name thread name, or null
+     * @throws UnsupportedOperationException if virtual threads are not supported
+     */
+    public static Thread newThread(Runnable r, String name) {
+        if (!SUPPORTED) {
+            throw new UnsupportedOperationException("Virtual threads are not supported.");
+        }
+        Object builder = invoke(OF_VIRTUAL, null, new Object[0]);
+        if (name != null) {
+            builder = invoke(BUILDER_NAME, builder, new Object[] {name});
+        }
+        return (Thread) invoke(BUILDER_UNSTARTED, builder, new Object[] {r});
+    }
+
+    /**
+     * Park the current thread. May return spuriously, on unpark() or on
+     * interrupt; callers must recheck their condition.
+     * @param timeout milliseconds, 0 to park without timeout
+     */
+    public static void park(Object blocker, long timeout) {
+        if (!SUPPORTED) {
+            throw new UnsupportedOperationException("Virtual threads are not supported.");
+        }
+        if (timeout == 0) {
+            invoke(PARK, null, new Object[] {blocker});
+        } else {
+            invoke(PARK_NANOS, null, new Object[] {blocker, new Long(timeout * 1000000L)});
+        }
+    }
+
+    /**
+     * Park the current thread, virtual or not, for up to nanos nanoseconds.
+     * Without LockSupport, sleeps for a millisecond instead. May return
+     * early; the interrupt status is left set.
+     */
+    public static void parkNanos(Object blocker, long nanos) {
+        if (PARK_NANOS == null) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        invoke(PARK_NANOS, null, new Object[] {blocker, new Long(nanos)});
+    }
+
+    public static void unpark(Thread t) {
+        if (!SUPPORTED) {
+            throw new UnsupportedOperationException("Virtual threads are not supported.");
+        }
+        invoke(UNPARK, null, new Object[] {t});
+    }
+
+    private static Object invoke(Method m, Object target, Object[] args) {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            Throwable t = ex.getTargetException();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IllegalStateException(t.toString());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex.toString());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * Threads parked outside a monitor, waiting for the owner to signal them.
+ * All methods must be called while holding the owner's lock; the thread
+ * registers under the lock, releases it, then parks.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+class WaitSet {
+
+    private Thread[] waiters = new Thread[4];
+    private int count = 0;
+
+    void add(Thread t) {
+        if (count == waiters.length) {
+            Thread[] a = new Thread[count * 2];
+            System.arraycopy(waiters, 0, a, 0, count);
+            waiters = a;
+        }
+        waiters[count++] = t;
+    }
+
+    void remove(Thread t) {
+        for (int i = 0; i < count; i++) {
+            if (waiters[i] == t) {
+                waiters[i] = waiters[--count];
+                waiters[count] = null;
+                return;
+            }
+        }
+    }
+
+    void unparkAll() {
+        for (int i = 0; i < count; i++) {
+            VirtualThreads.unpark(waiters[i]);
+        }
+    }
+}
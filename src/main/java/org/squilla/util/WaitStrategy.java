@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+/**
+ * How a blocked queue or pipe call waits for the other side.
+ * <p>
+ * The blocking strategy, the default, waits on a monitor and is woken by
+ * a notify: cheap on CPU, but each hand-off pays the wake-up latency. The
+ * others never block on a monitor; the waiter polls its condition and
+ * backs off between polls, trading CPU for hand-off latency:
+ * <ul>
+ * <li>busy-spin polls without pause and keeps a core busy;</li>
+ * <li>spin-yield spins, then yields the processor between polls;</li>
+ * <li>spin-park spins, yields, then parks for short slices.</li>
+ * </ul>
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class WaitStrategy {
+
+    public static final int SPIN_TRIES = 100;
+    public static final int YIELD_TRIES = 100;
+    public static final long PARK_NANOS = 50000L;
+
+    private static final WaitStrategy BLOCKING = new WaitStrategy(true) {
+
+        protected void backOff(int attempt) {
+            Thread.yield();
+        }
+    };
+
+    private static final WaitStrategy BUSY_SPIN = new WaitStrategy(false) {
+
+        protected void backOff(int attempt) {
+        }
+    };
+
+    private static final WaitStrategy SPIN_YIELD = new WaitStrategy(false) {
+
+        protected void backOff(int attempt) {
+            if (attempt >= SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+    };
+
+    private static final WaitStrategy SPIN_PARK = new WaitStrategy(false) {
+
+        protected void backOff(int attempt) {
+            if (attempt < SPIN_TRIES) {
+                return;
+            }
+            if (attempt < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                VirtualThreads.parkNanos(this, PARK_NANOS);
+            }
+        }
+    };
+
+    private final boolean blocking;
+
+    protected WaitStrategy(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * @return true if waiters block on a monitor and must be notified,
+     * false if they poll
+     */
+    public final boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Pause once between two polls of a condition.
+     * @param attempt number of earlier pauses in this wait, from 0
+     */
+    protected abstract void backOff(int attempt);
+
+    /**
+     * Pause once between two polls of a condition, unless the wait is
+     * over.
+     * @param attempt number of earlier pauses in this wait, from 0
+     * @param deadline time the wait started plus timeout
+     * @param timeout milliseconds, 0 for no timeout
+     * @return false if the timeout elapsed or the thread was interrupted,
+     * which it is left
+     */
+    public final boolean idle(int attempt, long deadline, int timeout) {
+        if (timeout != 0 && System.currentTimeMillis() >= deadline) {
+            return false;
+        }
+        backOff(attempt);
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * @return strategy waiting on a monitor, the default
+     */
+    public static WaitStrategy getBlocking() {
+        return BLOCKING;
+    }
+
+    /**
+     * @return strategy polling without pause; keeps a core busy per waiter
+     */
+    public static WaitStrategy getBusySpin() {
+        return BUSY_SPIN;
+    }
+
+    public static WaitStrategy getSpinYield() {
+        return SPIN_YIELD;
+    }
+
+    public static WaitStrategy getSpinPark() {
+        return SPIN_PARK;
+    }
+}
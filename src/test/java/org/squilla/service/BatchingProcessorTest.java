@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BatchingProcessorTest extends TestCase {
+
+    public void testBatchesAreCappedAtMaxSize() {
+        Recorder p = new Recorder(16, 4, 0);
+        for (int i = 0; i < 10; i++) {
+            p.process(new Integer(i));
+        }
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[4, 4, 2]", p.sizes.toString());
+    }
+
+    public void testLingerCollectsLateItems() throws Exception {
+        Recorder p = new Recorder(16, 8, 500);
+        p.activate();
+        p.process("a");
+        Thread.sleep(50);
+        p.process("b");
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[2]", p.sizes.toString());
+    }
+
+    public void testPerItemOutcomesInOrder() {
+        Recorder p = new Recorder(16, 8, 0);
+        Collector c = new Collector();
+        p.addListener(c);
+        for (int i = 0; i < 5; i++) {
+            p.process(new Integer(i));
+        }
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[0, 1, 2, 3, 4]", c.order.toString());
+        assertEquals("[0, 10, null, 30, 40]", c.results.toString());
+        assertEquals("[2]", c.failed.toString());
+    }
+
+    public void testExceptionFailsWholeBatch() {
+        BatchingProcessor p = new BatchingProcessor(16, 8, 0) {
+
+            protected void processBatch(Object[] items, int count) throws Exception {
+                throw new Exception("down");
+            }
+        };
+        Collector c = new Collector();
+        p.addListener(c);
+        p.process("a");
+        p.process("b");
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[a, b]", c.failed.toString());
+        assertEquals("[null, null]", c.results.toString());
+    }
+
+    /**
+     * Records batch sizes; reports ten times each item, failing item 2.
+     */
+    private static class Recorder extends BatchingProcessor {
+
+        final List sizes = new ArrayList();
+
+        Recorder(int queueSize, int maxBatchSize, int lingerTime) {
+            super(queueSize, maxBatchSize, lingerTime);
+        }
+
+        protected void processBatch(Object[] items, int count) {
+            synchronized (sizes) {
+                sizes.add(new Integer(count));
+            }
+            for (int i = 0; i < count; i++) {
+                if (!(items[i] instanceof Integer)) {
+                    continue;
+                }
+                int n = ((Integer) items[i]).intValue();
+                if (n == 2) {
+                    setFailed(i, "two");
+                } else {
+                    setResult(i, new Integer(n * 10));
+                }
+            }
+        }
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List order = new ArrayList();
+        final List results = new ArrayList();
+        final List failed = new ArrayList();
+
+        public synchronized void done(Object o, Object result) {
+            order.add(o);
+            results.add(result);
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+            order.add(o);
+            results.add(null);
+            failed.add(o);
+        }
+    }
+}
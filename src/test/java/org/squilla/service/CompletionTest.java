@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class CompletionTest extends TestCase {
+
+    private static final Runnable NOP = new Runnable() {
+
+        public void run() {
+        }
+    };
+
+    public void testGetReturnsResult() throws Exception {
+        Completion c = new Completion(new Callable() {
+
+            public Object call() {
+                return "x";
+            }
+        });
+        c.run();
+        assertTrue(c.isDone());
+        assertEquals("x", c.get());
+    }
+
+    public void testGetEndsOnInterrupt() {
+        Completion c = new Completion(NOP);
+        Thread.currentThread().interrupt();
+        try {
+            c.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(Thread.interrupted());
+        }
+        assertFalse(c.isDone());
+    }
+
+    public void testGracefulShutdownCancelsLeftovers() throws Exception {
+        Object gate = new Object();
+        WorkQueue wq = new WorkQueue(1, 10);
+        wq.activate();
+        wq.execute(blocker(gate));
+        Thread.sleep(50);
+        Completion c = wq.submit(NOP);
+        Runnable[] left = wq.shutdownGracefully(100);
+        assertEquals(1, left.length);
+        assertSame(c, left[0]);
+        assertCancelled(c);
+        release(gate);
+    }
+
+    public void testShutdownCancelsQueued() throws Exception {
+        checkShutdownCancelsQueued(new WorkQueue(1, 10));
+    }
+
+    public void testShutdownCancelsQueuedWorkStealing() throws Exception {
+        checkShutdownCancelsQueued(new WorkQueue(1, 10, true));
+    }
+
+    public void testShutdownCancelsQueuedLanes() throws Exception {
+        checkShutdownCancelsQueued(new WorkQueue(1, 10, 2));
+    }
+
+    private void checkShutdownCancelsQueued(WorkQueue wq) throws Exception {
+        Object gate = new Object();
+        wq.activate();
+        wq.execute(blocker(gate));
+        Thread.sleep(50);
+        Completion c = wq.submit(NOP);
+        wq.execute(NOP);
+        wq.shutdown();
+        assertCancelled(c);
+        assertEquals(1, wq.remainingTask());
+        release(gate);
+    }
+
+    private static void assertCancelled(Completion c) {
+        assertTrue(c.isCancelled());
+        try {
+            c.get();
+            fail();
+        } catch (ExecutionException ex) {
+        }
+    }
+
+    private static Runnable blocker(final Object gate) {
+        return new Runnable() {
+
+            public void run() {
+                synchronized (gate) {
+                    try {
+                        gate.wait(2000);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            }
+        };
+    }
+
+    private static void release(Object gate) {
+        synchronized (gate) {
+            gate.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.squilla.util.DeadlineQueue;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DeadlineSheddingTest extends TestCase {
+
+    public void testDeadlineQueueOrder() {
+        DeadlineQueue q = new DeadlineQueue(8);
+        q.enqueue("none");
+        q.enqueue("late", 300);
+        q.enqueue("early", 100);
+        q.enqueue("tie", 300);
+        assertEquals(100, q.peekDeadline());
+        assertEquals("early", q.dequeue());
+        assertEquals("late", q.dequeue());
+        assertEquals("tie", q.dequeue());
+        assertEquals("none", q.dequeue());
+        assertEquals(DeadlineQueue.NO_DEADLINE, q.peekDeadline());
+        assertNull(q.dequeue());
+    }
+
+    public void testPastDeadlineFailsAtOnce() {
+        Recorder p = new Recorder(false);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.process("stale", System.currentTimeMillis() - 10);
+        assertEquals(1, p.getExpiredCount());
+        synchronized (c) {
+            assertEquals(1, c.failed.size());
+            DeadlineExpiredException ex = (DeadlineExpiredException) c.reasons.get(0);
+            assertTrue(ex.getLateness() >= 10);
+            assertSame(Thread.currentThread(), c.threads.get(0));
+        }
+    }
+
+    public void testQueuedItemIsShedOnceExpired() throws Exception {
+        Recorder p = new Recorder(false);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.process("short", System.currentTimeMillis() + 20);
+        p.process("long", System.currentTimeMillis() + 60000);
+        p.process("plain");
+        Thread.sleep(50);
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[long, plain]", p.processed.toString());
+        assertEquals(1, p.getExpiredCount());
+        synchronized (c) {
+            assertEquals("[short]", c.failed.toString());
+            assertTrue(c.reasons.get(0) instanceof DeadlineExpiredException);
+            assertNotSame(Thread.currentThread(), c.threads.get(0));
+        }
+    }
+
+    public void testEarliestDeadlineFirst() {
+        Recorder p = new Recorder(true);
+        assertTrue(p.isEarliestDeadlineFirst());
+        long now = System.currentTimeMillis();
+        p.process("plain");
+        p.process("c", now + 30000);
+        p.process("a", now + 10000);
+        p.process("b", now + 20000);
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[a, b, c, plain]", p.processed.toString());
+    }
+
+    private static class Recorder extends AbstractProcessor {
+
+        final List processed = new ArrayList();
+
+        Recorder(boolean earliestDeadlineFirst) {
+            super(16, earliestDeadlineFirst);
+        }
+
+        protected Object processNext(Object o) {
+            synchronized (processed) {
+                processed.add(o);
+            }
+            return o;
+        }
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List failed = new ArrayList();
+        final List reasons = new ArrayList();
+        final List threads = new ArrayList();
+
+        public void done(Object o, Object result) {
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+            failed.add(o);
+            reasons.add(reason);
+            threads.add(Thread.currentThread());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import org.squilla.util.ArrayFifoQueue;
+import org.squilla.util.VirtualThreads;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ExecutionBackendTest extends TestCase {
+
+    public void testPlatformThread() {
+        ExecutionBackend b = ExecutionBackend.getPlatform();
+        assertFalse(b.isVirtual());
+        Thread t = b.newThread(new Runnable() {
+
+            public void run() {
+            }
+        }, "platform", Thread.MIN_PRIORITY);
+        assertEquals("platform", t.getName());
+        assertEquals(Thread.MIN_PRIORITY, t.getPriority());
+        assertFalse(VirtualThreads.isVirtual(t));
+    }
+
+    public void testVirtualOnlyWhenSupported() throws Exception {
+        ExecutionBackend b = ExecutionBackend.getVirtual();
+        if (!VirtualThreads.isSupported()) {
+            assertNull(b);
+            try {
+                VirtualThreads.newThread(null, null);
+                fail();
+            } catch (UnsupportedOperationException ex) {
+            }
+            return;
+        }
+        assertTrue(b.isVirtual());
+        final ArrayFifoQueue q = new ArrayFifoQueue(1);
+        final Object[] taken = new Object[1];
+        Thread t = b.newThread(new Runnable() {
+
+            public void run() {
+                // Parks instead of waiting on the monitor.
+                taken[0] = q.blockingDequeue(2000);
+            }
+        }, "virtual", -1);
+        assertTrue(VirtualThreads.isVirtual(t));
+        t.start();
+        Thread.sleep(50);
+        q.enqueue("x");
+        t.join(2000);
+        assertEquals("x", taken[0]);
+    }
+
+    public void testWorkQueueUsesItsBackend() throws Exception {
+        CountingBackend b = new CountingBackend();
+        WorkQueue wq = new WorkQueue(3, 16);
+        wq.setBackend(b);
+        wq.activate();
+        final boolean[] ran = new boolean[1];
+        Completion c = wq.submit(new Runnable() {
+
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        c.get(2000);
+        wq.shutdown();
+        assertTrue(ran[0]);
+        assertEquals(3, b.count());
+    }
+
+    public void testServiceTaskUsesItsBackend() {
+        CountingBackend b = new CountingBackend();
+        ServiceTask task = new ServiceTask("counted", Thread.NORM_PRIORITY) {
+
+            protected void taskLoop() {
+                shutdown(false);
+            }
+        };
+        task.setBackend(b);
+        task.activate();
+        assertTrue(task.awaitTermination(2000));
+        assertEquals(1, b.count());
+    }
+
+    private static class CountingBackend extends ExecutionBackend {
+
+        private int count;
+
+        public synchronized Thread newThread(Runnable r, String name, int priority) {
+            count++;
+            return ExecutionBackend.getPlatform().newThread(r, name, priority);
+        }
+
+        public boolean isVirtual() {
+            return false;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+    }
+}
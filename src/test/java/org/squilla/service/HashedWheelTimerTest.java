@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HashedWheelTimerTest extends TestCase {
+
+    private HashedWheelTimer timer;
+
+    protected void tearDown() {
+        if (timer != null) {
+            timer.shutdown();
+        }
+    }
+
+    public void testOneShotRuns() throws Exception {
+        timer = new HashedWheelTimer(null, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.schedule(c, 20);
+        Thread.sleep(200);
+        assertEquals(1, c.count());
+        assertTrue(st.isDone());
+        assertFalse(st.isRejected());
+        assertFalse(st.cancel());
+    }
+
+    public void testCancelBeforeExpiry() throws Exception {
+        timer = new HashedWheelTimer(null, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.schedule(c, 100);
+        assertTrue(st.cancel());
+        Thread.sleep(200);
+        assertEquals(0, c.count());
+        assertTrue(st.isCancelled());
+        assertEquals(0, timer.pendingTasks());
+    }
+
+    public void testFixedRateRepeats() throws Exception {
+        timer = new HashedWheelTimer(null, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.scheduleAtFixedRate(c, 10, 10);
+        Thread.sleep(200);
+        st.cancel();
+        assertTrue(c.count() >= 5);
+        assertFalse(st.isDone());
+    }
+
+    public void testRejectedOneShotIsNotDone() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 1);
+        wq.setSaturationPolicy(WorkQueue.POLICY_ABORT);
+        wq.execute(new Counter());
+        timer = new HashedWheelTimer(wq, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.schedule(c, 10);
+        Thread.sleep(200);
+        assertEquals(0, c.count());
+        assertTrue(st.isRejected());
+        assertFalse(st.isDone());
+        assertFalse(st.cancel());
+    }
+
+    public void testRejectedPeriodicTriesAgain() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 1);
+        wq.setSaturationPolicy(WorkQueue.POLICY_ABORT);
+        wq.execute(new Counter());
+        timer = new HashedWheelTimer(wq, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.scheduleAtFixedRate(c, 10, 10);
+        Thread.sleep(100);
+        assertFalse(st.isRejected());
+        assertEquals(1, timer.pendingTasks());
+        wq.activate();
+        Thread.sleep(200);
+        st.cancel();
+        wq.shutdown();
+        assertTrue(c.count() > 0);
+    }
+
+    public void testDiscardedOneShotIsRejected() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 1);
+        wq.setSaturationPolicy(WorkQueue.POLICY_DISCARD_OLDEST);
+        timer = new HashedWheelTimer(wq, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.schedule(c, 10);
+        Thread.sleep(100);
+        assertEquals(1, wq.remainingTask());
+        assertFalse(st.isRejected());
+        // Evicts the dispatched timer task.
+        wq.execute(new Counter());
+        assertTrue(st.isRejected());
+        assertFalse(st.cancel());
+        wq.activate();
+        Thread.sleep(50);
+        wq.shutdown();
+        assertEquals(0, c.count());
+    }
+
+    public void testDiscardedPeriodicIsRescheduled() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 1);
+        wq.setSaturationPolicy(WorkQueue.POLICY_DISCARD_OLDEST);
+        timer = new HashedWheelTimer(wq, 1, 64);
+        timer.activate();
+        ScheduledTask st = timer.scheduleAtFixedRate(new Counter(), 10, 10000);
+        Thread.sleep(100);
+        assertEquals(0, timer.pendingTasks());
+        wq.execute(new Counter());
+        assertEquals(1, timer.pendingTasks());
+        assertFalse(st.isRejected());
+        assertTrue(st.cancel());
+    }
+
+    public void testLeftoverOfGracefulShutdownIsRejected() throws Exception {
+        final Object gate = new Object();
+        WorkQueue wq = new WorkQueue(1, 4);
+        wq.activate();
+        wq.execute(new Runnable() {
+
+            public void run() {
+                synchronized (gate) {
+                    try {
+                        gate.wait(300);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            }
+        });
+        timer = new HashedWheelTimer(wq, 1, 64);
+        timer.activate();
+        Counter c = new Counter();
+        ScheduledTask st = timer.schedule(c, 10);
+        Thread.sleep(100);
+        Runnable[] left = wq.shutdownGracefully(50);
+        assertEquals(1, left.length);
+        assertSame(st, left[0]);
+        assertTrue(st.isRejected());
+        // Running a handed-back task is harmless.
+        left[0].run();
+        assertEquals(0, c.count());
+    }
+
+    private static class Counter implements Runnable {
+
+        private int count;
+
+        public synchronized void run() {
+            count++;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+    }
+}
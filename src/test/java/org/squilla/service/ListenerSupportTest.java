@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ListenerSupportTest extends TestCase {
+
+    private static class Recorder implements ProcessListener {
+
+        Thread thread;
+        Object value;
+
+        public synchronized void done(Object o, Object value) {
+            this.thread = Thread.currentThread();
+            this.value = value;
+            notifyAll();
+        }
+
+        public synchronized void failed(Object o, Object cause) {
+            done(o, cause);
+        }
+
+        synchronized Object await(int timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (value == null && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return value;
+        }
+    }
+
+    public void testNonBlockingFiresOnDispatcher() throws Exception {
+        ListenerSupport ls = new ListenerSupport();
+        Recorder r = new Recorder();
+        ls.add(r);
+        ls.setNonBlocking(true);
+        ls.fire("o", "v", false);
+        assertEquals("v", r.await(1000));
+        assertNotSame(Thread.currentThread(), r.thread);
+        assertNotNull(ls.getDispatcher());
+        ls.release();
+        assertNull(ls.getDispatcher());
+    }
+
+    public void testReleasedFiresOnCaller() throws Exception {
+        ListenerSupport ls = new ListenerSupport();
+        Recorder r = new Recorder();
+        ls.add(r);
+        ls.setNonBlocking(true);
+        ls.release();
+        ls.fire("o", "v", false);
+        assertEquals("v", r.value);
+        assertSame(Thread.currentThread(), r.thread);
+        assertNull("no dispatcher after release", ls.getDispatcher());
+        ls.open();
+        ls.fire("o", "w", false);
+        assertNotNull(ls.getDispatcher());
+        ls.release();
+    }
+
+    public void testReleasedIsolatesListenerFailure() {
+        ListenerSupport ls = new ListenerSupport();
+        ls.add(new ProcessListener() {
+
+            public void done(Object o, Object value) {
+                throw new IllegalStateException("listener");
+            }
+
+            public void failed(Object o, Object cause) {
+            }
+        });
+        ls.setNonBlocking(true);
+        ls.release();
+        ls.fire("o", "v", false);
+    }
+
+    public void testDispatcherShutdownKeepsOrder() throws Exception {
+        final java.util.List seen = new java.util.ArrayList();
+        ProcessListener slow = new ProcessListener() {
+
+            public void done(Object o, Object value) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                }
+                synchronized (seen) {
+                    seen.add(value);
+                }
+            }
+
+            public void failed(Object o, Object cause) {
+            }
+        };
+        ListenerDispatcher d = new ListenerDispatcher(1, 64, 4);
+        d.activate();
+        for (int i = 0; i < 20; i++) {
+            d.fireDone(slow, "o", new Integer(i));
+        }
+        d.shutdown();
+        for (int i = 20; i < 30; i++) {
+            d.fireDone(slow, "o", new Integer(i));
+        }
+        long end = System.currentTimeMillis() + 2000;
+        while (d.pendingEvents() != 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        synchronized (seen) {
+            assertEquals(30, seen.size());
+            for (int i = 0; i < 30; i++) {
+                assertEquals(new Integer(i), seen.get(i));
+            }
+        }
+    }
+
+    public void testProcessorShutdownLeavesNoDispatcher() throws Exception {
+        final Object gate = new Object();
+        AbstractProcessor p = new AbstractProcessor(10) {
+
+            protected Object processNext(Object o) {
+                synchronized (gate) {
+                    try {
+                        gate.wait(200);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+                return o;
+            }
+        };
+        Recorder r = new Recorder();
+        p.addListener(r);
+        p.setNonBlockingFire(true);
+        p.activate();
+        p.process("x");
+        Thread.sleep(20);
+        // The item finishes after shutdown released the listeners.
+        p.shutdown();
+        assertEquals("x", r.await(1000));
+        assertNull(p.getListenerDispatcher());
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class MemoizingProcessorTest extends TestCase {
+
+    public void testRepeatedItemsAreAnsweredFromCache() {
+        Square square = new Square();
+        MemoizingProcessor p = new MemoizingProcessor(square, 16);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        p.process(new Integer(3));
+        square.awaitCount(1);
+        c.await(1);
+        p.process(new Integer(3));
+        p.process(new Integer(4));
+        c.await(3);
+        p.shutdown();
+        assertEquals(2, square.count());
+        assertEquals(1, p.getCache().getHitCount());
+        synchronized (c) {
+            assertEquals(new Integer(9), c.results.get(0));
+            assertEquals(new Integer(9), c.results.get(1));
+            assertEquals(new Integer(16), c.results.get(2));
+        }
+    }
+
+    public void testEqualItemsInFlightShareOneProcessing() {
+        Square square = new Square();
+        square.close();
+        MemoizingProcessor p = new MemoizingProcessor(square, 16);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        for (int i = 0; i < 3; i++) {
+            p.process(new Integer(5));
+        }
+        square.open();
+        c.await(3);
+        p.shutdown();
+        assertEquals(1, square.count());
+        assertEquals(2, p.getCache().getJoinCount());
+        assertEquals(new Integer(25), p.getCache().peek(new Integer(5)));
+    }
+
+    public void testInvalidateDuringProcessingDiscardsResult() {
+        Square square = new Square();
+        square.close();
+        MemoizingProcessor p = new MemoizingProcessor(square, 16);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        Integer key = new Integer(6);
+        p.process(key);
+        p.getCache().invalidate(key);
+        // Arrives after the invalidation, so must not share the old result.
+        p.process(key);
+        square.open();
+        c.await(2);
+        p.shutdown();
+        assertEquals(2, square.count());
+        assertEquals(0, p.getCache().getJoinCount());
+        assertEquals(new Integer(36), p.getCache().peek(key));
+    }
+
+    public void testRetryDoesNotBlockNotifyingThread() throws Exception {
+        Square square = new Square(1);
+        square.close();
+        MemoizingProcessor p = new MemoizingProcessor(square, 16);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        Integer key = new Integer(6);
+        p.process(key);
+        // Let the worker take it, so the next item fills the queue.
+        Thread.sleep(50);
+        p.getCache().invalidate(key);
+        p.process(key);
+        p.process(new Integer(7));
+        // Resubmitting 6 from the worker's done() would wait for the queue
+        // that only the worker itself can drain.
+        square.open();
+        c.await(3);
+        p.shutdown();
+        assertEquals(3, square.count());
+        assertEquals(new Integer(36), p.getCache().peek(key));
+    }
+
+    public void testStaleLoadIsNotCached() throws Exception {
+        final Object gate = new Object();
+        final boolean[] release = new boolean[1];
+        final ResultCache cache = new ResultCache(new Stage() {
+
+            public Object processNext(Object o) throws Exception {
+                synchronized (gate) {
+                    while (!release[0]) {
+                        gate.wait();
+                    }
+                }
+                return "v";
+            }
+        }, 4);
+        Thread t = new Thread() {
+
+            public void run() {
+                try {
+                    cache.get("k");
+                } catch (Exception ex) {
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(50);
+        cache.invalidate("k");
+        synchronized (gate) {
+            release[0] = true;
+            gate.notifyAll();
+        }
+        t.join(2000);
+        assertNull(cache.peek("k"));
+        assertEquals("v", cache.get("k"));
+        assertEquals("v", cache.peek("k"));
+    }
+
+    public void testFailuresAreNotCached() {
+        AbstractProcessor failing = new AbstractProcessor(16) {
+
+            protected Object processNext(Object o) throws Exception {
+                throw new Exception("no");
+            }
+        };
+        MemoizingProcessor p = new MemoizingProcessor(failing, 16);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        p.process("a");
+        c.await(1);
+        p.process("a");
+        c.await(2);
+        p.shutdown();
+        assertEquals(0, p.getCache().size());
+        synchronized (c) {
+            assertEquals(2, c.failures);
+        }
+    }
+
+    /**
+     * Single-threaded processor squaring integers, held while closed.
+     */
+    private static class Square extends AbstractProcessor {
+
+        private boolean closed = false;
+        private int count = 0;
+
+        Square() {
+            this(16);
+        }
+
+        Square(int queueSize) {
+            super(queueSize);
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized void open() {
+            closed = false;
+            notifyAll();
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized void awaitCount(int n) {
+            while (count < n) {
+                try {
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        protected synchronized Object processNext(Object o) throws Exception {
+            while (closed) {
+                wait();
+            }
+            count++;
+            notifyAll();
+            int i = ((Integer) o).intValue();
+            return new Integer(i * i);
+        }
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List results = new ArrayList();
+        int failures = 0;
+
+        public synchronized void done(Object o, Object result) {
+            results.add(result);
+            notifyAll();
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+            failures++;
+            notifyAll();
+        }
+
+        synchronized void await(int n) {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (results.size() + failures < n && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            assertEquals(n, results.size() + failures);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ParallelProcessorTest extends TestCase {
+
+    public void testDeliversInSubmissionOrder() throws Exception {
+        ParallelProcessor p = new ParallelProcessor(4, 8) {
+
+            protected Object processNext(Object o) throws Exception {
+                int n = ((Integer) o).intValue();
+                // Later items finish first.
+                Thread.sleep((5 - n % 5) * 4);
+                if (n == 7) {
+                    throw new Exception("seven");
+                }
+                return new Integer(n * 10);
+            }
+        };
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        for (int i = 0; i < 20; i++) {
+            p.process(new Integer(i));
+        }
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        synchronized (c) {
+            assertEquals(20, c.order.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(new Integer(i), c.order.get(i));
+            }
+            assertEquals(1, c.failed.size());
+            assertEquals(new Integer(7), c.failed.get(0));
+            assertEquals(new Integer(180), c.results.get(18));
+        }
+    }
+
+    public void testSlowItemHoldsBackOneWindow() throws Exception {
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        final ParallelProcessor p = new ParallelProcessor(2, 2) {
+
+            protected Object processNext(Object o) throws Exception {
+                if (((Integer) o).intValue() == 0) {
+                    synchronized (gate) {
+                        while (!open[0]) {
+                            gate.wait();
+                        }
+                    }
+                }
+                return o;
+            }
+        };
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        p.process(new Integer(0));
+        p.process(new Integer(1));
+        Thread producer = new Thread() {
+
+            public void run() {
+                p.process(new Integer(2));
+            }
+        };
+        producer.start();
+        Thread.sleep(100);
+        assertTrue(producer.isAlive());
+        assertEquals(2, p.pendingItems());
+        synchronized (c) {
+            assertEquals(0, c.order.size());
+        }
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        producer.join(2000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        synchronized (c) {
+            assertEquals(3, c.order.size());
+            assertEquals(new Integer(0), c.order.get(0));
+        }
+    }
+
+    public void testErrorFailsItemAndWindowMovesOn() throws Exception {
+        ParallelProcessor p = new ParallelProcessor(1, 2) {
+
+            protected Object processNext(Object o) {
+                if (((Integer) o).intValue() == 1) {
+                    throw new AssertionError("one");
+                }
+                return o;
+            }
+        };
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        // A stuck slot would block the producer once the window filled.
+        for (int i = 0; i < 10; i++) {
+            p.process(new Integer(i));
+        }
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        synchronized (c) {
+            assertEquals(10, c.order.size());
+            assertEquals("[1]", c.failed.toString());
+            assertTrue(c.results.get(1) instanceof AssertionError);
+        }
+    }
+
+    public void testRejectsAfterShutdown() {
+        ParallelProcessor p = new ParallelProcessor(1, 4) {
+
+            protected Object processNext(Object o) {
+                return o;
+            }
+        };
+        p.activate();
+        p.shutdown();
+        try {
+            p.process("x");
+            fail();
+        } catch (RejectedTaskException ex) {
+        }
+        assertEquals(0, p.pendingItems());
+    }
+
+    public void testRejectsWhileShuttingDown() {
+        ParallelProcessor p = new ParallelProcessor(1, 4) {
+
+            protected Object processNext(Object o) {
+                return o;
+            }
+        };
+        p.activate();
+        p.shutdownGracefully(1000);
+        try {
+            p.process("x");
+            fail();
+        } catch (RejectedTaskException ex) {
+        }
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List order = new ArrayList();
+        final List results = new ArrayList();
+        final List failed = new ArrayList();
+
+        public synchronized void done(Object o, Object result) {
+            order.add(o);
+            results.add(result);
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+            order.add(o);
+            results.add(reason);
+            failed.add(o);
+        }
+    }
+}
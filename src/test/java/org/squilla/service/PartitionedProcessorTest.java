@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PartitionedProcessorTest extends TestCase {
+
+    public void testDefaultHotKeyShareIsAboveFairShare() {
+        assertEquals(0.5, new Echo(4).getHotKeyShare(), 1e-9);
+        assertEquals(1.0, new Echo(1).getHotKeyShare(), 1e-9);
+    }
+
+    public void testEqualKeysKeepOrder() {
+        Echo p = new Echo(4);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        for (int i = 0; i < 200; i++) {
+            p.process(new Item("k" + (i % 5), i));
+        }
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        synchronized (c) {
+            assertEquals(200, c.items.size());
+            int[] last = new int[5];
+            for (int i = 0; i < 5; i++) {
+                last[i] = -1;
+            }
+            for (int i = 0; i < c.items.size(); i++) {
+                Item item = (Item) c.items.get(i);
+                int k = item.key.charAt(1) - '0';
+                assertTrue(item.seq > last[k]);
+                last[k] = item.seq;
+            }
+        }
+    }
+
+    public void testSkewedKeyGetsLaneSuggestion() {
+        Echo p = new Echo(4);
+        p.setHotKeyTracking(true);
+        String hot = "hot";
+        int lane = p.laneOf(hot);
+        String[] sameLane = keysOnLane(p, lane, 3, "same");
+        String[] other = keysOnLane(p, (lane + 1) % 4, 1, "other");
+        p.activate();
+        // Half of the traffic is one key, sharing its lane with others.
+        for (int i = 0; i < 100; i++) {
+            p.process(new Item(hot, i));
+        }
+        for (int i = 0; i < 30; i++) {
+            p.process(new Item(sameLane[i % 3], i));
+        }
+        for (int i = 0; i < 70; i++) {
+            p.process(new Item(other[0], i));
+        }
+        p.shutdownGracefully(5000);
+        HotKey[] keys = p.getHotKeys();
+        assertEquals(1, keys.length);
+        assertEquals(hot, keys[0].getKey());
+        assertEquals(lane, keys[0].getLane());
+        int suggested = keys[0].getSuggestedLane();
+        assertTrue(suggested != -1);
+        assertTrue(suggested != lane);
+        assertEquals(0, p.getSubmittedCount(suggested));
+    }
+
+    public void testKeyAloneInLaneIsNotMoved() {
+        Echo p = new Echo(2);
+        p.setHotKeyTracking(true);
+        p.setHotKeyShare(0.4);
+        String hot = "hot";
+        String[] other = keysOnLane(p, 1 - p.laneOf(hot), 2, "other");
+        p.activate();
+        for (int i = 0; i < 100; i++) {
+            p.process(new Item(hot, i));
+            p.process(new Item(other[i % 2], i));
+        }
+        p.shutdownGracefully(5000);
+        HotKey[] keys = p.getHotKeys();
+        assertEquals(1, keys.length);
+        assertEquals(hot, keys[0].getKey());
+        assertEquals(-1, keys[0].getSuggestedLane());
+    }
+
+    private static String[] keysOnLane(PartitionedProcessor p, int lane, int n, String prefix) {
+        String[] keys = new String[n];
+        int found = 0;
+        for (int i = 0; found < n; i++) {
+            String k = prefix + i;
+            if (p.laneOf(k) == lane) {
+                keys[found++] = k;
+            }
+        }
+        return keys;
+    }
+
+    private static class Item {
+
+        final String key;
+        final int seq;
+
+        Item(String key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    private static class Echo extends PartitionedProcessor {
+
+        Echo(int lanes) {
+            super(lanes, 1024);
+        }
+
+        protected Object keyOf(Object o) {
+            return ((Item) o).key;
+        }
+
+        protected Object processNext(Object o) {
+            return o;
+        }
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List items = new ArrayList();
+
+        public synchronized void done(Object o, Object result) {
+            items.add(result);
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+        }
+    }
+}
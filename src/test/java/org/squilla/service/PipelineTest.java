@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PipelineTest extends TestCase {
+
+    private static final Stage INCREMENT = new Stage() {
+
+        public Object processNext(Object o) {
+            return new Integer(((Integer) o).intValue() + 1);
+        }
+    };
+
+    private static final Stage DROP_ODD = new Stage() {
+
+        public Object processNext(Object o) {
+            return ((Integer) o).intValue() % 2 == 0 ? o : null;
+        }
+    };
+
+    private static final Stage FAIL_ON_TEN = new Stage() {
+
+        public Object processNext(Object o) throws Exception {
+            if (((Integer) o).intValue() == 10) {
+                throw new Exception("ten");
+            }
+            return o;
+        }
+    };
+
+    public void testFusedStagesCountPerStage() {
+        Pipeline p = new Pipeline.Builder()
+                .stage("inc", INCREMENT)
+                .stage("work", INCREMENT, 1, 16)
+                .stage("drop", DROP_ODD)
+                .stage("fail", FAIL_ON_TEN)
+                .build();
+        p.setInstrumented(true);
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        for (int i = 0; i < 20; i++) {
+            p.process(new Integer(i));
+        }
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        StageStatistics[] s = p.getStatistics();
+        assertEquals(4, s.length);
+        assertEquals(20, s[0].getProcessed());
+        assertEquals(20, s[1].getProcessed());
+        assertEquals(20, s[2].getProcessed());
+        assertEquals(9, s[3].getProcessed());
+        assertEquals(1, s[3].getFailed());
+        assertEquals(0, s[2].getFailed());
+        // The whole group is timed as one.
+        assertEquals(s[0].getBusyRatio(), s[3].getBusyRatio(), 0.0);
+        synchronized (c) {
+            assertEquals(9, c.done.size());
+            assertEquals(1, c.failed.size());
+            assertEquals(new Integer(10), c.failed.get(0));
+        }
+    }
+
+    public void testSingleThreadKeepsOrder() {
+        Pipeline p = new Pipeline.Builder()
+                .stage("a", INCREMENT, 1, 4)
+                .stage("b", INCREMENT)
+                .stage("c", INCREMENT, 1, 4)
+                .build();
+        Collector c = new Collector();
+        p.addListener(c);
+        p.activate();
+        for (int i = 0; i < 100; i++) {
+            p.process(new Integer(i));
+        }
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        synchronized (c) {
+            assertEquals(100, c.done.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(new Integer(i + 3), c.done.get(i));
+            }
+        }
+        StageStatistics[] s = p.getStatistics();
+        assertTrue(s[1].isFused());
+        assertFalse(s[2].isFused());
+    }
+
+    public void testResetStatistics() {
+        Pipeline p = new Pipeline.Builder()
+                .stage("a", INCREMENT, 1, 4)
+                .stage("b", DROP_ODD)
+                .build();
+        p.activate();
+        for (int i = 0; i < 10; i++) {
+            p.process(new Integer(i));
+        }
+        p.shutdownGracefully(5000);
+        assertEquals(10, p.getStatistics()[1].getProcessed());
+        assertEquals(0.0, p.getStatistics()[0].getBusyRatio(), 0.0);
+        p.resetStatistics();
+        StageStatistics[] s = p.getStatistics();
+        assertEquals(0, s[0].getProcessed());
+        assertEquals(0, s[1].getProcessed());
+        assertEquals(0, s[1].getPeakQueueDepth());
+    }
+
+    private static class Collector implements ProcessListener {
+
+        final List done = new ArrayList();
+        final List failed = new ArrayList();
+
+        public synchronized void done(Object o, Object result) {
+            done.add(result);
+        }
+
+        public synchronized void failed(Object o, Object reason) {
+            failed.add(o);
+        }
+    }
+}
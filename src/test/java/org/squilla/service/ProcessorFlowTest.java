@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class ProcessorFlowTest extends TestCase {
+
+    public void testDemandFlowsEndToEnd() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 4);
+        Source source = new Source();
+        flow.onSubscribe(source);
+        assertEquals(4, source.requested);
+        Sink sink = new Sink();
+        flow.subscribe(sink);
+        sink.subscription.request(2);
+        for (int i = 4; i < 8; i++) {
+            flow.onNext(new Integer(i));
+        }
+        assertEquals("[8, 10]", sink.items.toString());
+        // Credits come back only for delivered results.
+        assertEquals(6, source.requested);
+        sink.subscription.request(10);
+        assertEquals("[8, 10, 12, 14]", sink.items.toString());
+        assertEquals(8, source.requested);
+        flow.onComplete();
+        assertTrue(sink.completed);
+        assertNull(sink.error);
+    }
+
+    public void testFailedItemIsDropped() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 8);
+        flow.onSubscribe(new Source());
+        Sink sink = new Sink();
+        flow.subscribe(sink);
+        sink.subscription.request(Long.MAX_VALUE);
+        for (int i = 2; i < 5; i++) {
+            flow.onNext(new Integer(i));
+        }
+        flow.onComplete();
+        assertEquals("[4, 8]", sink.items.toString());
+        assertEquals(1, flow.getFailedCount());
+        assertTrue(sink.completed);
+    }
+
+    public void testFailFastEndsStream() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 8);
+        flow.setFailFast(true);
+        Source source = new Source();
+        flow.onSubscribe(source);
+        Sink sink = new Sink();
+        flow.subscribe(sink);
+        sink.subscription.request(Long.MAX_VALUE);
+        flow.onNext(new Integer(1));
+        flow.onNext(new Integer(3));
+        flow.onNext(new Integer(4));
+        assertEquals("[2]", sink.items.toString());
+        assertTrue(sink.error instanceof Exception);
+        assertFalse(sink.completed);
+        assertTrue(source.cancelled);
+    }
+
+    public void testCancelReachesUpstream() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 4);
+        Source source = new Source();
+        flow.onSubscribe(source);
+        Sink sink = new Sink();
+        flow.subscribe(sink);
+        sink.subscription.cancel();
+        assertTrue(source.cancelled);
+    }
+
+    public void testSecondSubscriberIsRefused() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 4);
+        flow.subscribe(new Sink());
+        Sink second = new Sink();
+        flow.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    public void testNonPositiveRequestFails() {
+        ProcessorFlow flow = new ProcessorFlow(new Doubler(), 4);
+        Source source = new Source();
+        flow.onSubscribe(source);
+        Sink sink = new Sink();
+        flow.subscribe(sink);
+        sink.subscription.request(0);
+        assertTrue(sink.error instanceof IllegalArgumentException);
+        assertTrue(source.cancelled);
+    }
+
+    /**
+     * Doubles integers on the calling thread and fails on 3.
+     */
+    private static class Doubler implements Processor {
+
+        private ProcessListener listener;
+
+        public void process(Object o) {
+            int n = ((Integer) o).intValue();
+            if (n == 3) {
+                listener.failed(o, new Exception("three"));
+            } else {
+                listener.done(o, new Integer(n * 2));
+            }
+        }
+
+        public void addListener(ProcessListener listener) {
+            this.listener = listener;
+        }
+
+        public boolean activate() {
+            return true;
+        }
+
+        public boolean shutdown() {
+            return true;
+        }
+    }
+
+    private static class Source implements Subscription {
+
+        long requested;
+        boolean cancelled;
+
+        public void request(long n) {
+            requested += n;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static class Sink implements Subscriber {
+
+        final List items = new ArrayList();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        public void onNext(Object item) {
+            items.add(item);
+        }
+
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
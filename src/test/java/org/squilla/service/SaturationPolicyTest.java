@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Saturation policies, on queues that are not activated so that tasks
+ * stay queued.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class SaturationPolicyTest extends TestCase {
+
+    private static final Runnable NOP = new Runnable() {
+
+        public void run() {
+        }
+    };
+
+    public void testAbortThrows() {
+        WorkQueue wq = full(WorkQueue.POLICY_ABORT);
+        try {
+            wq.execute(NOP);
+            fail();
+        } catch (RejectedTaskException ex) {
+        }
+        assertEquals(1, wq.getRejectedCount());
+        assertEquals(2, wq.remainingTask());
+    }
+
+    public void testCallerRuns() {
+        WorkQueue wq = full(WorkQueue.POLICY_CALLER_RUNS);
+        final Thread[] ranOn = new Thread[1];
+        wq.execute(new Runnable() {
+
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn[0]);
+        assertEquals(1, wq.getCallerRunsCount());
+        assertEquals(2, wq.remainingTask());
+    }
+
+    public void testDiscardOldestCancelsCompletion() {
+        WorkQueue wq = new WorkQueue(1, 2);
+        wq.setSaturationPolicy(WorkQueue.POLICY_DISCARD_OLDEST);
+        Completion oldest = wq.submit(NOP);
+        wq.execute(NOP);
+        wq.execute(NOP);
+        assertEquals(1, wq.getDiscardedCount());
+        assertEquals(2, wq.remainingTask());
+        assertTrue(oldest.isCancelled());
+    }
+
+    public void testBlockTimesOut() {
+        WorkQueue wq = full(WorkQueue.POLICY_BLOCK);
+        wq.setBlockTimeout(50);
+        long start = System.currentTimeMillis();
+        try {
+            wq.execute(NOP);
+            fail();
+        } catch (RejectedTaskException ex) {
+        }
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        assertEquals(1, wq.getRejectedCount());
+    }
+
+    public void testBlockWaitsForSpace() throws Exception {
+        final WorkQueue wq = full(WorkQueue.POLICY_BLOCK);
+        wq.setBlockTimeout(2000);
+        Thread t = new Thread() {
+
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                wq.activate();
+            }
+        };
+        t.start();
+        wq.execute(NOP);
+        t.join();
+        assertEquals(1, wq.getBlockedCount());
+        assertEquals(0, wq.getRejectedCount());
+        wq.shutdown();
+    }
+
+    public void testRejectsUnknownPolicy() {
+        try {
+            new WorkQueue(1, 2).setSaturationPolicy(42);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    private static WorkQueue full(int policy) {
+        WorkQueue wq = new WorkQueue(1, 2);
+        wq.setSaturationPolicy(policy);
+        wq.execute(NOP);
+        wq.execute(NOP);
+        return wq;
+    }
+}
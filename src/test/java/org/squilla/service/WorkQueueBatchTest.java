@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkQueueBatchTest extends TestCase {
+
+    public void testWorkerTakesBatch() throws Exception {
+        assertEquals(12, remainingAtFirstTask(8, false));
+    }
+
+    public void testAdaptiveBatchStartsAtBatchSize() throws Exception {
+        assertEquals(12, remainingAtFirstTask(8, true));
+    }
+
+    public void testSingleTaskWithoutBatch() throws Exception {
+        assertEquals(19, remainingAtFirstTask(1, true));
+    }
+
+    public void testBatchKeepsOrder() throws Exception {
+        final Vector order = new Vector();
+        WorkQueue wq = new WorkQueue(1, 64);
+        wq.setBatchSize(4);
+        for (int i = 0; i < 10; i++) {
+            final Integer n = new Integer(i);
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    order.addElement(n);
+                }
+            });
+        }
+        wq.activate();
+        waitFor(order, 10);
+        wq.shutdown();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new Integer(i), order.elementAt(i));
+        }
+    }
+
+    public void testRejectsBatchBelowOne() {
+        WorkQueue wq = new WorkQueue(1, 4);
+        try {
+            wq.setBatchSize(0);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * Queue 20 tasks on one worker and report how many were still queued
+     * when the first one ran.
+     */
+    private static int remainingAtFirstTask(int batchSize, boolean adaptive)
+            throws InterruptedException {
+        final Vector seen = new Vector();
+        final WorkQueue wq = new WorkQueue(1, 64);
+        wq.setBatchSize(batchSize);
+        wq.setAdaptiveBatch(adaptive);
+        for (int i = 0; i < 20; i++) {
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    seen.addElement(new Integer(wq.remainingTask()));
+                }
+            });
+        }
+        wq.activate();
+        waitFor(seen, 20);
+        wq.shutdown();
+        return ((Integer) seen.elementAt(0)).intValue();
+    }
+
+    private static void waitFor(Vector v, int n) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        while (v.size() < n && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, v.size());
+    }
+}
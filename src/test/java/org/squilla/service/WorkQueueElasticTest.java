@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkQueueElasticTest extends TestCase {
+
+    public void testRejectsPoolWithoutCoreWorkers() {
+        try {
+            new WorkQueue(0, 16);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            new WorkQueue(0, 16, 2);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    public void testGrowsUnderBacklogAndShrinksWhenIdle() throws Exception {
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        WorkQueue wq = new WorkQueue(1, 64);
+        wq.setMaximumPoolSize(4);
+        wq.setGrowthThreshold(2);
+        wq.setKeepAliveTime(100);
+        wq.activate();
+        for (int i = 0; i < 16; i++) {
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    synchronized (gate) {
+                        while (!open[0]) {
+                            try {
+                                gate.wait();
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        assertEquals(4, wq.getLargestPoolSize());
+        assertEquals(4, wq.getPoolSize());
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        long deadline = System.currentTimeMillis() + 3000;
+        while (wq.getPoolSize() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, wq.getPoolSize());
+        assertEquals(0, wq.remainingTask());
+        wq.shutdown();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkQueueShutdownTest extends TestCase {
+
+    public void testIdlePoolStopsPromptly() {
+        WorkQueue wq = new WorkQueue(32, 64);
+        wq.activate();
+        long start = System.currentTimeMillis();
+        Runnable[] left = wq.shutdownGracefully(5000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(0, left.length);
+        assertTrue("took " + elapsed + "ms", elapsed < 1000);
+        assertTrue(wq.awaitTermination(1000));
+    }
+
+    public void testIdleBatchingPoolStopsPromptly() {
+        WorkQueue wq = new WorkQueue(16, 64);
+        wq.setBatchSize(8);
+        wq.activate();
+        long start = System.currentTimeMillis();
+        wq.shutdownGracefully(5000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed < 1000);
+        assertTrue(wq.awaitTermination(1000));
+    }
+
+    public void testIdleWorkStealingPoolStopsPromptly() {
+        WorkQueue wq = new WorkQueue(16, 64, true);
+        wq.activate();
+        long start = System.currentTimeMillis();
+        Runnable[] left = wq.shutdownGracefully(5000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(0, left.length);
+        assertTrue("took " + elapsed + "ms", elapsed < 1000);
+        assertTrue(wq.awaitTermination(1000));
+    }
+
+    public void testWorkerOutlivesThrowingTask() {
+        final int[] ran = new int[1];
+        WorkQueue wq = new WorkQueue(1, 16);
+        wq.setBatchSize(4);
+        wq.execute(new Runnable() {
+
+            public void run() {
+                throw new IllegalStateException("task");
+            }
+        });
+        wq.execute(new Runnable() {
+
+            public void run() {
+                synchronized (ran) {
+                    ran[0]++;
+                }
+            }
+        });
+        wq.activate();
+        wq.shutdownGracefully(5000);
+        assertEquals(1, ran[0]);
+    }
+
+    public void testQueuedTasksRunBeforeStop() {
+        final int[] ran = new int[1];
+        WorkQueue wq = new WorkQueue(4, 1000, 3);
+        for (int i = 0; i < 300; i++) {
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    synchronized (ran) {
+                        ran[0]++;
+                    }
+                }
+            }, i % 3);
+        }
+        wq.activate();
+        Runnable[] left = wq.shutdownGracefully(5000);
+        assertEquals(0, left.length);
+        assertTrue(wq.awaitTermination(1000));
+        synchronized (ran) {
+            assertEquals(300, ran[0]);
+        }
+    }
+
+    public void testDeadlineReturnsLeftovers() throws Exception {
+        final Object gate = new Object();
+        WorkQueue wq = new WorkQueue(1, 10);
+        wq.activate();
+        wq.execute(new Runnable() {
+
+            public void run() {
+                synchronized (gate) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            }
+        });
+        Thread.sleep(50);
+        Runnable r = new Runnable() {
+
+            public void run() {
+            }
+        };
+        wq.execute(r);
+        Runnable[] left = wq.shutdownGracefully(100);
+        assertEquals(1, left.length);
+        assertSame(r, left[0]);
+        assertTrue(wq.awaitTermination(1000));
+    }
+
+    public void testRejectsWhileDraining() {
+        WorkQueue wq = new WorkQueue(1, 10);
+        wq.activate();
+        wq.shutdownGracefully(1000);
+        try {
+            wq.execute(new Runnable() {
+
+                public void run() {
+                }
+            });
+            fail();
+        } catch (RejectedTaskException ex) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+import org.squilla.util.LogHistogram;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkQueueStatisticsTest extends TestCase {
+
+    public void testRecordsWhileInstrumented() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 16);
+        wq.setInstrumented(true);
+        Sleeper task = new Sleeper(20);
+        for (int i = 0; i < 5; i++) {
+            wq.execute(task);
+        }
+        wq.activate();
+        assertTrue(task.await(5, 2000));
+        Thread.sleep(20);
+        WorkQueueStatistics stats = wq.getStatistics();
+        wq.shutdown();
+        assertEquals(5, stats.getCompletedTasks());
+        assertEquals(5, stats.getPeakQueueDepth());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(5, stats.getExecution().getCount());
+        assertEquals(5, stats.getQueueWait().getCount());
+        assertTrue(stats.getExecution().getMean() >= 15000);
+        assertTrue(stats.getBusyRatio() > 0);
+        assertEquals(1, stats.getWorkerBusyRatio().length);
+    }
+
+    public void testNothingRecordedWhenOff() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 16);
+        Sleeper task = new Sleeper(0);
+        wq.activate();
+        for (int i = 0; i < 3; i++) {
+            wq.execute(task);
+        }
+        assertTrue(task.await(3, 2000));
+        WorkQueueStatistics stats = wq.getStatistics();
+        wq.shutdown();
+        assertEquals(0, stats.getCompletedTasks());
+        assertEquals(0, stats.getExecution().getCount());
+    }
+
+    public void testResetClearsCounts() throws Exception {
+        WorkQueue wq = new WorkQueue(1, 16);
+        wq.setInstrumented(true);
+        Sleeper task = new Sleeper(0);
+        wq.activate();
+        for (int i = 0; i < 3; i++) {
+            wq.execute(task);
+        }
+        assertTrue(task.await(3, 2000));
+        Thread.sleep(20);
+        assertEquals(3, wq.getStatistics().getCompletedTasks());
+        wq.resetStatistics();
+        WorkQueueStatistics stats = wq.getStatistics();
+        wq.shutdown();
+        assertEquals(0, stats.getCompletedTasks());
+        assertEquals(0, stats.getPeakQueueDepth());
+        assertEquals(0, stats.getQueueWait().getCount());
+    }
+
+    public void testHistogramBuckets() {
+        LogHistogram h = new LogHistogram();
+        h.record(0);
+        h.record(1);
+        h.record(3);
+        h.record(100);
+        assertEquals(4, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals(26.0, h.getMean(), 0.001);
+        long[] b = h.getBucketCounts();
+        assertEquals(1, b[0]);
+        assertEquals(1, b[1]);
+        assertEquals(1, b[2]);
+        assertEquals(1, b[7]);
+        assertEquals(4, h.getPercentile(0.75));
+        assertEquals(100, h.getPercentile(1.0));
+    }
+
+    public void testHistogramAddAndReset() {
+        LogHistogram a = new LogHistogram();
+        LogHistogram b = new LogHistogram();
+        a.record(10);
+        b.record(1000);
+        a.add(b);
+        assertEquals(2, a.getCount());
+        assertEquals(1000, a.getMax());
+        LogHistogram c = a.copy();
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getPercentile(0.5));
+        assertEquals(2, c.getCount());
+    }
+
+    private static class Sleeper implements Runnable {
+
+        private final long millis;
+        private int count;
+
+        Sleeper(long millis) {
+            this.millis = millis;
+        }
+
+        public void run() {
+            if (millis > 0) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException ex) {
+                }
+            }
+            synchronized (this) {
+                count++;
+                notifyAll();
+            }
+        }
+
+        synchronized boolean await(int n, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (count < n) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.service;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WorkStealingTest extends TestCase {
+
+    public void testDequeOwnerIsLifoThiefIsFifo() {
+        WorkStealingDeque d = new WorkStealingDeque(3);
+        assertTrue(d.offerLast("a"));
+        assertTrue(d.offerLast("b"));
+        assertTrue(d.offerLast("c"));
+        assertFalse(d.offerLast("d"));
+        assertTrue(d.isFull());
+        assertEquals("c", d.pollLast());
+        assertEquals("a", d.pollFirst());
+        assertEquals("b", d.pollLast());
+        assertNull(d.pollFirst());
+        assertEquals(0, d.size());
+    }
+
+    public void testIdleWorkerStealsFromBlockedOne() throws Exception {
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        final Counter done = new Counter();
+        WorkQueue wq = new WorkQueue(2, 64, true);
+        wq.activate();
+        wq.execute(new Runnable() {
+
+            public void run() {
+                synchronized (gate) {
+                    while (!open[0]) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        Thread.sleep(50);
+        // Spread over both deques, half of them behind the blocked worker.
+        for (int i = 0; i < 20; i++) {
+            wq.execute(done);
+        }
+        assertTrue(done.await(20, 2000));
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        wq.shutdown();
+    }
+
+    public void testTasksForkedFromWorkersRun() throws Exception {
+        final Counter done = new Counter();
+        final WorkQueue wq = new WorkQueue(4, 256, true);
+        wq.activate();
+        for (int i = 0; i < 10; i++) {
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    for (int j = 0; j < 10; j++) {
+                        wq.execute(done);
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(100, 2000));
+        wq.shutdown();
+    }
+
+    public void testPoolIsFixedSize() {
+        WorkQueue wq = new WorkQueue(2, 16, true);
+        assertTrue(wq.isWorkStealing());
+        try {
+            wq.setMaximumPoolSize(4);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    private static class Counter implements Runnable {
+
+        private int count;
+
+        public synchronized void run() {
+            count++;
+            notifyAll();
+        }
+
+        synchronized boolean await(int n, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (count < n) {
+                long millis = deadline - System.currentTimeMillis();
+                if (millis <= 0) {
+                    return false;
+                }
+                wait(millis);
+            }
+            return true;
+        }
+    }
+}
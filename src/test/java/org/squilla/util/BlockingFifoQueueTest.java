@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the same blocking and bulk checks against every BlockingFifoQueue.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockingFifoQueueTest extends TestCase {
+
+    private static final Coalescer NO_COALESCING = new Coalescer() {
+
+        public Object keyOf(Object e) {
+            return null;
+        }
+
+        public Object merge(Object pending, Object incoming) {
+            return incoming;
+        }
+    };
+
+    private static BlockingFifoQueue[] newQueues(int capacity) {
+        return new BlockingFifoQueue[] {
+            new ArrayFifoQueue(capacity),
+            new PriorityLaneQueue(2, capacity),
+            new DeadlineQueue(capacity),
+            new CoalescingQueue(capacity, NO_COALESCING),
+            new MpmcRingQueue(capacity),
+            new SpscRingQueue(capacity)
+        };
+    }
+
+    public void testBlockingDequeueWakesOnEnqueue() throws Exception {
+        BlockingFifoQueue[] qs = newQueues(4);
+        for (int i = 0; i < qs.length; i++) {
+            final BlockingFifoQueue q = qs[i];
+            Thread t = new Thread() {
+
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ex) {
+                    }
+                    q.enqueue("x");
+                }
+            };
+            t.start();
+            assertEquals(name(q), "x", q.blockingDequeue(2000));
+            t.join();
+        }
+    }
+
+    public void testBlockingDequeueTimesOut() {
+        BlockingFifoQueue[] qs = newQueues(4);
+        for (int i = 0; i < qs.length; i++) {
+            long start = System.currentTimeMillis();
+            assertNull(name(qs[i]), qs[i].blockingDequeue(50));
+            assertTrue(name(qs[i]), System.currentTimeMillis() - start >= 40);
+        }
+    }
+
+    public void testBlockingEnqueueTimesOutWhenFull() {
+        BlockingFifoQueue[] qs = newQueues(2);
+        for (int i = 0; i < qs.length; i++) {
+            BlockingFifoQueue q = qs[i];
+            assertTrue(q.enqueue("a"));
+            assertTrue(q.enqueue("b"));
+            assertFalse(name(q), q.blockingEnqueue("c", 50));
+            assertEquals(name(q), 2, q.size());
+        }
+    }
+
+    public void testBlockingEnqueueWakesOnDequeue() throws Exception {
+        BlockingFifoQueue[] qs = newQueues(2);
+        for (int i = 0; i < qs.length; i++) {
+            final BlockingFifoQueue q = qs[i];
+            q.enqueue("a");
+            q.enqueue("b");
+            Thread t = new Thread() {
+
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ex) {
+                    }
+                    q.dequeue();
+                }
+            };
+            t.start();
+            assertTrue(name(q), q.blockingEnqueue("c", 2000));
+            t.join();
+            assertEquals(name(q), "b", q.dequeue());
+            assertEquals(name(q), "c", q.dequeue());
+        }
+    }
+
+    public void testInterruptEndsWait() {
+        BlockingFifoQueue[] qs = newQueues(4);
+        for (int i = 0; i < qs.length; i++) {
+            Thread.currentThread().interrupt();
+            assertNull(name(qs[i]), qs[i].blockingDequeue(0));
+            assertTrue(name(qs[i]), Thread.interrupted());
+        }
+    }
+
+    public void testEnqueueAllStopsWhenFull() {
+        BlockingFifoQueue[] qs = newQueues(4);
+        Object[] src = new Object[] {"a", "b", "c", "d", "e", "f"};
+        for (int i = 0; i < qs.length; i++) {
+            BlockingFifoQueue q = qs[i];
+            assertEquals(name(q), 4, q.enqueueAll(src, 1, 5));
+            Object[] dst = new Object[6];
+            assertEquals(name(q), 4, q.drainTo(dst, 1, 5));
+            assertEquals("b", dst[1]);
+            assertEquals("c", dst[2]);
+            assertEquals("d", dst[3]);
+            assertEquals("e", dst[4]);
+            assertNull(dst[5]);
+            assertTrue(name(q), q.isEmpty());
+        }
+    }
+
+    public void testDrainAtLeastWaitsForMin() throws Exception {
+        BlockingFifoQueue[] qs = newQueues(8);
+        for (int i = 0; i < qs.length; i++) {
+            final BlockingFifoQueue q = qs[i];
+            q.enqueue("a");
+            Thread t = new Thread() {
+
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ex) {
+                    }
+                    q.enqueue("b");
+                    q.enqueue("c");
+                }
+            };
+            t.start();
+            Object[] dst = new Object[8];
+            int n = q.drainAtLeast(dst, 0, 2, 8, 2000);
+            t.join();
+            n += q.drainTo(dst, n, 8 - n);
+            assertEquals(name(q), 3, n);
+            assertEquals("a", dst[0]);
+            assertEquals("b", dst[1]);
+            assertEquals("c", dst[2]);
+        }
+    }
+
+    public void testDrainAtLeastReturnsPartialOnTimeout() {
+        BlockingFifoQueue[] qs = newQueues(8);
+        for (int i = 0; i < qs.length; i++) {
+            BlockingFifoQueue q = qs[i];
+            q.enqueue("a");
+            Object[] dst = new Object[8];
+            assertEquals(name(q), 1, q.drainAtLeast(dst, 0, 4, 8, 50));
+            assertEquals(name(q), 0, q.drainAtLeast(dst, 0, 0, 8, 50));
+        }
+    }
+
+    private static String name(Object q) {
+        return q.getClass().getName();
+    }
+}
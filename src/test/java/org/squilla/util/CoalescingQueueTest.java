@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.squilla.service.AbstractProcessor;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class CoalescingQueueTest extends TestCase {
+
+    /** Keys "k:v" by k and keeps the latest; entries without ':' are not merged. */
+    private static final Coalescer LATEST = new Coalescer() {
+
+        public Object keyOf(Object e) {
+            String s = (String) e;
+            int i = s.indexOf(':');
+            return i < 0 ? null : s.substring(0, i);
+        }
+
+        public Object merge(Object pending, Object incoming) {
+            return incoming;
+        }
+    };
+
+    public void testMergeKeepsPlace() {
+        CoalescingQueue q = new CoalescingQueue(8, LATEST);
+        q.enqueue("a:1");
+        q.enqueue("b:1");
+        q.enqueue("x");
+        q.enqueue("a:2");
+        q.enqueue("x");
+        assertEquals(4, q.size());
+        assertEquals(1, q.getCoalescedCount());
+        assertEquals("a:2", q.dequeue());
+        assertEquals("b:1", q.dequeue());
+        assertEquals("x", q.dequeue());
+        assertEquals("x", q.dequeue());
+        assertNull(q.dequeue());
+    }
+
+    public void testPendingKeyIsAcceptedWhenFull() {
+        CoalescingQueue q = new CoalescingQueue(2, LATEST);
+        assertTrue(q.enqueue("a:1"));
+        assertTrue(q.enqueue("b:1"));
+        assertFalse(q.enqueue("c:1"));
+        assertTrue(q.enqueue("b:2"));
+        assertEquals(2, q.size());
+    }
+
+    public void testDequeuedKeyIsQueuedAgain() {
+        CoalescingQueue q = new CoalescingQueue(4, LATEST);
+        q.enqueue("a:1");
+        assertEquals("a:1", q.dequeue());
+        q.enqueue("a:2");
+        q.enqueue("a:3");
+        assertEquals(1, q.size());
+        assertEquals("a:3", q.dequeue());
+    }
+
+    public void testMergeAfterRingWraps() {
+        CoalescingQueue q = new CoalescingQueue(3, LATEST);
+        q.enqueue("a:1");
+        q.enqueue("b:1");
+        q.dequeue();
+        q.enqueue("c:1");
+        q.enqueue("d:1");
+        q.enqueue("d:2");
+        q.enqueue("b:2");
+        assertFalse(q.enqueue("e:1"));
+        assertEquals("b:2", q.dequeue());
+        assertEquals("c:1", q.dequeue());
+        assertEquals("d:2", q.dequeue());
+        assertNull(q.dequeue());
+    }
+
+    public void testEnqueueAllMerges() {
+        CoalescingQueue q = new CoalescingQueue(2, LATEST);
+        String[] src = {"a:1", "a:2", "b:1", "c:1"};
+        assertEquals(3, q.enqueueAll(src, 0, src.length));
+        assertEquals("a:2", q.dequeue());
+        assertEquals("b:1", q.dequeue());
+    }
+
+    public void testProcessorCoalescesQueuedItems() {
+        final List processed = new ArrayList();
+        AbstractProcessor p = new AbstractProcessor(8, LATEST) {
+
+            protected Object processNext(Object o) {
+                synchronized (processed) {
+                    processed.add(o);
+                }
+                return o;
+            }
+        };
+        p.process("a:1");
+        p.process("b:1");
+        p.process("a:2", System.currentTimeMillis() + 60000);
+        p.process("b:2");
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[a:2, b:2]", processed.toString());
+        assertEquals(2, p.getCoalescedCount());
+    }
+
+    public void testMergeKeepsPendingDeadline() throws Exception {
+        final List processed = new ArrayList();
+        AbstractProcessor p = new AbstractProcessor(8, LATEST) {
+
+            protected Object processNext(Object o) {
+                synchronized (processed) {
+                    processed.add(o);
+                }
+                return o;
+            }
+        };
+        p.process("a:1", System.currentTimeMillis() + 20);
+        p.process("a:2");
+        Thread.sleep(50);
+        p.activate();
+        assertEquals(0, p.shutdownGracefully(5000).length);
+        assertEquals("[]", processed.toString());
+        assertEquals(1, p.getExpiredCount());
+    }
+}
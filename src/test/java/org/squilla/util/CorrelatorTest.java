@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import junit.framework.TestCase;
+import org.squilla.service.HashedWheelTimer;
+import org.squilla.service.ScheduledTask;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class CorrelatorTest extends TestCase {
+
+    private Correlator correlator;
+
+    protected void tearDown() {
+        if (correlator != null) {
+            correlator.close();
+        }
+    }
+
+    public void testCompleteAwait() {
+        correlator = new Correlator(4);
+        int id = correlator.register(0);
+        assertTrue(correlator.isPending(id));
+        assertTrue(correlator.complete(id, "r"));
+        assertEquals("r", correlator.await(id));
+        assertFalse(correlator.isPending(id));
+        assertEquals(0, correlator.pendingCount());
+        assertFalse(correlator.complete(id, "again"));
+        assertEquals(1, correlator.getUnmatchedCount());
+    }
+
+    public void testIdsWrapAndSkipPending() {
+        correlator = new Correlator(2);
+        int a = correlator.register(0);
+        int b = correlator.register(0);
+        int c = correlator.register(0);
+        int d = correlator.register(0);
+        assertEquals(-1, correlator.register(0));
+        correlator.cancel(b);
+        assertEquals(b, correlator.register(0));
+        assertTrue(a != c && c != d);
+    }
+
+    public void testTimeoutOnWheelSpanIsNotLate() {
+        // 256 ticks of 1ms is exactly one revolution of the wheel.
+        correlator = new Correlator(4, 1);
+        final long[] firedAt = new long[1];
+        long start = System.currentTimeMillis();
+        correlator.register(new ResponseListener() {
+
+            public void received(int id, Object response) {
+            }
+
+            public void timedOut(int id) {
+                synchronized (firedAt) {
+                    firedAt[0] = System.currentTimeMillis();
+                    firedAt.notifyAll();
+                }
+            }
+        }, 256);
+        synchronized (firedAt) {
+            long end = start + 2000;
+            while (firedAt[0] == 0 && System.currentTimeMillis() < end) {
+                try {
+                    firedAt.wait(50);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+        long elapsed = firedAt[0] - start;
+        assertTrue("fired after " + elapsed + "ms", elapsed >= 256 && elapsed < 400);
+        assertEquals(1, correlator.getTimeoutCount());
+        assertEquals(0, correlator.pendingCount());
+    }
+
+    public void testAwaitTimesOut() {
+        correlator = new Correlator(4, 5);
+        int id = correlator.register(30);
+        long start = System.currentTimeMillis();
+        assertNull(correlator.await(id, 1000));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, correlator.getTimeoutCount());
+    }
+
+    public void testInterruptCancelsAwait() throws Exception {
+        correlator = new Correlator(4);
+        final int id = correlator.register(0);
+        final Object[] result = new Object[] {"none"};
+        final boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread() {
+
+            public void run() {
+                result[0] = correlator.await(id);
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+        assertNull(result[0]);
+        assertTrue(interrupted[0]);
+        assertFalse(correlator.isPending(id));
+        assertEquals(0, correlator.pendingCount());
+    }
+
+    public void testReusedIdIsNotTimedOutByOldRequest() throws Exception {
+        correlator = new Correlator(1, 5);
+        int id = correlator.register(50);
+        correlator.cancel(id);
+        correlator.register(0);
+        int again = correlator.register(0);
+        assertEquals(id, again);
+        Thread.sleep(150);
+        assertTrue(correlator.isPending(again));
+        assertEquals(0, correlator.getTimeoutCount());
+    }
+
+    public void testSharedTimerLeftRunning() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(null);
+        timer.activate();
+        try {
+            Correlator c = new Correlator(4, timer);
+            int id = c.register(10000);
+            assertEquals(1, timer.pendingTasks());
+            c.close();
+            assertEquals(0, timer.pendingTasks());
+            assertTrue(c.isPending(id));
+            ScheduledTask st = timer.schedule(new Runnable() {
+
+                public void run() {
+                }
+            }, 10);
+            Thread.sleep(200);
+            assertTrue(st.isDone());
+        } finally {
+            timer.shutdown();
+        }
+    }
+
+    public void testCloseRefusesRequests() {
+        correlator = new Correlator(4);
+        correlator.register(100);
+        correlator.close();
+        try {
+            correlator.register(0);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.lang.reflect.Field;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class MpmcRingQueueTest extends TestCase {
+
+    public void testCapacityRoundsUp() {
+        assertEquals(2, new MpmcRingQueue(1).getCapacity());
+        assertEquals(8, new MpmcRingQueue(5).getCapacity());
+        assertEquals(8, new MpmcRingQueue(8).getCapacity());
+    }
+
+    public void testSmallestRingKeepsEntries() {
+        MpmcRingQueue q = new MpmcRingQueue(1);
+        assertTrue(q.enqueue("a"));
+        assertTrue(q.enqueue("b"));
+        assertFalse(q.enqueue("c"));
+        assertTrue(q.isFull());
+        assertEquals("a", q.dequeue());
+        assertEquals("b", q.dequeue());
+        assertNull(q.dequeue());
+    }
+
+    public void testClaimedSlotIsNotVisible() throws Exception {
+        MpmcRingQueue q = new MpmcRingQueue(4);
+        // A producer that has claimed position 0 but not yet published it.
+        Field tail = MpmcRingQueue.class.getDeclaredField("tail");
+        tail.setAccessible(true);
+        tail.setLong(q, 1);
+        assertEquals(1, q.size());
+        assertTrue(q.isEmpty());
+        assertNull(q.dequeue());
+    }
+
+    public void testEmptyAndFull() {
+        MpmcRingQueue q = new MpmcRingQueue(2);
+        assertTrue(q.isEmpty());
+        assertFalse(q.isFull());
+        q.enqueue("a");
+        assertFalse(q.isEmpty());
+        q.enqueue("b");
+        assertTrue(q.isFull());
+        q.dequeue();
+        assertFalse(q.isFull());
+        q.dequeue();
+        assertTrue(q.isEmpty());
+    }
+
+    public void testProducersAndConsumers() throws Exception {
+        final MpmcRingQueue q = new MpmcRingQueue(16);
+        final int perProducer = 20000;
+        final long[] sums = new long[2];
+        Thread[] threads = new Thread[4];
+        for (int p = 0; p < 2; p++) {
+            threads[p] = new Thread() {
+
+                public void run() {
+                    for (int i = 1; i <= perProducer; i++) {
+                        q.blockingEnqueue(new Integer(i));
+                    }
+                }
+            };
+        }
+        for (int c = 0; c < 2; c++) {
+            final int index = c;
+            threads[2 + c] = new Thread() {
+
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        sums[index] += ((Integer) q.blockingDequeue()).intValue();
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(10000);
+        }
+        long expected = 2L * perProducer * (perProducer + 1) / 2;
+        assertEquals(expected, sums[0] + sums[1]);
+        assertTrue(q.isEmpty());
+    }
+}
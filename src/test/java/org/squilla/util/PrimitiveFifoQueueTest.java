@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PrimitiveFifoQueueTest extends TestCase {
+
+    public void testIntFifoAcrossWrap() {
+        ArrayIntFifoQueue q = new ArrayIntFifoQueue(3);
+        assertEquals(-1, q.getEmptyValue());
+        assertEquals(-1, q.dequeue());
+        for (int round = 0; round < 3; round++) {
+            assertTrue(q.enqueue(round * 10));
+            assertTrue(q.enqueue(round * 10 + 1));
+            assertEquals(round * 10, q.peek());
+            assertEquals(round * 10, q.dequeue());
+            assertEquals(round * 10 + 1, q.dequeue());
+        }
+        assertTrue(q.isEmpty());
+    }
+
+    public void testIntBulkOperations() {
+        ArrayIntFifoQueue q = new ArrayIntFifoQueue(4, Integer.MIN_VALUE);
+        int[] src = {1, 2, 3, 4, 5};
+        assertEquals(4, q.enqueueAll(src, 0, src.length));
+        assertTrue(q.isFull());
+        assertFalse(q.enqueue(6));
+        int[] dst = new int[8];
+        assertEquals(2, q.drainTo(dst, 1, 2));
+        assertEquals(1, dst[1]);
+        assertEquals(2, dst[2]);
+        int[] rest = q.drainAll();
+        assertEquals(2, rest.length);
+        assertEquals(3, rest[0]);
+        assertEquals(4, rest[1]);
+        assertEquals(Integer.MIN_VALUE, q.peek());
+    }
+
+    public void testIntBlockingTimesOutWithEmptyValue() {
+        ArrayIntFifoQueue q = new ArrayIntFifoQueue(1, -7);
+        assertEquals(-7, q.blockingDequeue(20));
+        assertEquals(0, q.blockingDrainTo(new int[2], 0, 2, 20));
+        assertTrue(q.blockingEnqueue(1, 20));
+        assertFalse(q.blockingEnqueue(2, 20));
+    }
+
+    public void testIntBlockingDrainWakesOnEnqueue() throws Exception {
+        final ArrayIntFifoQueue q = new ArrayIntFifoQueue(8);
+        Thread t = new Thread() {
+
+            public void run() {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException ex) {
+                }
+                q.enqueueAll(new int[] {7, 8}, 0, 2);
+            }
+        };
+        t.start();
+        int[] dst = new int[4];
+        int n = q.blockingDrainTo(dst, 0, 4, 2000);
+        t.join();
+        assertTrue(n >= 1);
+        assertEquals(7, dst[0]);
+    }
+
+    public void testLongQueue() {
+        ArrayLongFifoQueue q = new ArrayLongFifoQueue(2, Long.MIN_VALUE);
+        assertEquals(Long.MIN_VALUE, q.dequeue());
+        assertTrue(q.enqueue(1L << 40));
+        assertTrue(q.enqueue(-5));
+        assertFalse(q.enqueue(9));
+        assertEquals(1L << 40, q.blockingDequeue(20));
+        long[] dst = new long[2];
+        assertEquals(1, q.drainTo(dst, 0, 2));
+        assertEquals(-5, dst[0]);
+        assertEquals(Long.MIN_VALUE, q.blockingDequeue(20));
+    }
+}
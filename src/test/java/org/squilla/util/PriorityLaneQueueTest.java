@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+import org.squilla.service.WorkQueue;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PriorityLaneQueueTest extends TestCase {
+
+    public void testStrictPriority() {
+        PriorityLaneQueue q = new PriorityLaneQueue(3, 4);
+        q.enqueue("low", 2);
+        q.enqueue("mid", 1);
+        q.enqueue("high", 0);
+        q.enqueue("mid2", 1);
+        assertEquals("high", q.peek());
+        assertEquals("high", q.dequeue());
+        assertEquals("mid", q.dequeue());
+        assertEquals("mid2", q.dequeue());
+        assertEquals("low", q.dequeue());
+        assertNull(q.dequeue());
+    }
+
+    public void testLanesAreBoundedSeparately() {
+        PriorityLaneQueue q = new PriorityLaneQueue(2, 2);
+        assertTrue(q.enqueue("a", 1));
+        assertTrue(q.enqueue("b", 1));
+        assertFalse(q.enqueue("c", 1));
+        assertTrue(q.isFull(1));
+        assertFalse(q.isFull(0));
+        assertTrue(q.enqueue("d", 0));
+        assertEquals(3, q.size());
+        assertEquals(2, q.size(1));
+        assertEquals(2, q.peakSize(1));
+    }
+
+    public void testDefaultLane() {
+        PriorityLaneQueue q = new PriorityLaneQueue(3, 4);
+        assertEquals(1, q.getDefaultLane());
+        q.enqueue("x");
+        assertEquals(1, q.size(1));
+        q.setDefaultLane(2);
+        q.enqueue("y");
+        assertEquals(1, q.size(2));
+    }
+
+    public void testWeightedFair() {
+        PriorityLaneQueue q = new PriorityLaneQueue(2, 16);
+        q.setStrict(false);
+        q.setWeights(new int[] {3, 1});
+        for (int i = 0; i < 8; i++) {
+            q.enqueue("h", 0);
+            q.enqueue("l", 1);
+        }
+        int high = 0;
+        for (int i = 0; i < 8; i++) {
+            if ("h".equals(q.dequeue())) {
+                high++;
+            }
+        }
+        assertEquals(6, high);
+    }
+
+    public void testAgedHeadIsServedFirst() throws Exception {
+        PriorityLaneQueue q = new PriorityLaneQueue(2, 4);
+        q.setAgingTime(50);
+        q.enqueue("old", 1);
+        Thread.sleep(80);
+        q.enqueue("new", 0);
+        assertEquals("old", q.dequeue());
+        assertEquals("new", q.dequeue());
+    }
+
+    public void testDequeueFromLane() {
+        PriorityLaneQueue q = new PriorityLaneQueue(2, 4);
+        q.enqueue("h", 0);
+        q.enqueue("l", 1);
+        assertEquals("l", q.dequeue(1));
+        assertNull(q.dequeue(1));
+        assertEquals("h", q.dequeue());
+    }
+
+    public void testWorkQueueRunsUrgentLaneFirst() throws Exception {
+        final Vector order = new Vector();
+        WorkQueue wq = new WorkQueue(1, 8, 3);
+        assertEquals(3, wq.getLaneCount());
+        String[] names = {"low", "high", "mid"};
+        int[] lanes = {2, 0, 1};
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            wq.execute(new Runnable() {
+
+                public void run() {
+                    order.addElement(name);
+                }
+            }, lanes[i]);
+        }
+        assertEquals(1, wq.remainingTask(0));
+        assertEquals(1, wq.remainingTask(2));
+        wq.activate();
+        long end = System.currentTimeMillis() + 2000;
+        while (order.size() < 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        wq.shutdown();
+        assertEquals("high", order.elementAt(0));
+        assertEquals("mid", order.elementAt(1));
+        assertEquals("low", order.elementAt(2));
+    }
+
+    public void testRejectsBadLane() {
+        PriorityLaneQueue q = new PriorityLaneQueue(2, 4);
+        try {
+            q.enqueue("x", 2);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class SpscRingQueueTest extends TestCase {
+
+    public void testCapacityRoundsUp() {
+        assertEquals(8, new SpscRingQueue(5).getCapacity());
+        assertEquals(8, new SpscRingQueue(8).getCapacity());
+    }
+
+    public void testFifoAcrossWrap() {
+        SpscRingQueue q = new SpscRingQueue(4);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(q.enqueue(new Integer(round * 3 + i)));
+            }
+            assertEquals(new Integer(round * 3), q.peek());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(new Integer(round * 3 + i), q.dequeue());
+            }
+        }
+        assertNull(q.dequeue());
+        assertNull(q.peek());
+    }
+
+    public void testFullAndEmpty() {
+        SpscRingQueue q = new SpscRingQueue(2);
+        assertTrue(q.isEmpty());
+        assertTrue(q.enqueue("a"));
+        assertTrue(q.enqueue("b"));
+        assertTrue(q.isFull());
+        assertFalse(q.enqueue("c"));
+        assertEquals(2, q.size());
+        Object[] all = q.drainAll();
+        assertEquals(2, all.length);
+        assertEquals("a", all[0]);
+        assertEquals("b", all[1]);
+        assertTrue(q.isEmpty());
+    }
+
+    public void testProducerToConsumerInOrder() throws Exception {
+        final SpscRingQueue q = new SpscRingQueue(16);
+        final int count = 100000;
+        Thread producer = new Thread() {
+
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    q.blockingEnqueue(new Integer(i));
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            Object o = q.blockingDequeue(5000);
+            assertEquals(new Integer(i), o);
+        }
+        producer.join(5000);
+        assertTrue(q.isEmpty());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Shotaro Uchida <suchida@valleycampus.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import junit.framework.TestCase;
+
+/**
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class WaitStrategyTest extends TestCase {
+
+    private static final int COUNT = 50;
+    private static final WaitStrategy[] STRATEGIES = {
+        WaitStrategy.getBlocking(),
+        WaitStrategy.getBusySpin(),
+        WaitStrategy.getSpinYield(),
+        WaitStrategy.getSpinPark()
+    };
+
+    public void testOnlyBlockingNeedsNotify() {
+        assertTrue(WaitStrategy.getBlocking().isBlocking());
+        assertFalse(WaitStrategy.getBusySpin().isBlocking());
+        assertFalse(WaitStrategy.getSpinYield().isBlocking());
+        assertFalse(WaitStrategy.getSpinPark().isBlocking());
+    }
+
+    public void testIdleEndsAtDeadlineOrInterrupt() {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            WaitStrategy s = STRATEGIES[i];
+            long now = System.currentTimeMillis();
+            assertFalse(s.idle(0, now - 1, 10));
+            assertTrue(s.idle(0, now, 0));
+            Thread.currentThread().interrupt();
+            assertFalse(s.idle(0, now + 10000, 10000));
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    public void testQueuesHandOff() throws Exception {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            WaitStrategy s = STRATEGIES[i];
+            handOff(new ArrayFifoQueue(2, s));
+            handOff(new SpscRingQueue(2, s));
+            handOff(new MpmcRingQueue(2, s));
+        }
+    }
+
+    public void testPollingDequeueTimesOut() {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            ArrayFifoQueue q = new ArrayFifoQueue(2, STRATEGIES[i]);
+            long start = System.currentTimeMillis();
+            assertNull(q.blockingDequeue(30));
+            assertTrue(System.currentTimeMillis() - start >= 25);
+        }
+    }
+
+    public void testIntQueueHandOff() throws Exception {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            final ArrayIntFifoQueue q = new ArrayIntFifoQueue(2, -1, STRATEGIES[i]);
+            Thread producer = new Thread() {
+
+                public void run() {
+                    for (int n = 0; n < COUNT; n++) {
+                        q.blockingEnqueue(n);
+                    }
+                }
+            };
+            producer.start();
+            for (int n = 0; n < COUNT; n++) {
+                assertEquals(n, q.blockingDequeue(5000));
+            }
+            producer.join(5000);
+        }
+    }
+
+    public void testPipeHandOff() throws Exception {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            final BufferedPipe pipe = new BufferedPipe(4, STRATEGIES[i]);
+            Thread writer = new Thread() {
+
+                public void run() {
+                    OutputStream out = pipe.getOutputStream();
+                    try {
+                        for (int n = 0; n < COUNT; n++) {
+                            // A full pipe drops the byte.
+                            while (pipe.isFull()) {
+                                Thread.yield();
+                            }
+                            out.write(n);
+                        }
+                    } catch (Exception ex) {
+                    }
+                    pipe.shutdown(true, false);
+                }
+            };
+            writer.start();
+            InputStream in = pipe.getInputStream();
+            for (int n = 0; n < COUNT; n++) {
+                assertEquals(n, in.read());
+            }
+            writer.join(5000);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static void handOff(final BlockingFifoQueue q) throws Exception {
+        Thread producer = new Thread() {
+
+            public void run() {
+                for (int n = 0; n < COUNT; n++) {
+                    q.blockingEnqueue(new Integer(n));
+                }
+            }
+        };
+        producer.start();
+        for (int n = 0; n < COUNT; n++) {
+            assertEquals(new Integer(n), q.blockingDequeue(5000));
+        }
+        producer.join(5000);
+        assertTrue(q.isEmpty());
+    }
+}